@@ -21,6 +21,7 @@ package haga;
 
 import haga.align.Aligner;
 import haga.align.AlignerFactory;
+import haga.align.AlignmentCache;
 import haga.gui.AlignmentManager;
 import haga.gui.AlignmentManagerListener;
 import haga.gui.AlignmentModel;
@@ -38,6 +39,12 @@ import javax.swing.SwingUtilities;
 
 public class Haga {
 
+    // the memory the alignments the GUI keeps may take
+    private static final long ALIGNMENT_CACHE_BYTES = 64L << 20;
+
+    // the disk space the alignments kept in ~/.haga/alignments may take
+    private static final long ALIGNMENT_DISK_BYTES = 256L << 20;
+
     public static void main (String[] args) {
         if (args.length > 0) {
             // -lhmm --labelerHmm <path to xmlFile>
@@ -46,8 +53,14 @@ public class Haga {
             
         }
         
-        // prepare Aligner
-        AlignerFactory.SetInstance(new Aligner());
+        // prepare Aligner. Each press of "Align sequences" usually adds a
+        // constraint or two, so only the pieces around them are aligned again
+        Aligner aligner = new Aligner();
+        aligner.setIncremental(true);
+        // alignments run again, in this session or a later one, come from
+        // the cache, which also keeps them on disk when it can
+        aligner.setCache(newAlignmentCache());
+        AlignerFactory.SetInstance(aligner);
         
         // prepare Labeler with a default hmm labeler loaded from res/hmm.xml
         LabelerFactory.SetInstance(XmlHmmLoader.loadXmlFile(
@@ -103,4 +116,16 @@ public class Haga {
             }
         });
     }
+
+    private static AlignmentCache newAlignmentCache() {
+        File directory = new File(System.getProperty("user.home"), ".haga"
+                + File.separator + "alignments");
+        try {
+            return new AlignmentCache(ALIGNMENT_CACHE_BYTES, directory,
+                    ALIGNMENT_DISK_BYTES);
+        } catch (IllegalArgumentException e) {
+            // the directory cannot be created; keep them in memory only
+            return new AlignmentCache(ALIGNMENT_CACHE_BYTES);
+        }
+    }
 }
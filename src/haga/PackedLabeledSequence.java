@@ -0,0 +1,76 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga;
+
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+
+import java.lang.ref.SoftReference;
+import java.util.List;
+
+/**
+ * A LabeledSequence kept as a PackedSequence. getSequence() unpacks it, and
+ * keeps the characters only as long as memory allows, so many loci or whole
+ * chromosomes can be held at a time; the Aligner and the HMMLabeler read
+ * the packed bases directly where they can.
+ */
+public class PackedLabeledSequence implements LabeledSequence {
+    private final PackedSequence sequence;
+    private final List<Label> labels;
+    private volatile SoftReference<char[]> unpacked;
+
+    /**
+     * @param labels - is not copied
+     */
+    public PackedLabeledSequence(PackedSequence sequence, List<Label> labels) {
+        if (sequence == null)
+            throw new IllegalArgumentException("'sequence' cannot be null");
+        if (labels == null)
+            throw new IllegalArgumentException("'labels' cannot be null");
+
+        this.sequence = sequence;
+        this.labels = labels;
+    }
+
+    public PackedSequence getPackedSequence() {
+        return sequence;
+    }
+
+    /**
+     * @returns not a copy
+     */
+    public List<Label> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @returns the unpacked characters, the same array for as long as memory
+     *   allows. It must not be changed
+     */
+    public char[] getSequence() {
+        SoftReference<char[]> ref = unpacked;
+        char[] chars = ref == null ? null : ref.get();
+        if (chars == null) {
+            chars = sequence.toCharArray();
+            unpacked = new SoftReference<char[]>(chars);
+        }
+        return chars;
+    }
+}
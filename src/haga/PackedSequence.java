@@ -0,0 +1,252 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga;
+
+import java.util.Arrays;
+
+/**
+ * A nucleotide sequence at 2 bits per base: A, C, G and T are packed 32 to a
+ * long, and every other character (N and the other IUPAC codes, gaps,
+ * lowercase bases) is kept aside as runs of the same character. A sequence
+ * of mostly uppercase bases, with long stretches of N, takes about an
+ * eighth of a char[].
+ *
+ * A PackedSequence never changes once built, so it can be shared between
+ * threads.
+ */
+public final class PackedSequence {
+
+    // the characters of the codes
+    public static final char[] BASES = { 'A', 'C', 'G', 'T' };
+
+    // the code getCodes() gives the positions that are not A, C, G or T
+    public static final byte NOT_A_BASE = -1;
+
+    private static final int BASES_PER_WORD = 32;
+
+    // base i is at bits 2 * (i % 32) of word i / 32; 0 for the other chars
+    private final long[] words;
+    private final int length;
+
+    // the runs of other characters: [starts[r], ends[r]) is chars[r], in
+    // order and apart
+    private final int[] starts, ends;
+    private final char[] chars;
+
+    /**
+     * @param sequence is copied
+     */
+    public PackedSequence(char[] sequence) {
+        this(sequence, 0, sequence.length);
+    }
+
+    /**
+     * @param sequence its characters from start (inclusive) to end
+     *   (exclusive) are copied
+     */
+    public PackedSequence(char[] sequence, int start, int end) {
+        if (start < 0 || end > sequence.length || start > end)
+            throw new IndexOutOfBoundsException("Range: " + start + " to "
+                    + end + ", length: " + sequence.length);
+        length = end - start;
+        words = new long[(length + BASES_PER_WORD - 1) / BASES_PER_WORD];
+        int runs = 0;
+        for (int i = 0; i < length; i++) {
+            char c = sequence[start + i];
+            int code = codeOf(c);
+            if (code >= 0) {
+                words[i >>> 5] |= (long) code << ((i & 31) << 1);
+            } else if (i == 0 || sequence[start + i - 1] != c) {
+                runs++;
+            }
+        }
+
+        starts = new int[runs];
+        ends = new int[runs];
+        chars = new char[runs];
+        int r = -1;
+        for (int i = 0; i < length; i++) {
+            char c = sequence[start + i];
+            if (codeOf(c) >= 0)
+                continue;
+            if (r < 0 || ends[r] != i || chars[r] != c) {
+                r++;
+                starts[r] = i;
+                chars[r] = c;
+            }
+            ends[r] = i + 1;
+        }
+    }
+
+    private PackedSequence(long[] words, int length, int[] starts, int[] ends,
+            char[] chars) {
+        this.words = words;
+        this.length = length;
+        this.starts = starts;
+        this.ends = ends;
+        this.chars = chars;
+    }
+
+    /**
+     * @return the code of c, 0 to 3 in the order of BASES, or NOT_A_BASE
+     */
+    public static int codeOf(char c) {
+        switch (c) {
+        case 'A': return 0;
+        case 'C': return 1;
+        case 'G': return 2;
+        case 'T': return 3;
+        default: return NOT_A_BASE;
+        }
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public char charAt(int index) {
+        checkRange(index, index + 1);
+        int r = runAt(index);
+        if (r >= 0 && index < ends[r])
+            return chars[r];
+        return BASES[code(index)];
+    }
+
+    /**
+     * @return whether any position holds c, which must not be A, C, G or T
+     */
+    public boolean contains(char c) {
+        for (char other : chars) {
+            if (other == c)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the positions from start (inclusive) to end (exclusive), which
+     *   shares nothing with this sequence
+     */
+    public PackedSequence slice(int start, int end) {
+        checkRange(start, end);
+        int n = end - start;
+        long[] sliced = new long[(n + BASES_PER_WORD - 1) / BASES_PER_WORD];
+        int first = start >>> 5;
+        int shift = (start & 31) << 1;
+        for (int k = 0; k < sliced.length; k++) {
+            long word = words[first + k] >>> shift;
+            if (shift != 0 && first + k + 1 < words.length)
+                word |= words[first + k + 1] << (64 - shift);
+            sliced[k] = word;
+        }
+        if ((n & 31) != 0)
+            sliced[sliced.length - 1] &= (1L << ((n & 31) << 1)) - 1;
+
+        int from = Math.max(0, runAt(start));
+        if (from < starts.length && ends[from] <= start)
+            from++;
+        int to = from;
+        while (to < starts.length && starts[to] < end)
+            to++;
+        int[] slicedStarts = new int[to - from], slicedEnds = new int[to - from];
+        for (int r = from; r < to; r++) {
+            slicedStarts[r - from] = Math.max(starts[r], start) - start;
+            slicedEnds[r - from] = Math.min(ends[r], end) - start;
+        }
+        return new PackedSequence(sliced, n, slicedStarts, slicedEnds, Arrays
+                .copyOfRange(chars, from, to));
+    }
+
+    public char[] toCharArray() {
+        char[] result = new char[length];
+        getChars(0, length, result, 0);
+        return result;
+    }
+
+    /**
+     * Copies the characters from start (inclusive) to end (exclusive) into
+     * dest from destStart, as String.getChars() does.
+     */
+    public void getChars(int start, int end, char[] dest, int destStart) {
+        checkRange(start, end);
+        int d = destStart;
+        int i = start;
+        while (i < end) {
+            long word = words[i >>> 5] >>> ((i & 31) << 1);
+            int stop = Math.min(end, (i | 31) + 1);
+            for (; i < stop; i++, word >>>= 2)
+                dest[d++] = BASES[(int) word & 3];
+        }
+        for (int r = Math.max(0, runAt(start)); r < starts.length
+                && starts[r] < end; r++) {
+            int from = Math.max(starts[r], start), to = Math.min(ends[r], end);
+            if (from < to)
+                Arrays.fill(dest, destStart + from - start, destStart + to
+                        - start, chars[r]);
+        }
+    }
+
+    /**
+     * Copies the codes of the positions from start (inclusive) to end
+     * (exclusive) into dest from destStart: 0 to 3 in the order of BASES, and
+     * NOT_A_BASE for the other characters.
+     */
+    public void getCodes(int start, int end, byte[] dest, int destStart) {
+        checkRange(start, end);
+        int d = destStart;
+        int i = start;
+        while (i < end) {
+            long word = words[i >>> 5] >>> ((i & 31) << 1);
+            int stop = Math.min(end, (i | 31) + 1);
+            for (; i < stop; i++, word >>>= 2)
+                dest[d++] = (byte) (word & 3);
+        }
+        for (int r = Math.max(0, runAt(start)); r < starts.length
+                && starts[r] < end; r++) {
+            int from = Math.max(starts[r], start), to = Math.min(ends[r], end);
+            if (from < to)
+                Arrays.fill(dest, destStart + from - start, destStart + to
+                        - start, NOT_A_BASE);
+        }
+    }
+
+    /**
+     * @return about the bytes this sequence takes
+     */
+    public long getBytes() {
+        return 8L * words.length + 10L * starts.length + 64;
+    }
+
+    private int code(int index) {
+        return (int) (words[index >>> 5] >>> ((index & 31) << 1)) & 3;
+    }
+
+    // the last run starting at or before index, or -1
+    private int runAt(int index) {
+        int r = Arrays.binarySearch(starts, index);
+        return r >= 0 ? r : -r - 2;
+    }
+
+    private void checkRange(int start, int end) {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("Range: " + start + " to "
+                    + end + ", length: " + length);
+    }
+}
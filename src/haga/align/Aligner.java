@@ -20,55 +20,222 @@
 package haga.align;
 
 import haga.NucleotideLabeledSequence;
+import haga.PackedLabeledSequence;
+import haga.PackedSequence;
 import haga.labeler.Label;
 import haga.labeler.LabeledAlignment;
 import haga.labeler.LabeledSequence;
-import haga.labeler.LabeledSequenceImpl;
+import haga.labeler.LabeledSequenceView;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.SortedSet;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 
+/**
+ * An Aligner can be shared by any number of threads: the engines keep their
+ * dynamic programming state per call, and the engine of each user label is
+ * created once, whichever thread sees the label first.
+ *
+ * Given an executor, an Aligner also aligns the independent pieces of one
+ * alignment (the regions between user labels) in parallel.
+ *
+ * Short pieces that are scored the same way are aligned together by a
+ * BatchNeedlemanWunsch, several pieces per SIMD instruction, when the
+ * jdk.incubator.vector module is available. The alignments are the same.
+ *
+ * Given an AlignmentCache, an Aligner returns the alignments it has already
+ * made with the same model from it, along with the long pieces of
+ * alignments it has not.
+ *
+ * An incremental Aligner keeps the pieces of its last alignment, and aligns
+ * only the pieces that changed when it is asked for the alignment again,
+ * e.g. with one more user label.
+ */
 public class Aligner {
 
-    private Map<String, GlobalAlignmentAlgorithm> labelToAligner = 
-        new HashMap<String, GlobalAlignmentAlgorithm>();
-    private GlobalAlignmentAlgorithm bkgrndAligner = 
-        new NeedlemanWunschIyoToscano();
+    // pieces up to this length on both sides are batched; beyond it the
+    // banded engines do less work than a batch of full matrices
+    static final int BATCH_MAX_LENGTH = 128;
+
+    // short pieces are handed to a BatchNeedlemanWunsch this many at a time,
+    // so the batches of a large alignment can run in parallel
+    static final int BATCH_PIECES = 256;
+
+    // pieces of fewer cells are aligned again rather than looked up
+    static final long PIECE_CACHE_MIN_CELLS = 1 << 16;
+
+    // the model version while train() changes the scores. Nothing aligned
+    // meanwhile is kept, since it may mix old and new scores
+    static final long TRAINING = Long.MIN_VALUE;
+
+    private final ConcurrentMap<String, GlobalAlignmentAlgorithm>
+        labelToAligner = new ConcurrentHashMap<String, GlobalAlignmentAlgorithm>();
+    // long background pieces (syntenic regions) are aligned through anchors.
+    // Short ones, which are never anchored, can go to bkgrndNw directly
+    private final NeedlemanWunsch bkgrndNw = new NeedlemanWunschIyoToscano();
+    private final GlobalAlignmentAlgorithm bkgrndAligner = new AnchoredAligner(
+            new BandedNeedlemanWunsch(bkgrndNw));
+    private final Executor executor;
+    private final Object trainingLock = new Object();
+    private volatile AlignmentCache cache;
+    private volatile long modelVersion;
+    private volatile boolean incremental;
+    private volatile PreviousRun previousRun;
+
+    public Aligner() {
+        this(null);
+    }
+
+    /**
+     * @param executor runs the pieces of an alignment, or null to align them
+     *   one after another on the calling thread. The calling thread also
+     *   aligns the pieces the executor has not started yet, so the executor
+     *   may be the one that calls align()
+     */
+    public Aligner(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param cache where the alignments are kept and looked up, or null to
+     *   align every pair again
+     */
+    public void setCache(AlignmentCache cache) {
+        this.cache = cache;
+    }
+
+    public AlignmentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param incremental whether to keep the pieces of each alignment, to
+     *   reuse the ones that have not changed in the next alignment. This
+     *   suits a single thread refining one alignment, as the GUI does
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        previousRun = null;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return the version of the scores of this Aligner: 0 until it is
+     *   trained, then a digest of the trained scores, the same for every
+     *   Aligner trained the same way, in this run or another
+     */
+    public long getModelVersion() {
+        return modelVersion;
+    }
 
+    /**
+     * @return the alignment of ls1 with ls2, which keeps its own packed copy
+     *   of their bases: changing their arrays afterwards does not change it
+     */
     public LabeledAlignment align(LabeledSequence ls1, LabeledSequence ls2) {
+        return alignInto(ls1, ls2, null);
+    }
+
+    /**
+     * Aligns ls1 with ls2 as align() does, but hands the alignment to sink
+     * piece by piece, in order, instead of putting it together. An alignment
+     * made this way is not kept in the cache, though its pieces are.
+     */
+    public void align(LabeledSequence ls1, LabeledSequence ls2,
+            AlignmentSink sink) {
+        if (sink == null)
+            throw new IllegalArgumentException("'sink' cannot be null");
+
+        alignInto(ls1, ls2, sink);
+    }
+
+    // returns the alignment, or null once it is in sink
+    private LabeledAlignment alignInto(LabeledSequence ls1,
+            LabeledSequence ls2, AlignmentSink sink) {
+        AlignmentCache cache = this.cache;
+        long version = modelVersion;
+        String key = null;
+        if (cache != null) {
+            key = AlignmentCache.alignmentKey(version, AlignmentCache
+                    .digest(ls1), AlignmentCache.digest(ls2));
+            LabeledAlignment cached = cache.get(key);
+            if (cached != null)
+                return emit(cached, sink);
+        }
 
         // remove gaps from sequences
-        LabeledAlignment laWithGaps = new LabeledAlignment(ls1, ls2);
-        LabeledAlignment laWithoutGaps = removeGaps(laWithGaps);
-        ls1 = laWithoutGaps.getLS1();
-        ls2 = laWithoutGaps.getLS2();
-
-        // initialize some convenience variables
-        char[] seq1 = ls1.getSequence();
-        char[] seq2 = ls2.getSequence();
-        List<Label> labels1 = ls1.getLabels(),
-                    labels2 = ls2.getLabels(),
-                    userLabels1 = new LinkedList<Label>(), 
-                    userLabels2 = new LinkedList<Label>();
-
-        // filter out the user labels
-        for (Label l : labels1)
-            if (l.userDefined)
-                userLabels1.add(l);
-        for (Label l : labels2)
-            if (l.userDefined)
-                userLabels2.add(l);
+        ls1 = withoutGaps(ls1);
+        ls2 = withoutGaps(ls2);
+
+        return align(split(ls1, false), split(ls2, false), cache, version, key,
+                sink);
+    }
+
+    /**
+     * Does the work align() repeats for each pair on one sequence ahead of
+     * time: removing its gaps, splitting it on its user labels and encoding
+     * the pieces for the engines.
+     * 
+     * @return the reference to align queries with, from any thread and with
+     *   any Aligner
+     */
+    public PreparedReference prepare(LabeledSequence reference) {
+        return new PreparedReference(split(withoutGaps(reference), true),
+                AlignmentCache.digest(reference));
+    }
+
+    /**
+     * @return the same alignment as align(ls1, query), where ls1 is the
+     *   sequence reference was prepared from
+     */
+    public LabeledAlignment align(PreparedReference reference,
+            LabeledSequence query) {
+        AlignmentCache cache = this.cache;
+        long version = modelVersion;
+        String key = null;
+        if (cache != null) {
+            key = AlignmentCache.alignmentKey(version, reference.digest,
+                    AlignmentCache.digest(query));
+            LabeledAlignment cached = cache.get(key);
+            if (cached != null)
+                return cached;
+        }
+
+        return align(reference.segments, split(withoutGaps(query), false),
+                cache, version, key, null);
+    }
+
+    /**
+     * @param key where the alignment goes in cache, if cache is not null
+     * @param version the model version when the alignment started. The
+     *   alignment and its pieces are not kept if train() changes it meanwhile
+     * @param sink receives the pieces of the alignment, or null to return it
+     */
+    private LabeledAlignment align(List<Segment> segments1,
+            List<Segment> segments2, AlignmentCache cache, long version,
+            String key, AlignmentSink sink) {
 
         // do some argument checking
-        if (userLabels1.size() != userLabels2.size())
+        if (userLabelCount(segments1) != userLabelCount(segments2))
             throw new IllegalStateException("Aligner: The two labeled sequences"
                     + "need to have the same number of user-defined labels.");
 
@@ -76,206 +243,411 @@ public class Aligner {
          * pieces = divide alignment into AlignmentPieces
          * for each piece p in pieces
          *   if p is a user defined piece
-         *     Alignment a = getAligner(p.labelName).align(p.seq1, p.seq2)
+         *     Alignment a = getAligner(p.labelName).align(p.ls1, p.ls2)
          *     resultPieces.append(toLabeledAlignment(a, p.labelName))
          *   else
-         *     Alignment a = bkgrndAligner.align(p.seq1, p.seq2, lbls1, lbls2)
+         *     Alignment a = bkgrndAligner.align(p.ls1, p.ls2)
          *     resultPieces.append(toLabeledAlignment(a, lbls1, lbls2))
          * 
          * return resultPieces
          */
 
-        List<AlignmentPiece> unalignedPieces = split(userLabels1.size(), ls1,
-                ls2);
-        AlignmentHelper alignedPieces = new AlignmentHelper();
+        List<AlignmentPiece> unalignedPieces = pair(segments1, segments2);
+        LabeledAlignment[] aligned = new LabeledAlignment[unalignedPieces.size()];
+        PieceKey[] previousKeys = null;
+        if (incremental) {
+            previousKeys = new PieceKey[aligned.length];
+            PreviousRun previous = previousRun;
+            for (int k = 0; k < aligned.length; k++) {
+                previousKeys[k] = new PieceKey(unalignedPieces.get(k));
+                if (previous != null && previous.version == version)
+                    aligned[k] = previous.get(previousKeys[k],
+                            unalignedPieces.get(k));
+            }
+        }
+        String[] pieceKeys = cache == null ? null
+                : lookUpPieces(unalignedPieces, cache, version, aligned);
+        List<Runnable> work = plan(unalignedPieces, aligned);
 
-        for (AlignmentPiece p : unalignedPieces) {
-            if (p.isUserDefined) {
-                GlobalAlignmentAlgorithm aligner = 
-                        labelToAligner.get(p.labelName);
+        if (executor == null || work.size() < 2) {
+            for (Runnable r : work)
+                r.run();
+        } else {
+            runInParallel(work);
+        }
 
-                // lazy initialization - create a new aligner for this label if
-                // its the first time processing this label
-                if (aligner == null) { // first time we've seen this label
-                    aligner = new NeedlemanWunsch();
-                    labelToAligner.put(p.labelName, aligner);
-                }
+        if (previousKeys != null && isCurrent(version)) {
+            previousRun = new PreviousRun(version, previousKeys, aligned);
+        }
+        if (cache != null && isCurrent(version)) {
+            for (int k = 0; k < aligned.length; k++) {
+                if (pieceKeys[k] != null)
+                    cache.put(pieceKeys[k], aligned[k]);
+            }
+        }
+
+        if (sink != null) {
+            AlignmentHelper.stream(aligned, sink);
+            return null;
+        }
+        LabeledAlignment result = AlignmentHelper.assemble(aligned);
+        if (cache != null && isCurrent(version))
+            cache.put(key, result);
+        return result;
+    }
+
+    // returns la, or hands it to sink and returns null
+    private static LabeledAlignment emit(LabeledAlignment la,
+            AlignmentSink sink) {
+        if (sink == null)
+            return la;
+        AlignmentHelper.stream(new LabeledAlignment[] { la }, sink);
+        return null;
+    }
+
+    // fills aligned with the pieces found in cache. Returns the keys of the
+    // pieces to keep once aligned, or null for the others
+    private String[] lookUpPieces(List<AlignmentPiece> pieces,
+            AlignmentCache cache, long version, LabeledAlignment[] aligned) {
+        String[] keys = new String[pieces.size()];
+        for (int k = 0; k < keys.length; k++) {
+            AlignmentPiece p = pieces.get(k);
+            if (aligned[k] != null
+                    || (long) LabeledSequenceView.length(p.ls1)
+                            * LabeledSequenceView.length(p.ls2)
+                            < PIECE_CACHE_MIN_CELLS)
+                continue;
+            String key = AlignmentCache.pieceKey(version, p.isUserDefined
+                    ? p.labelName : null, AlignmentCache.digest(p.ls1),
+                    AlignmentCache.digest(p.ls2));
+            aligned[k] = cache.get(key);
+            if (aligned[k] == null)
+                keys[k] = key;
+        }
+        return keys;
+    }
 
-                Label userLabel =
-                    new Label(p.labelName, 0, p.seq1.length-1, true);
-                Alignment a = aligner.align(
-                        new NucleotideLabeledSequence(p.seq1, userLabel),
-                        new NucleotideLabeledSequence(p.seq2, userLabel));
-                alignedPieces.append(toLabeledAlignment(a, p.labelName));
-
-            } else {
-                Alignment a = bkgrndAligner.align(
-                        new NucleotideLabeledSequence(p.seq1, p.lbls1),
-                        new NucleotideLabeledSequence(p.seq2, p.lbls2));
-                p.lbls1 = adjustLabelsForGaps(a.getSequence1(), p.lbls1);
-                p.lbls2 = adjustLabelsForGaps(a.getSequence2(), p.lbls2);
-                alignedPieces.append(toLabeledAlignment(a, p.lbls1, p.lbls2));
+    // the work of aligning each piece into aligned, but the ones already
+    // there: the short pieces that share a NeedlemanWunsch in batches, the
+    // others one by one
+    private List<Runnable> plan(final List<AlignmentPiece> pieces,
+            final LabeledAlignment[] aligned) {
+        List<Runnable> work = new ArrayList<Runnable>();
+        Map<NeedlemanWunsch, List<Integer>> batches =
+            new LinkedHashMap<NeedlemanWunsch, List<Integer>>();
+        for (int k = 0; k < pieces.size(); k++) {
+            if (aligned[k] != null)
+                continue;
+            NeedlemanWunsch nw = batchEngine(pieces.get(k));
+            if (nw == null) {
+                work.add(single(pieces, k, aligned));
+                continue;
+            }
+            List<Integer> batch = batches.get(nw);
+            if (batch == null) {
+                batch = new ArrayList<Integer>();
+                batches.put(nw, batch);
             }
+            batch.add(k);
         }
 
-        return alignedPieces.toLabeledAlignment();
+        for (Map.Entry<NeedlemanWunsch, List<Integer>> e : batches.entrySet()) {
+            List<Integer> indices = e.getValue();
+            for (int start = 0; start < indices.size(); start += BATCH_PIECES) {
+                List<Integer> batch = indices.subList(start, Math.min(
+                        indices.size(), start + BATCH_PIECES));
+                if (batch.size() >= BatchNeedlemanWunsch.MIN_LANES) {
+                    work.add(batch(e.getKey(), batch, pieces, aligned));
+                } else {
+                    for (int k : batch)
+                        work.add(single(pieces, k, aligned));
+                }
+            }
+        }
+        return work;
     }
 
-    // Assumes that labels is sorted by sequential order
-    private List<Label> adjustLabelsForGaps(char[] sequence,
-                                            List<Label> labels) {
-        if (labels.size() == 0) return labels;
+    // the NeedlemanWunsch that aligns p like its engine does, if p is short
+    // enough to be batched and batches are vectorized
+    private NeedlemanWunsch batchEngine(AlignmentPiece p) {
+        if (!BatchNeedlemanWunsch.isVectorized()
+                || LabeledSequenceView.length(p.ls1) > BATCH_MAX_LENGTH
+                || LabeledSequenceView.length(p.ls2) > BATCH_MAX_LENGTH)
+            return null;
+        if (!p.isUserDefined)
+            return bkgrndNw;
+        GlobalAlignmentAlgorithm engine = engineFor(p.labelName);
+        return engine instanceof BandedNeedlemanWunsch
+                ? ((BandedNeedlemanWunsch) engine).getNeedlemanWunsch() : null;
+    }
 
-        List<Label> newLabels = new ArrayList<Label>();
+    private Runnable single(final List<AlignmentPiece> pieces, final int k,
+            final LabeledAlignment[] aligned) {
+        return new Runnable() {
+            public void run() {
+                aligned[k] = align(pieces.get(k));
+            }
+        };
+    }
 
-        Iterator<Label> labelIterator = labels.iterator();
-        Label currentLabel = labelIterator.next();
-        int totalGaps = 0;
-        int nonGaps = 0;
-        int labelStart = 0;
-        for (int i = 0; i < sequence.length; i++) {
-            if (sequence[i] == '-') {
-                totalGaps++;
-            } else {
-                nonGaps++;
-                if (nonGaps == currentLabel.getEndIndex()
-                        - currentLabel.getStartIndex() + 1) {
-                    
-                    while(i + 1 < sequence.length && sequence[i+1] == '-') {
-                        i++;
-                    }
-                    
-                    if (!labelIterator.hasNext()) {
-                        newLabels.add(new Label(currentLabel.toString(),
-                                labelStart, sequence.length - 1,
-                                currentLabel.userDefined));
-                        break;
-                    }
-                    newLabels.add(new Label(currentLabel.toString(),
-                            labelStart, i, currentLabel.userDefined));
-                    nonGaps = 0;
-                    labelStart = i + 1;
-                    currentLabel = labelIterator.next();
+    private Runnable batch(final NeedlemanWunsch nw, final List<Integer> batch,
+            final List<AlignmentPiece> pieces, final LabeledAlignment[] aligned) {
+        return new Runnable() {
+            public void run() {
+                LabeledSequence[] ls1 = new LabeledSequence[batch.size()];
+                LabeledSequence[] ls2 = new LabeledSequence[batch.size()];
+                for (int b = 0; b < ls1.length; b++) {
+                    ls1[b] = pieces.get(batch.get(b)).ls1;
+                    ls2[b] = pieces.get(batch.get(b)).ls2;
+                }
+                Alignment[] a = new BatchNeedlemanWunsch(nw).align(ls1, ls2);
+                for (int b = 0; b < a.length; b++) {
+                    AlignmentPiece p = pieces.get(batch.get(b));
+                    aligned[batch.get(b)] = toLabeledAlignment(p, a[b].over(
+                            Alignment.Bases.of(p.ls1), Alignment.Bases.of(p.ls2)));
                 }
             }
+        };
+    }
+
+    // runs all of work, on the executor and the calling thread
+    private void runInParallel(List<Runnable> work) {
+        List<FutureTask<Object>> tasks =
+            new ArrayList<FutureTask<Object>>(work.size());
+        for (Runnable r : work) {
+            FutureTask<Object> task = new FutureTask<Object>(r, null);
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // run below, on the calling thread
+            }
         }
 
-        return newLabels;
+        // running a task that was already started does nothing
+        for (FutureTask<Object> task : tasks) {
+            task.run();
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(
+                        "Aligner: interrupted while aligning", e);
+            }
+        }
     }
 
-    // splits the LabeledSequences into a series of AlignmentPieces, split on
-    // the user-/non-user-specified and user labels
-    private List<AlignmentPiece> split(int count, LabeledSequence ls1,
-            LabeledSequence ls2) {
-        List<AlignmentPiece> result = new LinkedList<AlignmentPiece>();
-        List<Label> tempBuckets1 = new LinkedList<Label>();
-        List<Label> tempBuckets2 = new LinkedList<Label>();
+    private GlobalAlignmentAlgorithm engineFor(String labelName) {
+        GlobalAlignmentAlgorithm aligner = labelToAligner.get(labelName);
 
-        Iterator<Label> lbls1Iterator, lbls2Iterator;
-        lbls1Iterator = ls1.getLabels().iterator();
-        lbls2Iterator = ls2.getLabels().iterator();
+        // lazy initialization - create a new aligner for this label if
+        // its the first time processing this label. Another thread may
+        // get there first, and then its aligner is used
+        if (aligner == null) { // first time we've seen this label
+            aligner = new BandedNeedlemanWunsch();
+            GlobalAlignmentAlgorithm existing = labelToAligner
+                    .putIfAbsent(labelName, aligner);
+            if (existing != null)
+                aligner = existing;
+        }
+        return aligner;
+    }
 
-        while (lbls1Iterator.hasNext() || lbls2Iterator.hasNext()) {
-            Label curr1 = null, curr2 = null;
-            while (lbls1Iterator.hasNext()) {
-                curr1 = lbls1Iterator.next();
+    // the alignment of a piece reads its bases from the piece, so the pieces
+    // of a view or of the same array share it rather than copies of it
+    private LabeledAlignment align(AlignmentPiece p) {
+        Alignment a = p.isUserDefined ? engineFor(p.labelName).align(p.ls1,
+                p.ls2) : bkgrndAligner.align(p.ls1, p.ls2);
+        return toLabeledAlignment(p, a.over(Alignment.Bases.of(p.ls1),
+                Alignment.Bases.of(p.ls2)));
+    }
 
-                if (curr1.userDefined) {
-                    break;
+    private LabeledAlignment toLabeledAlignment(AlignmentPiece p, Alignment a) {
+        if (p.isUserDefined) {
+            return toLabeledAlignment(a, p.labelName);
 
-                } else {
-                    tempBuckets1.add(curr1);
-                }
-            }
+        } else {
+            List<Label> lbls1 = adjustLabelsForGaps(a.getGapMap1(),
+                    p.ls1.getLabels());
+            List<Label> lbls2 = adjustLabelsForGaps(a.getGapMap2(),
+                    p.ls2.getLabels());
+            return toLabeledAlignment(a, lbls1, lbls2);
+        }
+    }
 
-            while (lbls2Iterator.hasNext()) {
-                curr2 = lbls2Iterator.next();
+    // Assumes that labels is sorted by sequential order, and that they cover
+    // the bases of sequence one after the other. Each label takes the gaps
+    // after its last base, and the first one the gaps before its first base
+    private List<Label> adjustLabelsForGaps(GapMap map, List<Label> labels) {
+        if (labels.size() == 0) return labels;
 
-                if (curr2.userDefined) {
-                    break;
+        List<Label> newLabels = new ArrayList<Label>();
+        int labelStart = 0;
+        int bases = 0;
+        for (Iterator<Label> it = labels.iterator(); it.hasNext();) {
+            Label label = it.next();
+            bases += label.getEndIndex() - label.getStartIndex() + 1;
+            if (bases > map.ungappedLength())
+                break;
+            int labelEnd = it.hasNext() ? map.toGapped(bases) - 1
+                    : map.gappedLength() - 1;
+            newLabels.add(new Label(label.toString(), labelStart, labelEnd,
+                    label.userDefined));
+            labelStart = labelEnd + 1;
+        }
 
-                } else {
-                    tempBuckets2.add(curr2);
-                }
-            }
+        return newLabels;
+    }
 
-            if (tempBuckets1.size() > 0 || tempBuckets2.size() > 0) {
-                AlignmentPiece p = new AlignmentPiece();
-                p.isUserDefined = false;
-                int start1, start2, end1, end2;
-                start1 = tempBuckets1.get(0).getStartIndex();
-                start2 = tempBuckets2.get(0).getStartIndex();
-                end1 = tempBuckets1.get(tempBuckets1.size() - 1).getEndIndex() + 1;
-                end2 = tempBuckets2.get(tempBuckets2.size() - 1).getEndIndex() + 1;
-                p.lbls1 = new LinkedList<Label>();
-                for (Label l : tempBuckets1) {
-                    p.lbls1.add(new Label(l.toString(), l.getStartIndex()
-                            - start1, l.getEndIndex() - start1, false));
-                }
-                p.lbls2 = new LinkedList<Label>();
-                for (Label l : tempBuckets2) {
-                    p.lbls2.add(new Label(l.toString(), l.getStartIndex()
-                            - start2, l.getEndIndex() - start2, false));
-                }
-                p.seq1 = Arrays.copyOfRange(ls1.getSequence(), start1, end1);
-                p.seq2 = Arrays.copyOfRange(ls2.getSequence(), start2, end2);
-                result.add(p);
-                tempBuckets1.clear();
-                tempBuckets2.clear();
+    // splits ls into its user labels and the stretches of other labels
+    // between them, in order. Consecutive non-user labels make one
+    // background segment
+    private List<Segment> split(LabeledSequence ls, boolean prepare) {
+        List<Segment> result = new ArrayList<Segment>();
+        List<Label> bucket = new ArrayList<Label>();
+        for (Label l : ls.getLabels()) {
+            if (!l.userDefined) {
+                bucket.add(l);
+                continue;
             }
-
-            if (curr1.userDefined) { // finished loops because hit a user
-                // label
-                AlignmentPiece p = new AlignmentPiece();
-                p.isUserDefined = true;
-                p.labelName = curr1.toString();
-                p.seq1 = Arrays.copyOfRange(ls1.getSequence(), curr1
-                        .getStartIndex(), curr1.getEndIndex() + 1);
-                p.seq2 = Arrays.copyOfRange(ls2.getSequence(), curr2
-                        .getStartIndex(), curr2.getEndIndex() + 1);
-                result.add(p);
+            if (bucket.size() > 0) {
+                result.add(background(ls, bucket, prepare));
+                bucket.clear();
             }
+            List<Label> lbls = new LinkedList<Label>();
+            lbls.add(new Label(l.toString(), 0, l.getEndIndex()
+                    - l.getStartIndex(), true));
+            result.add(new Segment(true, l.toString(), sequence(ls, l
+                    .getStartIndex(), l.getEndIndex() + 1, lbls, prepare)));
         }
-
+        if (bucket.size() > 0)
+            result.add(background(ls, bucket, prepare));
         return result;
     }
 
-    private LabeledAlignment toLabeledAlignment(Alignment a, String labelName) {
+    // the background segment covering the labels of bucket
+    private Segment background(LabeledSequence ls, List<Label> bucket,
+            boolean prepare) {
+        int start = bucket.get(0).getStartIndex();
+        int end = bucket.get(bucket.size() - 1).getEndIndex() + 1;
+        List<Label> lbls = new LinkedList<Label>();
+        for (Label l : bucket) {
+            lbls.add(new Label(l.toString(), l.getStartIndex() - start,
+                    l.getEndIndex() - start, false));
+        }
+        return new Segment(false, null, sequence(ls, start, end, lbls,
+                prepare));
+    }
+
+    // the bases of ls from start to end, with lbls: a view of them, or a
+    // packed slice of a packed sequence. Prepared pieces are copied, once for
+    // all the queries
+    private LabeledSequence sequence(LabeledSequence ls, int start, int end,
+            List<Label> lbls, boolean prepare) {
+        char[] seq;
+        if (ls instanceof PackedLabeledSequence) {
+            PackedSequence packed = ((PackedLabeledSequence) ls)
+                    .getPackedSequence();
+            if (!prepare)
+                return new PackedLabeledSequence(packed.slice(start, end), lbls);
+            seq = new char[end - start];
+            packed.getChars(start, end, seq, 0);
+        } else {
+            if (!prepare)
+                return LabeledSequenceView.of(ls, start, end, lbls);
+            int offset = LabeledSequenceView.offsetOf(ls);
+            seq = Arrays.copyOfRange(LabeledSequenceView.backingOf(ls), offset
+                    + start, offset + end);
+        }
+        return new PreparedSequence(seq, lbls);
+    }
+
+    private int userLabelCount(List<Segment> segments) {
+        int count = 0;
+        for (Segment s : segments)
+            if (s.isUserDefined)
+                count++;
+        return count;
+    }
 
-        Label l1 = new Label(labelName, 0, a.getSequence1().length - 1, true);
-        Label l2 = new Label(labelName, 0, a.getSequence2().length - 1, true);
+    // matches the segments of the two sequences into AlignmentPieces: each
+    // user label with the one at the same position in the other sequence,
+    // and the background before it with the background before that one
+    private List<AlignmentPiece> pair(List<Segment> segments1,
+            List<Segment> segments2) {
+        List<AlignmentPiece> result = new ArrayList<AlignmentPiece>();
+        int i = 0, j = 0;
+        while (i < segments1.size() || j < segments2.size()) {
+            Segment background1 = null, background2 = null;
+            if (i < segments1.size() && !segments1.get(i).isUserDefined)
+                background1 = segments1.get(i++);
+            if (j < segments2.size() && !segments2.get(j).isUserDefined)
+                background2 = segments2.get(j++);
+            if (background1 != null || background2 != null) {
+                if (background1 == null || background2 == null)
+                    throw new IllegalStateException("Aligner: The unlabeled "
+                            + "regions of the two labeled sequences do not "
+                            + "correspond.");
+                result.add(new AlignmentPiece(background1, background2));
+            }
 
-        List<Label> temp = new LinkedList<Label>();
-        temp.add(l1);
-        LabeledSequence ls1 = new NucleotideLabeledSequence(a.getSequence1(),
-                temp);
-        temp.clear();
-        temp.add(l2);
-        LabeledSequence ls2 = new NucleotideLabeledSequence(a.getSequence2(),
-                temp);
+            // the user label counts are equal, so both are user labels
+            if (i < segments1.size() && j < segments2.size())
+                result.add(new AlignmentPiece(segments1.get(i++),
+                        segments2.get(j++)));
+        }
 
-        return new LabeledAlignment(ls1, ls2);
+        return result;
+    }
+
+    // the rows of a piece are built when first asked for; assembling the
+    // pieces works from their runs
+    private LabeledAlignment toLabeledAlignment(Alignment a, String labelName) {
+        List<Label> lbls1 = new ArrayList<Label>(1);
+        lbls1.add(new Label(labelName, 0, a.length() - 1, true));
+        List<Label> lbls2 = new ArrayList<Label>(1);
+        lbls2.add(new Label(labelName, 0, a.length() - 1, true));
+        return toLabeledAlignment(a, lbls1, lbls2);
     }
 
     private LabeledAlignment toLabeledAlignment(Alignment a, List<Label> lbls1,
             List<Label> lbls2) {
-        LabeledSequence ls1, ls2;
-        ls1 = new NucleotideLabeledSequence(a.getSequence1(), lbls1);
-        ls2 = new NucleotideLabeledSequence(a.getSequence2(), lbls2);
-        return new LabeledAlignment(ls1, ls2);
+        return new LabeledAlignment(new AlignmentRow(a, true, lbls1),
+                new AlignmentRow(a, false, lbls2));
     }
 
     public void train(LabeledAlignment la) {
+        synchronized (trainingLock) {
+            modelVersion = TRAINING;
+            try {
+                updateScores(la);
+            } finally {
+                modelVersion = trainedVersion();
+            }
+        }
+    }
+
+    private void updateScores(LabeledAlignment la) {
         MultiScoreLearner msl = new BasicMultiScoreLearner();
         msl.train(la);
         for (String labelName : msl.getScoreMatrices().keySet()) {
             GlobalAlignmentAlgorithm gaa = labelToAligner.get(labelName);
             if (gaa == null) {
-                gaa = new NeedlemanWunsch(
-                        msl.getScoreMatrices().get(labelName), msl
-                                .getGapPenaltyFunctions().get(labelName));
-                labelToAligner.put(labelName, gaa);
-            } else {
+                gaa = labelToAligner.putIfAbsent(labelName,
+                        new BandedNeedlemanWunsch(new NeedlemanWunsch(
+                                msl.getScoreMatrices().get(labelName), msl
+                                        .getGapPenaltyFunctions().get(labelName))));
+            }
+            if (gaa != null) {
+                // the engine replaces its parameters rather than changing
+                // them in place, so alignments running meanwhile are not
+                // affected
                 final double WEIGHT = .5;
                 gaa.updateScoreMatrix(msl.getScoreMatrices().get(labelName),
                         WEIGHT);
@@ -284,60 +656,123 @@ public class Aligner {
         }
     }
 
-    // iterates over each sequence eliminating gaps and adjusting labels
-    public LabeledAlignment removeGaps(LabeledAlignment la) {
-
-        // some convenience variables
-        char[] s1 = la.getLS1().getSequence();
-        char[] s2 = la.getLS2().getSequence();
-        List<Label> lbls1 = la.getLS1().getLabels();
-        List<Label> lbls2 = la.getLS2().getLabels();
-
-        // result variables
-        List<Character> s1_ = new LinkedList<Character>(), s2_ = new LinkedList<Character>();
-        List<Label> lbls1_ = new LinkedList<Label>(), lbls2_ = new LinkedList<Label>();
+    // the digest of the scores of each label. An engine that still has the
+    // default scores aligns as if it had never been created, so it is left
+    // out, and a model with default scores only is version 0
+    private long trainedVersion() {
+        int[] defaults = new NeedlemanWunsch().scoringTable().toArray();
+        SortedMap<String, int[]> scores = new TreeMap<String, int[]>();
+        for (Map.Entry<String, GlobalAlignmentAlgorithm> e : labelToAligner
+                .entrySet()) {
+            int[] labelScores = ((BandedNeedlemanWunsch) e.getValue())
+                    .scoringTable().toArray();
+            if (!Arrays.equals(labelScores, defaults))
+                scores.put(e.getKey(), labelScores);
+        }
+        return scores.isEmpty() ? 0 : AlignmentCache.modelVersion(scores);
+    }
 
-        removeGapsHelper(s1, lbls1, s1_, lbls1_);
-        removeGapsHelper(s2, lbls2, s2_, lbls2_);
+    // whether what was aligned with the given version can be kept
+    private boolean isCurrent(long version) {
+        return version != TRAINING && version == modelVersion;
+    }
 
-        return new LabeledAlignment(new NucleotideLabeledSequence(
-                toCharArray(s1_), lbls1_), new NucleotideLabeledSequence(
-                toCharArray(s2_), lbls2_));
+    // eliminates the gaps of each sequence and adjusts its labels
+    public LabeledAlignment removeGaps(LabeledAlignment la) {
+        return new LabeledAlignment(removeGaps(la.getLS1()), removeGaps(la
+                .getLS2()));
     }
 
-    private void removeGapsHelper(char[] s, List<Label> lbls,
-            List<Character> s_, List<Label> lbls_) {
-        // keep track of the current label during the loop
-        Label currLabel = null;
-        Iterator<Label> lblIterator = lbls.iterator();
-        if (lblIterator.hasNext()) {
-            currLabel = lblIterator.next();
+    // ls without its gaps, over the same bases when it has none: a packed
+    // sequence stays packed, and others are viewed rather than copied
+    private LabeledSequence withoutGaps(LabeledSequence ls) {
+        if (ls instanceof PackedLabeledSequence) {
+            PackedSequence packed = ((PackedLabeledSequence) ls)
+                    .getPackedSequence();
+            if (!packed.contains(GapMap.GAP))
+                return new PackedLabeledSequence(packed, labelsWithin(ls
+                        .getLabels(), packed.length()));
+            return removeGaps(ls);
         }
-        int lblStart = -1;
 
-        // iterate over sequence removing gaps and adjusting labels
-        for (int i = 0; i < s.length; i++) {
-            char c = s[i];
+        char[] backing = LabeledSequenceView.backingOf(ls);
+        int offset = LabeledSequenceView.offsetOf(ls);
+        int length = LabeledSequenceView.length(ls);
+        for (int i = offset; i < offset + length; i++) {
+            if (backing[i] == GapMap.GAP)
+                return removeGaps(ls);
+        }
+        return LabeledSequenceView.of(ls, 0, length, labelsWithin(ls
+                .getLabels(), length));
+    }
 
-            // if we're at the start of a new label, save the start location
-            if (currLabel != null && currLabel.getStartIndex() == i)
-                lblStart = s_.size();
+    private LabeledSequence removeGaps(LabeledSequence ls) {
+        if (ls instanceof PackedLabeledSequence)
+            return removeGaps((PackedLabeledSequence) ls);
 
-            // we are ending a label, save it, and move to the next label
-            if (currLabel != null && currLabel.getEndIndex() == i) {
-                int lblEnd = c == '-' ? s_.size() - 1 : s_.size();
-                lbls_.add(new Label(currLabel.toString(), lblStart, lblEnd,
-                        currLabel.userDefined));
+        char[] s = ls.getSequence();
+        GapMap map = new GapMap(s);
+        return new NucleotideLabeledSequence(map.removeGaps(s), ungapped(map,
+                ls.getLabels()));
+    }
 
-                if (lblIterator.hasNext())
-                    currLabel = lblIterator.next();
-                else
-                    currLabel = null;
+    // a packed sequence stays packed, and is read a chunk at a time rather
+    // than unpacked
+    private LabeledSequence removeGaps(PackedLabeledSequence ls) {
+        PackedSequence packed = ls.getPackedSequence();
+        int length = packed.length();
+        char[] chunk = new char[4096];
+        long[] bases = new long[(length + 63) >>> 6];
+        int ungappedLength = 0;
+        for (int start = 0; start < length; start += chunk.length) {
+            int n = Math.min(chunk.length, length - start);
+            packed.getChars(start, start + n, chunk, 0);
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] != GapMap.GAP) {
+                    bases[(start + i) >>> 6] |= 1L << (start + i);
+                    ungappedLength++;
+                }
+            }
+        }
+        char[] ungapped = new char[ungappedLength];
+        int pos = 0;
+        for (int start = 0; start < length; start += chunk.length) {
+            int n = Math.min(chunk.length, length - start);
+            packed.getChars(start, start + n, chunk, 0);
+            for (int i = 0; i < n; i++) {
+                if (chunk[i] != GapMap.GAP)
+                    ungapped[pos++] = chunk[i];
             }
+        }
+        return new PackedLabeledSequence(new PackedSequence(ungapped),
+                ungapped(new GapMap(bases, length), ls.getLabels()));
+    }
+
+    // the labels of a gapped sequence, over its bases only
+    private static List<Label> ungapped(GapMap map, List<Label> labels) {
 
-            if (c != '-')
-                s_.add(c);
+        // a label keeps the bases it covers. Labels are in sequential
+        // order; the first one that does not fit the sequence ends them
+        List<Label> lbls = new ArrayList<Label>(labels.size());
+        for (Label l : labels) {
+            if (l.getStartIndex() < 0 || l.getEndIndex() >= map.gappedLength())
+                break;
+            lbls.add(new Label(l.toString(), map.toUngapped(l.getStartIndex()),
+                    map.toUngapped(l.getEndIndex() + 1) - 1, l.userDefined));
         }
+        return lbls;
+    }
+
+    // copies of the labels, up to the first that does not fit length
+    private static List<Label> labelsWithin(List<Label> labels, int length) {
+        List<Label> lbls = new ArrayList<Label>(labels.size());
+        for (Label l : labels) {
+            if (l.getStartIndex() < 0 || l.getEndIndex() >= length)
+                break;
+            lbls.add(new Label(l.toString(), l.getStartIndex(), l
+                    .getEndIndex(), l.userDefined));
+        }
+        return lbls;
     }
 
     // indices are inclusive
@@ -367,69 +802,228 @@ public class Aligner {
         }
     }
 
-    private char[] toCharArray(List<Character> globalSeq) {
-        char[] charArr = new char[globalSeq.size()];
-        int index = 0;
-        for (Character c : globalSeq) {
-            charArr[index++] = c;
+    // one side of an AlignmentPiece: a user label, or the labels between two
+    // user labels
+    static class Segment {
+        final boolean isUserDefined;
+        final String labelName;
+        final LabeledSequence ls;
+
+        Segment(boolean isUserDefined, String labelName, LabeledSequence ls) {
+            this.isUserDefined = isUserDefined;
+            this.labelName = labelName;
+            this.ls = ls;
         }
-        return charArr;
     }
 
     private class AlignmentPiece {
-        public List<Label> lbls1, lbls2;
-        public char[] seq1, seq2;
-        public int gapCount;
+        public LabeledSequence ls1, ls2;
         public boolean isUserDefined;
         public String labelName;
+
+        public AlignmentPiece(Segment s1, Segment s2) {
+            ls1 = s1.ls;
+            ls2 = s2.ls;
+            isUserDefined = s1.isUserDefined;
+            labelName = s1.labelName;
+        }
     }
 
-    private class AlignmentHelper {
+    // the content of an AlignmentPiece, which is all its alignment depends
+    // on for a given model. The key keeps its own copies of the bases and
+    // labels, so it holds on to none of the caller's arrays, and a sequence
+    // changed in place since the last alignment is a different key
+    private static final class PieceKey {
+        private final String labelName;
+        private final char[] bases1, bases2;
+        private final List<Label> labels1, labels2;
+        private final int hash;
 
-        private StringBuffer s1 = new StringBuffer();
-        private StringBuffer s2 = new StringBuffer();
-        private SortedSet<Label> labels1 = new TreeSet<Label>();
-        private SortedSet<Label> labels2 = new TreeSet<Label>();
-        private LabeledAlignment la = null;
+        PieceKey(AlignmentPiece p) {
+            labelName = p.isUserDefined ? p.labelName : null;
+            bases1 = copy(p.ls1);
+            bases2 = copy(p.ls2);
+            labels1 = copy(p.ls1.getLabels());
+            labels2 = copy(p.ls2.getLabels());
+            hash = 31 * (31 * (31 * (31 * (labelName == null ? 0 : labelName
+                    .hashCode()) + Arrays.hashCode(bases1))
+                    + Arrays.hashCode(bases2))
+                    + labels1.hashCode())
+                    + labels2.hashCode();
+        }
 
-        public LabeledAlignment toLabeledAlignment() {
-            if (la == null) {
-                LabeledSequenceImpl ls1 = new LabeledSequenceImpl(s1.toString()
-                        .toCharArray());
-                for (Label label : labels1) {
-                    ls1.addLabel(label);
-                }
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PieceKey))
+                return false;
+            PieceKey k = (PieceKey) o;
+            return hash == k.hash
+                    && (labelName == null ? k.labelName == null : labelName
+                            .equals(k.labelName))
+                    && labels1.equals(k.labels1) && labels2.equals(k.labels2)
+                    && Arrays.equals(bases1, k.bases1)
+                    && Arrays.equals(bases2, k.bases2);
+        }
 
-                LabeledSequenceImpl ls2 = new LabeledSequenceImpl(s2.toString()
-                        .toCharArray());
-                for (Label label : labels2) {
-                    ls2.addLabel(label);
+        // the bases of ls. Copying them takes less time than packing them,
+        // which an incremental Aligner does for every piece of every
+        // alignment
+        private static char[] copy(LabeledSequence ls) {
+            char[] bases = new char[LabeledSequenceView.length(ls)];
+            LabeledSequenceView.getChars(ls, 0, bases.length, bases, 0);
+            return bases;
+        }
+
+        static List<Label> copy(List<Label> labels) {
+            List<Label> copy = new ArrayList<Label>(labels.size());
+            for (Label l : labels) {
+                copy.add(new Label(l.toString(), l.getStartIndex(), l
+                        .getEndIndex(), l.userDefined));
+            }
+            return copy;
+        }
+    }
+
+    // the aligned pieces of the last alignment of an incremental Aligner.
+    // Only their keys, runs and labels are kept: a piece found again is put
+    // back over the bases of the new piece, so no array of the last
+    // alignment, or of its caller, stays in memory
+    private static class PreviousRun {
+        final long version;
+        private final Map<PieceKey, KeptPiece> pieces =
+            new HashMap<PieceKey, KeptPiece>();
+
+        PreviousRun(long version, PieceKey[] keys, LabeledAlignment[] aligned) {
+            this.version = version;
+            for (int k = 0; k < keys.length; k++)
+                pieces.put(keys[k], new KeptPiece(aligned[k]));
+        }
+
+        /**
+         * @return the alignment of p kept under key, over the bases of p, or
+         *   null
+         */
+        LabeledAlignment get(PieceKey key, AlignmentPiece p) {
+            KeptPiece kept = pieces.get(key);
+            if (kept == null)
+                return null;
+            Alignment a = new Alignment(Alignment.Bases.of(p.ls1),
+                    Alignment.Bases.of(p.ls2), kept.runs);
+            return new LabeledAlignment(new AlignmentRow(a, true, PieceKey
+                    .copy(kept.labels1)), new AlignmentRow(a, false, PieceKey
+                    .copy(kept.labels2)));
+        }
+    }
+
+    private static final class KeptPiece {
+        final int[] runs;
+        final List<Label> labels1, labels2;
+
+        KeptPiece(LabeledAlignment la) {
+            runs = AlignmentRow.alignmentOf(la.getLS1(), la.getLS2()).runs();
+            labels1 = PieceKey.copy(la.getLS1().getLabels());
+            labels2 = PieceKey.copy(la.getLS2().getLabels());
+        }
+    }
+
+    // puts the aligned pieces of an alignment together
+    private static class AlignmentHelper {
+
+        // the pieces, run after run, in one compact Alignment over packed
+        // copies of their bases, which may be the caller's arrays: no row
+        // is built until the result is asked for one
+        static LabeledAlignment assemble(LabeledAlignment[] pieces) {
+            Alignment[] parts = new Alignment[pieces.length];
+            for (int k = 0; k < pieces.length; k++)
+                parts[k] = AlignmentRow.alignmentOf(pieces[k].getLS1(),
+                        pieces[k].getLS2());
+            Alignment a = Alignment.concat(parts).packedCopy();
+
+            List<Label> labels1 = new ArrayList<Label>();
+            List<Label> labels2 = new ArrayList<Label>();
+            int offset = 0;
+            for (int k = 0; k < pieces.length; k++) {
+                labels1.addAll(offset(pieces[k].getLS1().getLabels(), offset));
+                labels2.addAll(offset(pieces[k].getLS2().getLabels(), offset));
+                offset += parts[k].length();
+            }
+            return new LabeledAlignment(new AlignmentRow(a, true, labels(
+                    labels1, a.length())), new AlignmentRow(a, false, labels(
+                    labels2, a.length())));
+        }
+
+        // the labels LabeledSequenceImpl.addLabel() would keep of labels,
+        // on a sequence of the given length
+        @SuppressWarnings("unchecked")
+        private static List<Label> labels(List<Label> labels, int length) {
+            if (isOrdered(labels, length))
+                return labels;
+
+            List<Label> kept = new ArrayList<Label>();
+            for (Label label : new TreeSet<Label>(labels)) {
+                if (label.getStartIndex() < 0 || label.getEndIndex() >= length) {
+                    throw new IllegalArgumentException("Label out of bounds: "
+                            + label + " (" + label.getStartIndex() + ":"
+                            + label.getEndIndex() + ")");
+                }
+                boolean overlaps = false;
+                for (Label l : kept)
+                    overlaps |= l.overlaps(label);
+                if (!overlaps) {
+                    kept.add(label);
+                    Collections.sort(kept);
                 }
-                la = new LabeledAlignment(ls1, ls2);
             }
-            return la;
+            return kept;
         }
 
-        public void append(LabeledAlignment la) {
-            int offset = s1.length();
-            s1.append(la.getLS1().getSequence());
-            for (Label label : la.getLS1().getLabels()) {
-                Label newLabel = new Label(label.toString(), label
-                        .getStartIndex()
-                        + offset, label.getEndIndex() + offset,
-                        label.userDefined);
-                labels1.add(newLabel);
+        static void stream(LabeledAlignment[] pieces, AlignmentSink sink) {
+            int offset1 = 0, offset2 = 0;
+            for (int k = 0; k < pieces.length; k++) {
+                LabeledSequence ls1 = pieces[k].getLS1();
+                LabeledSequence ls2 = pieces[k].getLS2();
+                pieces[k] = null;
+                char[] seq1 = sequenceOf(ls1), seq2 = sequenceOf(ls2);
+                sink.append(seq1, seq2, offset(ls1.getLabels(), offset1),
+                        offset(ls2.getLabels(), offset2));
+                offset1 += seq1.length;
+                offset2 += seq2.length;
             }
+        }
 
-            offset = s2.length();
-            s2.append(la.getLS2().getSequence());
-            for (Label label : la.getLS2().getLabels()) {
-                Label newLabel = new Label(label.toString(), label
-                        .getStartIndex()
+        // the row of a piece, which is not kept by the piece if it had not
+        // been built yet
+        private static char[] sequenceOf(LabeledSequence ls) {
+            return ls instanceof AlignmentRow ? AlignmentRow.copySequence(ls)
+                    : ls.getSequence();
+        }
+
+        private static List<Label> offset(List<Label> labels, int offset) {
+            List<Label> result = new ArrayList<Label>(labels.size());
+            for (Label label : labels) {
+                result.add(new Label(label.toString(), label.getStartIndex()
                         + offset, label.getEndIndex() + offset,
-                        label.userDefined);
-                labels2.add(newLabel);
+                        label.userDefined));
+            }
+            return result;
+        }
+
+        // whether labels are within [0, length), in order and apart
+        private static boolean isOrdered(List<Label> labels, int length) {
+            int end = -1;
+            for (Label label : labels) {
+                if (label.getStartIndex() <= end
+                        || label.getEndIndex() < label.getStartIndex()
+                        || label.getEndIndex() >= length)
+                    return false;
+                end = label.getEndIndex();
             }
+            return true;
         }
     }
 }
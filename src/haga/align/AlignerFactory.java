@@ -20,7 +20,7 @@
 package haga.align;
 
 public class AlignerFactory {
-	private static Aligner singleton;
+	private static volatile Aligner singleton;
 	
 	public static Aligner GetInstance () {
 		return singleton;
@@ -19,32 +19,556 @@
 
 package haga.align;
 
+import haga.PackedLabeledSequence;
+import haga.PackedSequence;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.util.Arrays;
+
+/**
+ * Two sequences aligned column by column. An alignment is kept either as its
+ * two gapped rows, or compactly as the two sequences without gaps and the
+ * runs of edit operations that align them, as in CIGAR: MATCH for a column
+ * of two bases, INSERTION for a base of sequence 2 against a gap, DELETION
+ * for a base of sequence 1 against a gap. A run takes 4 bytes however long
+ * it is, so a compact alignment takes little more than its two sequences.
+ * Each form is built from the other the first time it is asked for.
+ *
+ * The engines return compact alignments, which hold on to the sequences
+ * they were given without copying them. A compact alignment reads its bases
+ * in place, from ranges of arrays or packed sequences (see Bases), so the
+ * Aligner puts its pieces together over the sequences that were aligned,
+ * copying nothing, and then packs the bases of the result, 2 bits to a
+ * base, into copies of its own: the result takes about a quarter of the
+ * memory of its bases, and never reads the caller's arrays.
+ */
 public class Alignment {
-	private char[] s1;
-	private char[] s2;
-	
+
+	public static final char GAP = GapMap.GAP;
+	public static final char MATCH = 'M', INSERTION = 'I', DELETION = 'D';
+
+	// a run is its length << 2 | its operation
+	static final int OP_MATCH = 0, OP_INSERTION = 1, OP_DELETION = 2;
+	static final int MAX_RUN_LENGTH = Integer.MAX_VALUE >>> 2;
+	private static final char[] OPERATIONS = { MATCH, INSERTION, DELETION };
+
+	private final int length;
+	// either form may be null until it is asked for
+	private volatile char[] s1, s2;
+	// the bases of each side, read in place, and in one array once asked for
+	private volatile Bases bases1, bases2;
+	private volatile char[] ungapped1, ungapped2;
+	private volatile int[] runs;
+
+	/**
+	 * @param sequence1 the first row, with GAP for the gaps - is not copied
+	 * @param sequence2 the second row - is not copied
+	 */
 	public Alignment (char[] sequence1, char[] sequence2) {
 		if (sequence1.length != sequence2.length)
 			throw new IllegalArgumentException("arguments must be of equal length");
-		
+
 		this.s1 = sequence1;
 		this.s2 = sequence2;
+		length = sequence1.length;
 	}
-	
+
+	/**
+	 * @param sequence1 the first sequence, without gaps - is not copied
+	 * @param sequence2 the second sequence, without gaps - is not copied
+	 * @param cigar the runs that align them, such as "12M2I30M1D4M"
+	 */
+	public Alignment(char[] sequence1, char[] sequence2, String cigar) {
+		this(sequence1, sequence2, parseCigar(cigar));
+		checkRuns();
+	}
+
+	// trusts runs to use up both sequences
+	Alignment(char[] ungapped1, char[] ungapped2, int[] runs) {
+		this(Bases.of(ungapped1), Bases.of(ungapped2), runs);
+		this.ungapped1 = ungapped1;
+		this.ungapped2 = ungapped2;
+	}
+
+	// trusts runs to use up both sides
+	Alignment(Bases bases1, Bases bases2, int[] runs) {
+		this.bases1 = bases1;
+		this.bases2 = bases2;
+		this.runs = runs;
+		long columns = 0;
+		for (int run : runs)
+			columns += run >>> 2;
+		if (columns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("alignment is too long");
+		length = (int) columns;
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return the first row, with GAP for the gaps - not a copy, which must
+	 *   not be changed
+	 */
 	public char[] getSequence1() {
+		if (s1 == null)
+			s1 = materialize(true);
 		return s1;
 	}
-	
+
+	/**
+	 * @return the second row - not a copy, which must not be changed
+	 */
 	public char[] getSequence2() {
+		if (s2 == null)
+			s2 = materialize(false);
 		return s2;
 	}
-	
+
+	/**
+	 * @return the first sequence without its gaps - not a copy, which must
+	 *   not be changed
+	 */
+	public char[] getUngappedSequence1() {
+		if (ungapped1 == null)
+			ungapped1 = bases1 != null ? bases1.toArray() : new GapMap(s1)
+					.removeGaps(s1);
+		return ungapped1;
+	}
+
+	public char[] getUngappedSequence2() {
+		if (ungapped2 == null)
+			ungapped2 = bases2 != null ? bases2.toArray() : new GapMap(s2)
+					.removeGaps(s2);
+		return ungapped2;
+	}
+
+	/**
+	 * @return a copy of the first sequence without its gaps, or of the
+	 *   second one, which is not kept
+	 */
+	char[] copyUngappedSequence(boolean first) {
+		char[] ungapped = first ? ungapped1 : ungapped2;
+		if (ungapped != null)
+			return ungapped.clone();
+		Bases bases = first ? bases1 : bases2;
+		if (bases != null)
+			return bases.copy();
+		char[] row = first ? s1 : s2;
+		return new GapMap(row).removeGaps(row);
+	}
+
+	/**
+	 * @return the bases of the first side, or of the second one, without
+	 *   copying them when the alignment is compact
+	 */
+	Bases bases(boolean first) {
+		Bases bases = first ? bases1 : bases2;
+		if (bases != null)
+			return bases;
+		return Bases.of(first ? getUngappedSequence1() : getUngappedSequence2());
+	}
+
+	/**
+	 * @return this alignment over the given bases, which must be the ones of
+	 *   its sides, in compact form
+	 */
+	Alignment over(Bases bases1, Bases bases2) {
+		return new Alignment(bases1, bases2, runs());
+	}
+
+	/**
+	 * @return this alignment in compact form, over packed copies of the bases
+	 *   it reads from arrays, so that it does not change with them
+	 */
+	Alignment packedCopy() {
+		return over(bases(true).packedCopy(), bases(false).packedCopy());
+	}
+
+	public int getRunCount() {
+		return runs().length;
+	}
+
+	/**
+	 * @return MATCH, INSERTION or DELETION
+	 */
+	public char getRunOperation(int run) {
+		return OPERATIONS[runs()[run] & 3];
+	}
+
+	public int getRunLength(int run) {
+		return runs()[run] >>> 2;
+	}
+
+	/**
+	 * @return the runs of this alignment, as in "12M2I30M1D4M"
+	 */
+	public String toCigar() {
+		int[] runs = runs();
+		StringBuilder sb = new StringBuilder(4 * runs.length);
+		for (int run : runs)
+			sb.append(run >>> 2).append(OPERATIONS[run & 3]);
+		return sb.toString();
+	}
+
+	int[] runs() {
+		if (runs == null)
+			runs = findRuns(s1, s2);
+		return runs;
+	}
+
+	/**
+	 * Copies a row into dest from offset, without keeping it.
+	 * @param first the first row, or the second one
+	 */
+	void copySequence(boolean first, char[] dest, int offset) {
+		char[] row = first ? s1 : s2;
+		if (row != null) {
+			System.arraycopy(row, 0, dest, offset, length);
+			return;
+		}
+
+		Bases bases = bases(first);
+		int gapOp = first ? OP_INSERTION : OP_DELETION;
+		int pos = offset, base = 0;
+		for (int run : runs) {
+			int runLength = run >>> 2;
+			if ((run & 3) == gapOp) {
+				Arrays.fill(dest, pos, pos + runLength, GAP);
+			} else {
+				bases.getChars(base, base + runLength, dest, pos);
+				base += runLength;
+			}
+			pos += runLength;
+		}
+	}
+
+	/**
+	 * @return the map of the gaps of the first row, built on each call: from
+	 *   the runs when the row itself has not been asked for
+	 */
+	public GapMap getGapMap1() {
+		return gapMap(true);
+	}
+
+	public GapMap getGapMap2() {
+		return gapMap(false);
+	}
+
+	private GapMap gapMap(boolean first) {
+		char[] row = first ? s1 : s2;
+		if (row != null)
+			return new GapMap(row);
+
+		long[] bases = new long[(length + 63) >>> 6];
+		int gapOp = first ? OP_INSERTION : OP_DELETION;
+		int pos = 0;
+		for (int run : runs) {
+			int end = pos + (run >>> 2);
+			if ((run & 3) != gapOp) {
+				for (; pos < end && (pos & 63) != 0; pos++)
+					bases[pos >>> 6] |= 1L << pos;
+				for (; pos + 64 <= end; pos += 64)
+					bases[pos >>> 6] = -1L;
+				for (; pos < end; pos++)
+					bases[pos >>> 6] |= 1L << pos;
+			}
+			pos = end;
+		}
+		return new GapMap(bases, length);
+	}
+
+	private char[] materialize(boolean first) {
+		char[] row = new char[length];
+		copySequence(first, row, 0);
+		return row;
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
-		for (char c : s1) sb.append(c);
+		for (char c : getSequence1()) sb.append(c);
 		sb.append("\n");
-		for (char c : s2) sb.append(c);
+		for (char c : getSequence2()) sb.append(c);
 		return sb.toString();
 	}
+
+	private static int[] findRuns(char[] s1, char[] s2) {
+		Builder b = new Builder();
+		for (int i = 0; i < s1.length; i++) {
+			if (s1[i] == GAP) {
+				if (s2[i] == GAP)
+					throw new IllegalStateException("column " + i
+							+ " is a gap in both sequences");
+				b.add(OP_INSERTION, 1);
+			} else {
+				b.add(s2[i] == GAP ? OP_DELETION : OP_MATCH, 1);
+			}
+		}
+		return b.toRuns(false);
+	}
+
+	private static int[] parseCigar(String cigar) {
+		Builder b = new Builder();
+		long runLength = 0;
+		boolean digits = false;
+		for (int i = 0; i < cigar.length(); i++) {
+			char c = cigar.charAt(i);
+			if (c >= '0' && c <= '9') {
+				runLength = 10 * runLength + c - '0';
+				if (runLength > Integer.MAX_VALUE)
+					throw new IllegalArgumentException("run too long in '"
+							+ cigar + "'");
+				digits = true;
+				continue;
+			}
+			int op = new String(OPERATIONS).indexOf(c);
+			if (op < 0 || !digits)
+				throw new IllegalArgumentException("'" + cigar
+						+ "' is not made of runs of " + new String(OPERATIONS));
+			b.add(op, (int) runLength);
+			runLength = 0;
+			digits = false;
+		}
+		if (digits)
+			throw new IllegalArgumentException("'" + cigar
+					+ "' ends without an operation");
+		return b.toRuns(false);
+	}
+
+	// the runs must use up exactly both sequences
+	void checkRuns() {
+		long bases1 = 0, bases2 = 0;
+		for (int run : runs) {
+			if ((run & 3) > OP_DELETION || run >>> 2 == 0)
+				throw new IllegalArgumentException("invalid run 0x"
+						+ Integer.toHexString(run));
+			if ((run & 3) != OP_INSERTION)
+				bases1 += run >>> 2;
+			if ((run & 3) != OP_DELETION)
+				bases2 += run >>> 2;
+		}
+		if (bases1 != this.bases1.length || bases2 != this.bases2.length)
+			throw new IllegalArgumentException("the runs cover " + bases1
+					+ " and " + bases2 + " bases instead of "
+					+ this.bases1.length + " and " + this.bases2.length);
+	}
+
+	/**
+	 * @return the alignment of the concatenations of the sequences of parts,
+	 *   in compact form, over the bases of the parts
+	 */
+	static Alignment concat(Alignment[] parts) {
+		Bases[] bases1 = new Bases[parts.length], bases2 = new Bases[parts.length];
+		Builder b = new Builder();
+		for (int k = 0; k < parts.length; k++) {
+			bases1[k] = parts[k].bases(true);
+			bases2[k] = parts[k].bases(false);
+			for (int run : parts[k].runs())
+				b.add(run & 3, run >>> 2);
+		}
+		return new Alignment(Bases.concat(bases1), Bases.concat(bases2), b
+				.toRuns(false));
+	}
+
+	/**
+	 * The bases of one side of a compact alignment: ranges of char arrays or
+	 * of packed sequences, one after the other, which are read in place and
+	 * must not change. Ranges that continue each other in the same array are
+	 * merged, so the pieces of one sequence make a single range again.
+	 */
+	static final class Bases {
+		// range r is chars[r], or packed[r] when that is null, from offsets[r]
+		private final char[][] chars;
+		private final PackedSequence[] packed;
+		private final int[] offsets, lengths;
+		// where each range starts in the bases
+		private final int[] starts;
+		final int length;
+
+		private Bases(char[][] chars, PackedSequence[] packed, int[] offsets,
+				int[] lengths) {
+			this.chars = chars;
+			this.packed = packed;
+			this.offsets = offsets;
+			this.lengths = lengths;
+			starts = new int[lengths.length];
+			long total = 0;
+			for (int r = 0; r < lengths.length; r++) {
+				starts[r] = (int) total;
+				total += lengths[r];
+			}
+			if (total > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("too many bases");
+			length = (int) total;
+		}
+
+		static Bases of(char[] seq) {
+			return new Bases(new char[][] { seq }, new PackedSequence[1],
+					new int[] { 0 }, new int[] { seq.length });
+		}
+
+		/**
+		 * @return the bases of ls, read in place: the range of a view, or the
+		 *   packed bases of a packed sequence
+		 */
+		static Bases of(LabeledSequence ls) {
+			if (ls instanceof PackedLabeledSequence) {
+				PackedSequence p = ((PackedLabeledSequence) ls)
+						.getPackedSequence();
+				return new Bases(new char[1][], new PackedSequence[] { p },
+						new int[] { 0 }, new int[] { p.length() });
+			}
+			return new Bases(new char[][] { LabeledSequenceView.backingOf(ls) },
+					new PackedSequence[1], new int[] { LabeledSequenceView
+							.offsetOf(ls) }, new int[] { LabeledSequenceView
+							.length(ls) });
+		}
+
+		static Bases concat(Bases[] parts) {
+			int count = 0;
+			for (Bases part : parts)
+				count += part.lengths.length;
+			char[][] chars = new char[count][];
+			PackedSequence[] packed = new PackedSequence[count];
+			int[] offsets = new int[count], lengths = new int[count];
+			int n = 0;
+			for (Bases part : parts) {
+				for (int r = 0; r < part.lengths.length; r++) {
+					if (part.lengths[r] == 0)
+						continue;
+					if (n > 0 && chars[n - 1] == part.chars[r]
+							&& packed[n - 1] == part.packed[r]
+							&& offsets[n - 1] + lengths[n - 1] == part.offsets[r]) {
+						lengths[n - 1] += part.lengths[r];
+						continue;
+					}
+					chars[n] = part.chars[r];
+					packed[n] = part.packed[r];
+					offsets[n] = part.offsets[r];
+					lengths[n] = part.lengths[r];
+					n++;
+				}
+			}
+			return new Bases(Arrays.copyOf(chars, n), Arrays.copyOf(packed, n),
+					Arrays.copyOf(offsets, n), Arrays.copyOf(lengths, n));
+		}
+
+		/**
+		 * Copies the bases from start (inclusive) to end (exclusive) into dest
+		 * from destStart.
+		 */
+		void getChars(int start, int end, char[] dest, int destStart) {
+			int r = Arrays.binarySearch(starts, start);
+			if (r < 0)
+				r = -r - 2;
+			while (start < end) {
+				// skip the empty ranges
+				while (starts[r] + lengths[r] <= start)
+					r++;
+				int from = offsets[r] + start - starts[r];
+				int n = Math.min(end, starts[r] + lengths[r]) - start;
+				if (chars[r] != null)
+					System.arraycopy(chars[r], from, dest, destStart, n);
+				else
+					packed[r].getChars(from, from + n, dest, destStart);
+				start += n;
+				destStart += n;
+			}
+		}
+
+		/**
+		 * @return the bases in one array: the array they are in when they are
+		 *   all of it, or else a copy
+		 */
+		char[] toArray() {
+			if (chars.length == 1 && chars[0] != null && offsets[0] == 0
+					&& lengths[0] == chars[0].length)
+				return chars[0];
+			return copy();
+		}
+
+		char[] copy() {
+			char[] copy = new char[length];
+			getChars(0, length, copy, 0);
+			return copy;
+		}
+
+		/**
+		 * @return the same bases, with the ranges of char arrays packed into
+		 *   copies of their own; packed ranges never change and are kept
+		 */
+		Bases packedCopy() {
+			PackedSequence[] copies = packed.clone();
+			int[] starts = offsets.clone();
+			for (int r = 0; r < chars.length; r++) {
+				if (chars[r] != null) {
+					copies[r] = new PackedSequence(chars[r], offsets[r],
+							offsets[r] + lengths[r]);
+					starts[r] = 0;
+				}
+			}
+			return new Bases(new char[chars.length][], copies, starts, lengths);
+		}
+	}
+
+	/**
+	 * Collects the runs of an alignment one operation at a time, merging the
+	 * ones that continue a run. A traceback adds them from the last column.
+	 */
+	static final class Builder {
+		private int[] runs = new int[16];
+		private int count;
+
+		void add(int op) {
+			if (count > 0 && (runs[count - 1] & 3) == op
+					&& runs[count - 1] >>> 2 < MAX_RUN_LENGTH) {
+				runs[count - 1] += 4;
+			} else {
+				append(4 | op);
+			}
+		}
+
+		void add(int op, int runLength) {
+			while (runLength > 0) {
+				int last = count == 0 ? -1 : runs[count - 1];
+				if (last >= 0 && (last & 3) == op
+						&& last >>> 2 < MAX_RUN_LENGTH) {
+					int more = Math.min(runLength, MAX_RUN_LENGTH - (last >>> 2));
+					runs[count - 1] += more << 2;
+					runLength -= more;
+				} else {
+					int more = Math.min(runLength, MAX_RUN_LENGTH);
+					append(more << 2 | op);
+					runLength -= more;
+				}
+			}
+		}
+
+		private void append(int run) {
+			if (count == runs.length)
+				runs = Arrays.copyOf(runs, 2 * count);
+			runs[count++] = run;
+		}
+
+		/**
+		 * @param reversed whether the runs were added from the last column
+		 */
+		int[] toRuns(boolean reversed) {
+			int[] result = Arrays.copyOf(runs, count);
+			if (reversed) {
+				for (int i = 0, j = count - 1; i < j; i++, j--) {
+					int tmp = result[i];
+					result[i] = result[j];
+					result[j] = tmp;
+				}
+			}
+			return result;
+		}
+	}
 }
@@ -0,0 +1,619 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * The alignments of an Aligner (see Aligner.setCache()), kept so that
+ * aligning the same sequences again with the same model returns at once.
+ * Alignments are keyed by a digest of both sequences, bases and labels, and
+ * by the model version of the Aligner, which train() changes.
+ *
+ * The alignments used least recently are dropped once the alignments in
+ * memory take more than the given number of bytes. Given a directory, the
+ * cache also writes each alignment there, and finds the alignments dropped
+ * from memory, or written by an earlier run, in it. The directory has a
+ * budget of its own: once its files take more, the ones modified longest
+ * ago are deleted, down to three quarters of the budget. Reading a file
+ * marks it modified, so the files read recently stay. Its files can also be
+ * deleted at any time.
+ *
+ * Alignments are kept in compact form (see Alignment), as the two sequences
+ * without gaps and the runs that align them, so an alignment takes about as
+ * much memory, or disk, as its sequences.
+ *
+ * The cache holds copies: the alignments it returns can be changed freely.
+ * It can be shared between threads, and between Aligners trained the same
+ * way.
+ */
+public final class AlignmentCache {
+
+	// the bytes an alignment takes besides its bases, runs and labels
+	private static final int ENTRY_OVERHEAD = 200;
+	private static final int LABEL_SIZE = 64;
+
+	private static final int FILE_MAGIC = 0x48414c32;
+	// the fewest bytes a label takes in a file
+	private static final int MIN_LABEL_BYTES = 11;
+	private static final String FILE_SUFFIX = ".aln";
+
+	// the kinds of key, so whole alignments and pieces never collide
+	private static final byte ALIGNMENT = 0, PIECE = 1;
+
+	private final long maxBytes;
+	private final File directory;
+	private final long maxDiskBytes;
+	// about the bytes of the files in directory: counted when the cache is
+	// created, then kept up to date with the files it writes and deletes.
+	// Eviction counts them again, which takes in the files other caches
+	// wrote to the same directory
+	private long diskBytes;
+	private final Object diskLock = new Object();
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<String, Entry>(16, .75f, true);
+	private long bytes;
+	private long hits, misses;
+
+	/**
+	 * @param maxBytes about the most memory the alignments kept may take
+	 */
+	public AlignmentCache(long maxBytes) {
+		this(maxBytes, null, 0);
+	}
+
+	/**
+	 * @param directory where the alignments are also written, or null to keep
+	 *   them in memory only. It is created if it does not exist
+	 * @param maxDiskBytes about the most the files in directory may take
+	 */
+	public AlignmentCache(long maxBytes, File directory, long maxDiskBytes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("'maxBytes' cannot be negative");
+		if (maxDiskBytes < 0)
+			throw new IllegalArgumentException(
+					"'maxDiskBytes' cannot be negative");
+		if (directory != null && !directory.isDirectory()
+				&& !directory.mkdirs())
+			throw new IllegalArgumentException("Cannot create directory "
+					+ directory);
+
+		this.maxBytes = maxBytes;
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		if (directory != null) {
+			for (File f : files())
+				diskBytes += f.length();
+		}
+	}
+
+	/**
+	 * @return a copy of the alignment kept under key, or null
+	 */
+	LabeledAlignment get(String key) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(key);
+		}
+		if (e == null && directory != null) {
+			e = read(key);
+			if (e != null)
+				keep(key, e);
+		}
+		synchronized (this) {
+			if (e == null)
+				misses++;
+			else
+				hits++;
+		}
+		return e == null ? null : e.toLabeledAlignment();
+	}
+
+	/**
+	 * Keeps a copy of la under key.
+	 */
+	void put(String key, LabeledAlignment la) {
+		Entry e = new Entry(la);
+		keep(key, e);
+		if (directory != null)
+			write(key, e);
+	}
+
+	private synchronized void keep(String key, Entry e) {
+		Entry old = entries.remove(key);
+		if (old != null)
+			bytes -= old.size;
+		if (e.size > maxBytes)
+			return;
+
+		entries.put(key, e);
+		bytes += e.size;
+		Iterator<Entry> eldest = entries.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= eldest.next().size;
+			eldest.remove();
+		}
+	}
+
+	/**
+	 * Drops the alignments in memory; the ones in the directory stay.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * @return the number of alignments in memory
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return about the bytes taken by the alignments in memory
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return about the bytes taken by the files in the directory, or 0
+	 *   without one
+	 */
+	public long getDiskBytes() {
+		synchronized (diskLock) {
+			return diskBytes;
+		}
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return the SHA-1 digest of the bases and labels of ls, read without
+	 *   copying a view or unpacking a packed sequence
+	 */
+	static byte[] digest(LabeledSequence ls) {
+		MessageDigest md = newDigest();
+		// a view is read in place, and a packed sequence a chunk at a time
+		int length = LabeledSequenceView.length(ls);
+		char[] chunk = new char[Math.max(16, Math.min(length, 4096))];
+		byte[] buf = new byte[2 * chunk.length];
+		md.update(buf, 0, putInt(buf, 0, length));
+		for (int start = 0; start < length; start += chunk.length) {
+			int n = Math.min(chunk.length, length - start);
+			LabeledSequenceView.getChars(ls, start, start + n, chunk, 0);
+			for (int i = 0; i < n; i++) {
+				buf[2 * i] = (byte) (chunk[i] >> 8);
+				buf[2 * i + 1] = (byte) chunk[i];
+			}
+			md.update(buf, 0, 2 * n);
+		}
+
+		int pos = putInt(buf, 0, ls.getLabels().size());
+		md.update(buf, 0, pos);
+		for (Label l : ls.getLabels()) {
+			update(md, l.toString());
+			pos = putInt(buf, 0, l.getStartIndex());
+			pos = putInt(buf, pos, l.getEndIndex());
+			buf[pos++] = (byte) (l.userDefined ? 1 : 0);
+			md.update(buf, 0, pos);
+		}
+		return md.digest();
+	}
+
+	/**
+	 * @param scores the scoring parameters of each label of a trained model
+	 * @return the digest of scores, which is never 0 nor Aligner.TRAINING
+	 */
+	static long modelVersion(SortedMap<String, int[]> scores) {
+		MessageDigest md = newDigest();
+		for (Map.Entry<String, int[]> e : scores.entrySet()) {
+			update(md, e.getKey());
+			int[] values = e.getValue();
+			byte[] buf = new byte[4 + 4 * values.length];
+			int pos = putInt(buf, 0, values.length);
+			for (int v : values)
+				pos = putInt(buf, pos, v);
+			md.update(buf);
+		}
+		byte[] digest = md.digest();
+		long version = 0;
+		for (int b = 0; b < 8; b++)
+			version = version << 8 | (digest[b] & 0xff);
+		return version == 0 || version == Aligner.TRAINING ? 1 : version;
+	}
+
+	/**
+	 * @return the key of the alignment of the sequences of the given digests,
+	 *   by a model of the given version
+	 */
+	static String alignmentKey(long version, byte[] digest1, byte[] digest2) {
+		return key(ALIGNMENT, version, "", digest1, digest2);
+	}
+
+	/**
+	 * @param labelName the user label of the piece, or null for a background
+	 *   piece
+	 */
+	static String pieceKey(long version, String labelName, byte[] digest1,
+			byte[] digest2) {
+		return key(PIECE, version, labelName == null ? "" : "+" + labelName,
+				digest1, digest2);
+	}
+
+	private static String key(byte kind, long version, String name,
+			byte[] digest1, byte[] digest2) {
+		MessageDigest md = newDigest();
+		md.update(kind);
+		byte[] buf = new byte[8];
+		for (int b = 0; b < 8; b++)
+			buf[b] = (byte) (version >>> (56 - 8 * b));
+		md.update(buf);
+		update(md, name);
+		md.update(digest1);
+		md.update(digest2);
+
+		StringBuilder sb = new StringBuilder(40);
+		for (byte b : md.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 15, 16));
+			sb.append(Character.forDigit(b & 15, 16));
+		}
+		return sb.toString();
+	}
+
+	// cloning a digest is much cheaper than looking one up, which matters
+	// for the many small pieces of an incremental Aligner
+	private static final MessageDigest SHA1 = lookUpDigest();
+
+	private static MessageDigest newDigest() {
+		try {
+			return (MessageDigest) SHA1.clone();
+		} catch (CloneNotSupportedException e) {
+			return lookUpDigest();
+		}
+	}
+
+	private static MessageDigest lookUpDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// the length, then the characters of s
+	private static void update(MessageDigest md, String s) {
+		byte[] buf = new byte[4 + 2 * s.length()];
+		int pos = putInt(buf, 0, s.length());
+		for (int i = 0; i < s.length(); i++) {
+			buf[pos++] = (byte) (s.charAt(i) >> 8);
+			buf[pos++] = (byte) s.charAt(i);
+		}
+		md.update(buf);
+	}
+
+	private static int putInt(byte[] buf, int pos, int value) {
+		buf[pos++] = (byte) (value >>> 24);
+		buf[pos++] = (byte) (value >>> 16);
+		buf[pos++] = (byte) (value >>> 8);
+		buf[pos++] = (byte) value;
+		return pos;
+	}
+
+	// the entry written under key, or null if there is none. A file that
+	// cannot be read, whatever is wrong with it, is deleted
+	private Entry read(String key) {
+		File file = new File(directory, key + FILE_SUFFIX);
+		if (!file.isFile())
+			return null;
+		// no array read can be longer than the file
+		long limit = file.length();
+		Entry e = null;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(file)));
+			if (in.readInt() == FILE_MAGIC) {
+				e = new Entry(readSequence(in, limit), readSequence(in, limit),
+						readRuns(in, limit), readLabels(in, limit),
+						readLabels(in, limit));
+				e.check();
+			}
+		} catch (IOException ioe) {
+			e = null;
+		} catch (RuntimeException re) {
+			e = null;
+		} finally {
+			close(in);
+		}
+		if (e == null)
+			delete(file);
+		else
+			file.setLastModified(System.currentTimeMillis());
+		return e;
+	}
+
+	// writes e under key through a temporary file, so a reader never sees
+	// half a file. A failure only means the entry is not on disk
+	private void write(String key, Entry e) {
+		File file = new File(directory, key + FILE_SUFFIX);
+		File tmp = null;
+		DataOutputStream out = null;
+		try {
+			tmp = File.createTempFile(key, ".tmp", directory);
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tmp)));
+			out.writeInt(FILE_MAGIC);
+			writeSequence(out, e.ungapped1);
+			writeSequence(out, e.ungapped2);
+			writeRuns(out, e.runs);
+			writeLabels(out, e.labels1);
+			writeLabels(out, e.labels2);
+			out.close();
+			out = null;
+			synchronized (diskLock) {
+				long replaced = file.length();
+				if (!tmp.renameTo(file)) {
+					file.delete();
+					tmp.renameTo(file);
+				}
+				diskBytes += file.length() - replaced;
+				if (diskBytes > maxDiskBytes)
+					evict(file);
+			}
+		} catch (IOException ioe) {
+			// the entry stays in memory only
+		} finally {
+			close(out);
+			if (tmp != null && tmp.exists())
+				tmp.delete();
+		}
+	}
+
+	// deletes the files modified longest ago, other than latest unless it
+	// is over the budget on its own, until the files take at most three
+	// quarters of the budget. Called holding diskLock
+	private void evict(File latest) {
+		File[] files = files();
+		final long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		long total = 0;
+		for (int k = 0; k < files.length; k++) {
+			order[k] = k;
+			modified[k] = files[k].lastModified();
+			total += files[k].length();
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer k1, Integer k2) {
+				return modified[k1] < modified[k2] ? -1
+						: modified[k1] > modified[k2] ? 1 : 0;
+			}
+		});
+
+		long target = maxDiskBytes / 4 * 3;
+		for (int k = 0; k < order.length && total > target; k++) {
+			File f = files[order[k]];
+			if (f.equals(latest) && f.length() <= maxDiskBytes)
+				continue;
+			long length = f.length();
+			if (f.delete())
+				total -= length;
+		}
+		diskBytes = total;
+	}
+
+	private void delete(File file) {
+		synchronized (diskLock) {
+			long length = file.length();
+			if (file.delete())
+				diskBytes -= length;
+		}
+	}
+
+	// the alignment files in the directory
+	private File[] files() {
+		File[] files = directory.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				return f.getName().endsWith(FILE_SUFFIX) && f.isFile();
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	// the length of an array of the given bytes per element, at most limit
+	// bytes in all
+	private static int readLength(DataInputStream in, int elementBytes,
+			long limit) throws IOException {
+		int length = in.readInt();
+		if (length < 0 || (long) length * elementBytes > limit)
+			throw new IOException("corrupt length " + length);
+		return length;
+	}
+
+	private static char[] readSequence(DataInputStream in, long limit)
+			throws IOException {
+		char[] seq = new char[readLength(in, 2, limit)];
+		for (int i = 0; i < seq.length; i++)
+			seq[i] = in.readChar();
+		return seq;
+	}
+
+	private static void writeSequence(DataOutputStream out, char[] seq)
+			throws IOException {
+		out.writeInt(seq.length);
+		for (char c : seq)
+			out.writeChar(c);
+	}
+
+	private static int[] readRuns(DataInputStream in, long limit)
+			throws IOException {
+		int[] runs = new int[readLength(in, 4, limit)];
+		for (int i = 0; i < runs.length; i++)
+			runs[i] = in.readInt();
+		return runs;
+	}
+
+	private static void writeRuns(DataOutputStream out, int[] runs)
+			throws IOException {
+		out.writeInt(runs.length);
+		for (int run : runs)
+			out.writeInt(run);
+	}
+
+	private static Label[] readLabels(DataInputStream in, long limit)
+			throws IOException {
+		Label[] labels = new Label[readLength(in, MIN_LABEL_BYTES, limit)];
+		for (int i = 0; i < labels.length; i++)
+			labels[i] = new Label(in.readUTF(), in.readInt(), in.readInt(), in
+					.readBoolean());
+		return labels;
+	}
+
+	private static void writeLabels(DataOutputStream out, Label[] labels)
+			throws IOException {
+		out.writeInt(labels.length);
+		for (Label l : labels) {
+			out.writeUTF(l.toString());
+			out.writeInt(l.getStartIndex());
+			out.writeInt(l.getEndIndex());
+			out.writeBoolean(l.userDefined);
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
+			// nothing was lost
+		}
+	}
+
+	// an alignment in compact form, copied so that its owner cannot change it
+	private static class Entry {
+		final char[] ungapped1, ungapped2;
+		final int[] runs;
+		final Label[] labels1, labels2;
+		final long size;
+
+		Entry(LabeledAlignment la) {
+			this(AlignmentRow.alignmentOf(la.getLS1(), la.getLS2()), copy(la
+					.getLS1().getLabels()), copy(la.getLS2().getLabels()));
+		}
+
+		private Entry(Alignment a, Label[] labels1, Label[] labels2) {
+			this(a.copyUngappedSequence(true), a.copyUngappedSequence(false), a
+					.runs().clone(), labels1, labels2);
+		}
+
+		Entry(char[] ungapped1, char[] ungapped2, int[] runs, Label[] labels1,
+				Label[] labels2) {
+			this.ungapped1 = ungapped1;
+			this.ungapped2 = ungapped2;
+			this.runs = runs;
+			this.labels1 = labels1;
+			this.labels2 = labels2;
+			size = ENTRY_OVERHEAD + 2L * (ungapped1.length + ungapped2.length)
+					+ 4L * runs.length + LABEL_SIZE
+					* (labels1.length + labels2.length);
+		}
+
+		/**
+		 * Checks an entry read from a file.
+		 * @throws IllegalArgumentException if the runs do not align the
+		 *   sequences, or a label is outside the alignment
+		 */
+		void check() {
+			Alignment a = new Alignment(ungapped1, ungapped2, runs);
+			a.checkRuns();
+			checkLabels(labels1, a.length());
+			checkLabels(labels2, a.length());
+		}
+
+		private static void checkLabels(Label[] labels, int length) {
+			for (Label l : labels) {
+				if (l.getStartIndex() < 0 || l.getStartIndex() > l.getEndIndex()
+						|| l.getEndIndex() >= length)
+					throw new IllegalArgumentException("label " + l
+							+ " is outside the alignment");
+			}
+		}
+
+		LabeledAlignment toLabeledAlignment() {
+			Alignment a = new Alignment(ungapped1.clone(), ungapped2.clone(),
+					runs.clone());
+			return new LabeledAlignment(new AlignmentRow(a, true,
+					toList(labels1)), new AlignmentRow(a, false, toList(labels2)));
+		}
+
+		private static List<Label> toList(Label[] labels) {
+			List<Label> copies = new ArrayList<Label>(labels.length);
+			for (Label l : labels)
+				copies.add(copy(l));
+			return copies;
+		}
+
+		private static Label[] copy(List<Label> labels) {
+			Label[] copies = new Label[labels.size()];
+			int i = 0;
+			for (Label l : labels)
+				copies[i++] = copy(l);
+			return copies;
+		}
+
+		private static Label copy(Label l) {
+			return new Label(l.toString(), l.getStartIndex(), l.getEndIndex(),
+					l.userDefined);
+		}
+	}
+}
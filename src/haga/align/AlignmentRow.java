@@ -0,0 +1,115 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+
+import java.util.List;
+
+/**
+ * One row of an Alignment, with its labels. The gapped row is only built
+ * when getSequence() is first called, so the alignments an Aligner returns
+ * take little more than their two sequences until they are shown; code that
+ * only needs the runs or the gaps can get them from getAlignment().
+ */
+public final class AlignmentRow implements LabeledSequence {
+
+	private final Alignment alignment;
+	private final boolean first;
+	private final List<Label> labels;
+
+	/**
+	 * @param first whether this is the first row of alignment, or the second
+	 * @param labels - is not copied
+	 */
+	public AlignmentRow(Alignment alignment, boolean first, List<Label> labels) {
+		if (alignment == null)
+			throw new IllegalArgumentException("'alignment' cannot be null");
+		if (labels == null)
+			throw new IllegalArgumentException("'labels' cannot be null");
+
+		this.alignment = alignment;
+		this.first = first;
+		this.labels = labels;
+	}
+
+	public Alignment getAlignment() {
+		return alignment;
+	}
+
+	public boolean isFirst() {
+		return first;
+	}
+
+	/**
+	 * @return the number of columns, without building the row
+	 */
+	public int length() {
+		return alignment.length();
+	}
+
+	/**
+	 * @return the map of the gaps of this row, built on each call
+	 */
+	public GapMap getGapMap() {
+		return first ? alignment.getGapMap1() : alignment.getGapMap2();
+	}
+
+	/**
+	 * @returns not a copy
+	 */
+	public List<Label> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @returns not a copy, and kept by the Alignment once built
+	 */
+	public char[] getSequence() {
+		return first ? alignment.getSequence1() : alignment.getSequence2();
+	}
+
+	/**
+	 * @return a copy of the sequence of ls, which for an AlignmentRow is built
+	 *   without keeping the row
+	 */
+	static char[] copySequence(LabeledSequence ls) {
+		if (!(ls instanceof AlignmentRow))
+			return ls.getSequence().clone();
+		AlignmentRow row = (AlignmentRow) ls;
+		char[] copy = new char[row.length()];
+		row.alignment.copySequence(row.first, copy, 0);
+		return copy;
+	}
+
+	/**
+	 * @return the Alignment whose rows ls1 and ls2 are, or a new one of their
+	 *   sequences
+	 */
+	static Alignment alignmentOf(LabeledSequence ls1, LabeledSequence ls2) {
+		if (ls1 instanceof AlignmentRow && ls2 instanceof AlignmentRow) {
+			AlignmentRow row1 = (AlignmentRow) ls1, row2 = (AlignmentRow) ls2;
+			if (row1.alignment == row2.alignment && row1.first && !row2.first)
+				return row1.alignment;
+		}
+		return new Alignment(ls1.getSequence(), ls2.getSequence());
+	}
+}
@@ -0,0 +1,43 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.Label;
+
+import java.util.List;
+
+/**
+ * Receives an alignment from Aligner.align() piece by piece, in order, so
+ * it can be written out without the gapped sequences ever being put
+ * together in memory.
+ */
+public interface AlignmentSink {
+
+	/**
+	 * @param seq1 the next columns of LS1 of the alignment, with gaps; not a
+	 *   copy, and not to be changed
+	 * @param seq2 the same columns of LS2, as long as seq1
+	 * @param labels1 the labels of seq1, with their positions in the whole
+	 *   alignment
+	 * @param labels2 the labels of seq2, likewise
+	 */
+	public void append(char[] seq1, char[] seq2, List<Label> labels1,
+			List<Label> labels2);
+}
@@ -0,0 +1,471 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.NucleotideLabeledSequence;
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A seed-and-extend GlobalAlignmentAlgorithm for long, syntenic sequences.
+ * Sequences shorter than the minimum anchored length are handed to the wrapped
+ * engine unchanged. Longer ones are aligned as follows:
+ *
+ * 1. the minimizers (the smallest k-mer, by hash, of every window of
+ *    consecutive k-mers) of both sequences are collected, and those that occur
+ *    exactly once in each sequence become anchors;
+ * 2. the best colinear chain of anchors is kept, favouring anchors close to
+ *    the diagonal of their neighbours, and overlapping anchors on the same
+ *    diagonal are merged into one exact match;
+ * 3. the anchors are aligned base to base, and the regions between them are
+ *    aligned the same way, recursively, so the wrapped engine only sees short
+ *    regions.
+ *
+ * The labels of each region are passed on to the engine, so label-aware
+ * engines still apply. The result is not guaranteed to be optimal: it is the
+ * best alignment that goes through the anchors.
+ */
+public class AnchoredAligner implements GlobalAlignmentAlgorithm {
+
+	public static final int DEFAULT_K = 16;
+	public static final int DEFAULT_WINDOW = 8;
+	public static final int DEFAULT_MIN_ANCHORED_LENGTH = 1 << 15;
+
+	// number of preceding anchors (by position in the first sequence) an
+	// anchor can be chained to
+	private static final int CHAIN_LOOKBACK = 64;
+
+	private final GlobalAlignmentAlgorithm engine;
+	private volatile int k = DEFAULT_K;
+	private volatile int window = DEFAULT_WINDOW;
+	private volatile int minAnchoredLength = DEFAULT_MIN_ANCHORED_LENGTH;
+
+	public AnchoredAligner() {
+		this(new BandedNeedlemanWunsch());
+	}
+
+	/**
+	 * @param engine aligns the regions between anchors, and the sequences that
+	 *   are too short to be anchored
+	 */
+	public AnchoredAligner(GlobalAlignmentAlgorithm engine) {
+		if (engine == null)
+			throw new IllegalArgumentException("'engine' cannot be null");
+
+		this.engine = engine;
+	}
+
+	/**
+	 * @param k the length of the anchors, between 1 and 16
+	 */
+	public void setK(int k) {
+		if (k < 1 || k > 16)
+			throw new IllegalArgumentException("'k' must be between 1 and 16");
+
+		this.k = k;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * @param window the number of consecutive k-mers a minimizer is chosen
+	 *   from. 1 makes every k-mer a candidate anchor
+	 */
+	public void setWindow(int window) {
+		if (window < 1)
+			throw new IllegalArgumentException("'window' must be positive");
+
+		this.window = window;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * @param length regions where either sequence is shorter than this are
+	 *   aligned by the wrapped engine alone
+	 */
+	public void setMinAnchoredLength(int length) {
+		if (length < 1)
+			throw new IllegalArgumentException("'length' must be positive");
+
+		minAnchoredLength = length;
+	}
+
+	public int getMinAnchoredLength() {
+		return minAnchoredLength;
+	}
+
+	@Override
+	public Alignment align(LabeledSequence ls1, LabeledSequence ls2) {
+		if (!isAnchored(ls1.getSequence().length, ls2.getSequence().length, k,
+				window, minAnchoredLength))
+			return engine.align(ls1, ls2);
+
+		Anchoring anchoring = new Anchoring(ls1, ls2, true);
+		anchoring.align(0, ls1.getSequence().length, 0,
+				ls2.getSequence().length);
+		return anchoring.toAlignment();
+	}
+
+	/**
+	 * @return the sum of the scores of the anchors and of the regions between
+	 *   them, as computed by the wrapped engine
+	 */
+	@Override
+	public int score(LabeledSequence ls1, LabeledSequence ls2) {
+		if (!isAnchored(ls1.getSequence().length, ls2.getSequence().length, k,
+				window, minAnchoredLength))
+			return engine.score(ls1, ls2);
+
+		Anchoring anchoring = new Anchoring(ls1, ls2, false);
+		anchoring.align(0, ls1.getSequence().length, 0,
+				ls2.getSequence().length);
+		return anchoring.score;
+	}
+
+	private static boolean isAnchored(int n, int m, int k, int window,
+			int minLength) {
+		return Math.min(n, m) >= Math.max(minLength, k + window);
+	}
+
+	// the state of one call to align() or score(). The settings are read
+	// once, so a concurrent change does not mix two values of k
+	private class Anchoring {
+		final int k = AnchoredAligner.this.k;
+		final int window = AnchoredAligner.this.window;
+		final int minLength = minAnchoredLength;
+		final char[] str1, str2;
+		final Label[] labels1, labels2;
+		final boolean traceback;
+		// the aligned regions, in order, to be copied once into the result
+		List<char[]> parts1, parts2;
+		int length;
+		int score;
+
+		Anchoring(LabeledSequence ls1, LabeledSequence ls2, boolean traceback) {
+			str1 = ls1.getSequence();
+			str2 = ls2.getSequence();
+			labels1 = ls1.getLabels().toArray(new Label[0]);
+			labels2 = ls2.getLabels().toArray(new Label[0]);
+			this.traceback = traceback;
+			if (traceback) {
+				parts1 = new ArrayList<char[]>();
+				parts2 = new ArrayList<char[]>();
+			}
+		}
+
+		// aligns str1[start1, end1) with str2[start2, end2)
+		void align(int start1, int end1, int start2, int end2) {
+			int n = end1 - start1;
+			int m = end2 - start2;
+			if (n == 0 || m == 0) {
+				emitGaps(start1, end1, start2, end2);
+				return;
+			}
+			if (!isAnchored(n, m, k, window, minLength)) {
+				emitEngine(start1, end1, start2, end2);
+				return;
+			}
+
+			int[][] chain = chain(start1, end1, start2, end2);
+			if (chain[0].length == 0) {
+				emitEngine(start1, end1, start2, end2);
+				return;
+			}
+
+			int prev1 = start1, prev2 = start2;
+			for (int a = 0; a < chain[0].length; a++) {
+				int a1 = chain[0][a], a2 = chain[1][a], length = chain[2][a];
+				align(prev1, a1, prev2, a2);
+				emitAnchor(a1, a2, length);
+				prev1 = a1 + length;
+				prev2 = a2 + length;
+			}
+			align(prev1, end1, prev2, end2);
+		}
+
+		/**
+		 * @return the start in str1, the start in str2 and the length of the
+		 *   colinear anchors of the region, in order and without overlaps
+		 */
+		int[][] chain(int start1, int end1, int start2, int end2) {
+			long[] unique1 = uniqueMinimizers(str1, start1, end1, k, window);
+			long[] unique2 = uniqueMinimizers(str2, start2, end2, k, window);
+
+			// join on the k-mer, then sort the anchors by position in str1.
+			// The signed shift compares k-mers in the order they were sorted
+			long[] anchors = new long[Math.min(unique1.length, unique2.length)];
+			int count = 0;
+			for (int i = 0, j = 0; i < unique1.length && j < unique2.length;) {
+				long kmer1 = unique1[i] >> 32, kmer2 = unique2[j] >> 32;
+				if (kmer1 < kmer2) {
+					i++;
+				} else if (kmer1 > kmer2) {
+					j++;
+				} else {
+					anchors[count++] = (unique1[i] << 32)
+							| (unique2[j] & 0xffffffffL);
+					i++;
+					j++;
+				}
+			}
+			anchors = Arrays.copyOf(anchors, count);
+			Arrays.sort(anchors);
+
+			// best chain of anchors with increasing positions in both
+			// sequences: each anchor gains the bases it adds to the chain and
+			// loses the shift in diagonal from its predecessor, so spurious
+			// matches far from the diagonal of their neighbours are left out
+			int[] gain = new int[count];
+			int[] pred = new int[count];
+			int best = -1;
+			for (int a = 0; a < count; a++) {
+				int a1 = (int) (anchors[a] >>> 32), a2 = (int) anchors[a];
+				gain[a] = k;
+				pred[a] = -1;
+				for (int b = a - 1; b >= 0 && b >= a - CHAIN_LOOKBACK; b--) {
+					int d1 = a1 - (int) (anchors[b] >>> 32);
+					int d2 = a2 - (int) anchors[b];
+					if (d1 <= 0 || d2 <= 0)
+						continue;
+					int g = gain[b] + Math.min(k, Math.min(d1, d2))
+							- Math.abs(d1 - d2);
+					if (g > gain[a]) {
+						gain[a] = g;
+						pred[a] = b;
+					}
+				}
+				if (best < 0 || gain[a] > gain[best])
+					best = a;
+			}
+			int chainLength = 0;
+			for (int a = best; a >= 0; a = pred[a])
+				chainLength++;
+			int[] order = new int[chainLength];
+			int a = best;
+			for (int i = chainLength - 1; i >= 0; i--) {
+				order[i] = a;
+				a = pred[a];
+			}
+
+			// drop the anchors that overlap the previous one, unless they
+			// extend it along the same diagonal
+			int[][] result = new int[3][chainLength];
+			int kept = 0;
+			for (int o : order) {
+				int a1 = (int) (anchors[o] >>> 32);
+				int a2 = (int) anchors[o];
+				if (kept > 0) {
+					int last1 = result[0][kept - 1], last2 = result[1][kept - 1];
+					int lastEnd1 = last1 + result[2][kept - 1];
+					if (a1 - last1 == a2 - last2 && a1 <= lastEnd1) {
+						result[2][kept - 1] = a1 + k - last1;
+						continue;
+					}
+					if (a1 < lastEnd1 || a2 < last2 + result[2][kept - 1])
+						continue;
+				}
+				result[0][kept] = a1;
+				result[1][kept] = a2;
+				result[2][kept] = k;
+				kept++;
+			}
+			for (int i = 0; i < 3; i++)
+				result[i] = Arrays.copyOf(result[i], kept);
+			return result;
+		}
+
+		void emitGaps(int start1, int end1, int start2, int end2) {
+			if (!traceback) {
+				score += engine.score(slice(str1, labels1, start1, end1),
+						slice(str2, labels2, start2, end2));
+				return;
+			}
+			int n = end1 - start1, m = end2 - start2;
+			char[] part1 = new char[n + m], part2 = new char[n + m];
+			System.arraycopy(str1, start1, part1, 0, n);
+			Arrays.fill(part1, n, n + m, '-');
+			Arrays.fill(part2, 0, n, '-');
+			System.arraycopy(str2, start2, part2, n, m);
+			emit(part1, part2);
+		}
+
+		void emitAnchor(int start1, int start2, int length) {
+			if (!traceback) {
+				score += engine.score(slice(str1, labels1, start1, start1
+						+ length), slice(str2, labels2, start2, start2 + length));
+				return;
+			}
+			emit(Arrays.copyOfRange(str1, start1, start1 + length), Arrays
+					.copyOfRange(str2, start2, start2 + length));
+		}
+
+		void emitEngine(int start1, int end1, int start2, int end2) {
+			LabeledSequence region1 = slice(str1, labels1, start1, end1);
+			LabeledSequence region2 = slice(str2, labels2, start2, end2);
+			if (!traceback) {
+				score += engine.score(region1, region2);
+				return;
+			}
+			Alignment a = engine.align(region1, region2);
+			emit(a.getSequence1(), a.getSequence2());
+		}
+
+		void emit(char[] part1, char[] part2) {
+			parts1.add(part1);
+			parts2.add(part2);
+			length += part1.length;
+		}
+
+		Alignment toAlignment() {
+			char[] result1 = new char[length];
+			char[] result2 = new char[length];
+			int pos = 0;
+			for (int p = 0; p < parts1.size(); p++) {
+				char[] part1 = parts1.get(p), part2 = parts2.get(p);
+				System.arraycopy(part1, 0, result1, pos, part1.length);
+				System.arraycopy(part2, 0, result2, pos, part2.length);
+				pos += part1.length;
+			}
+			return new Alignment(result1, result2);
+		}
+	}
+
+	/**
+	 * @return the minimizers of str[start, end) that occur once in the
+	 *   region, as (k-mer << 32 | position), sorted
+	 */
+	private static long[] uniqueMinimizers(char[] str, int start, int end,
+			int k, int window) {
+		int kmers = end - start - k + 1;
+		if (kmers <= 0)
+			return new long[0];
+
+		long mask = k == 16 ? 0xffffffffL : (1L << (2 * k)) - 1;
+		long[] codes = new long[kmers];
+		long code = 0;
+		for (int i = start; i < end; i++) {
+			code = ((code << 2) | NeedlemanWunsch.getIndex(str[i])) & mask;
+			if (i - start >= k - 1)
+				codes[i - start - k + 1] = code;
+		}
+
+		// the minimizer of each window, skipping repeats of the same position
+		long[] result = new long[kmers];
+		int count = 0;
+		int min = -1;
+		for (int w = 0; w + window <= kmers; w++) {
+			int last = w + window - 1;
+			if (min < w) {
+				min = w;
+				for (int i = w + 1; i <= last; i++)
+					if (hash(codes[i]) < hash(codes[min]))
+						min = i;
+			} else if (hash(codes[last]) < hash(codes[min])) {
+				min = last;
+			} else {
+				continue;
+			}
+			result[count++] = (codes[min] << 32) | (start + min);
+		}
+		Arrays.sort(result, 0, count);
+
+		// keep the k-mers that are minimizers once, and that occur nowhere
+		// else in the region either
+		long[] all = codes.clone();
+		Arrays.sort(all);
+		int kept = 0;
+		for (int i = 0; i < count; i++) {
+			long kmer = result[i] >>> 32;
+			boolean repeated = (i > 0 && result[i - 1] >>> 32 == kmer)
+					|| (i + 1 < count && result[i + 1] >>> 32 == kmer);
+			if (!repeated && occurrences(all, kmer) == 1)
+				result[kept++] = result[i];
+		}
+		return Arrays.copyOf(result, kept);
+	}
+
+	private static int occurrences(long[] sorted, long kmer) {
+		int from = Arrays.binarySearch(sorted, kmer);
+		if (from < 0)
+			return 0;
+		int count = 1;
+		for (int i = from - 1; i >= 0 && sorted[i] == kmer; i--)
+			count++;
+		for (int i = from + 1; i < sorted.length && sorted[i] == kmer; i++)
+			count++;
+		return count;
+	}
+
+	// spreads k-mers over the hash space so minimizers are not biased towards
+	// poly-A runs
+	private static long hash(long kmer) {
+		long h = kmer * 0x9e3779b97f4a7c15L;
+		return (h ^ (h >>> 29)) & Long.MAX_VALUE;
+	}
+
+	// str[start, end), with the labels clipped to the region
+	private static LabeledSequence slice(char[] str, Label[] labels,
+			int start, int end) {
+		List<Label> clipped = new ArrayList<Label>();
+		int from = firstLabelEndingAfter(labels, start);
+		for (int i = from; i < labels.length
+				&& labels[i].getStartIndex() < end; i++) {
+			Label l = labels[i];
+			clipped.add(new Label(l.toString(), Math.max(l.getStartIndex(),
+					start)
+					- start, Math.min(l.getEndIndex(), end - 1) - start,
+					l.userDefined));
+		}
+		return new NucleotideLabeledSequence(Arrays.copyOfRange(str, start,
+				end), clipped);
+	}
+
+	// labels are sorted and do not overlap, so their ends are increasing
+	private static int firstLabelEndingAfter(Label[] labels, int index) {
+		int lo = 0, hi = labels.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (labels[mid].getEndIndex() < index)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	@Override
+	public void updateScoreMatrix(int[][] newScoreMatrix, double weight) {
+		engine.updateScoreMatrix(newScoreMatrix, weight);
+	}
+
+	@Override
+	public void updateGapPenaltyFunction(GapPenaltyFunction gpf, double weight) {
+		engine.updateGapPenaltyFunction(gpf, weight);
+	}
+}
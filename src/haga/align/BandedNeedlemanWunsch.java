@@ -0,0 +1,274 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+
+/**
+ * A GlobalAlignmentAlgorithm that only fills the cells of a band of diagonals
+ * around the main diagonal of the dynamic programming matrix. Scores and gap
+ * penalties come from the wrapped NeedlemanWunsch, so label-aware subclasses
+ * such as NeedlemanWunschIyoToscano can be banded too.
+ * 
+ * After each banded pass the score found is compared to a lower bound on the
+ * cost of any path that leaves the band. If the bound is not strictly greater,
+ * the band is widened to the width the bound requires and the matrix is filled
+ * again (the second pass always succeeds, since the score can only improve).
+ * When align() returns, the result is therefore the same alignment the wrapped
+ * NeedlemanWunsch would have produced.
+ * 
+ * Alignments that need the whole matrix are made by a
+ * VectorizedNeedlemanWunsch over the wrapped NeedlemanWunsch.
+ */
+public class BandedNeedlemanWunsch implements GlobalAlignmentAlgorithm {
+
+	public static final int DEFAULT_INITIAL_BAND_WIDTH = 32;
+
+	private static final int INF = Integer.MAX_VALUE / 4;
+
+	private final NeedlemanWunsch nw;
+	private final VectorizedNeedlemanWunsch full;
+	private volatile int initialBandWidth = DEFAULT_INITIAL_BAND_WIDTH;
+
+	public BandedNeedlemanWunsch() {
+		this(new NeedlemanWunsch());
+	}
+
+	public BandedNeedlemanWunsch(NeedlemanWunsch nw) {
+		if (nw == null)
+			throw new IllegalArgumentException("'nw' cannot be null");
+
+		this.nw = nw;
+		full = new VectorizedNeedlemanWunsch(nw);
+	}
+
+	NeedlemanWunsch getNeedlemanWunsch() {
+		return nw;
+	}
+
+	/**
+	 * @param width number of diagonals on each side of the band computed on
+	 *   the first pass
+	 */
+	public void setInitialBandWidth(int width) {
+		if (width < 0)
+			throw new IllegalArgumentException("'width' cannot be negative");
+
+		initialBandWidth = width;
+	}
+
+	@Override
+	public Alignment align(LabeledSequence ls1, LabeledSequence ls2) {
+		Workspace ws = Workspace.acquire();
+		try {
+			Band band = solve(ws, ls1, ls2, true);
+			if (band != null)
+				return band.traceback(ls1.getSequence(), ls2.getSequence());
+		} finally {
+			ws.release();
+		}
+		return full.align(ls1, ls2);
+	}
+
+	@Override
+	public int score(LabeledSequence ls1, LabeledSequence ls2) {
+		Workspace ws = Workspace.acquire();
+		try {
+			Band band = solve(ws, ls1, ls2, false);
+			if (band != null)
+				return band.score;
+		} finally {
+			ws.release();
+		}
+		return nw.score(ls1, ls2);
+	}
+
+	// Fills bands until one is proven to contain the optimal alignment, or
+	// returns null if the whole matrix has to be computed
+	private Band solve(Workspace ws, LabeledSequence ls1,
+			LabeledSequence ls2, boolean traceback) {
+		// position dependent gap penalties need the whole matrix
+		if (!nw.hasPositionIndependentGaps())
+			return null;
+
+		EncodedSequence seq1 = ws.encode1(ls1);
+		EncodedSequence seq2 = ws.encode2(ls2);
+		int n = seq1.length();
+		int m = seq2.length();
+
+		// cheapest possible gap and column, used to bound paths outside the band
+		ScoringTable table = nw.scoringTable();
+		int minGap = Math.min(table.gapMatch, table.gapMismatch);
+		int minScore = table.minScore();
+
+		// the bound only grows with the number of gaps if a gap costs more
+		// than half a column; otherwise nothing can be pruned
+		long slope = 2L * minGap - minScore;
+		if (slope <= 0)
+			return null;
+
+		int width = initialBandWidth;
+		while (true) {
+			if (isFullBand(n, m, width)
+					|| (traceback && (long) (n + 1) * bandSize(n, m, width) > nw
+							.getLinearSpaceThreshold())) {
+				return null;
+			}
+
+			Band band = new Band(ws, table, seq1, seq2, width, traceback);
+			band.fill();
+
+			// a path leaving the band has at least 2 * (width + 1) + |m - n|
+			// gaps, and its cost grows with every extra gap. Find the smallest
+			// width whose bound is strictly greater than the score found
+			long required = 2L * band.score - (long) (n + m) * minScore;
+			long gaps = required / slope + 1;
+			int needed = (int) Math.max(0, (gaps - Math.abs(m - n) - 1) / 2);
+			if (needed <= width)
+				return band;
+
+			width = needed;
+		}
+	}
+
+	private static boolean isFullBand(int n, int m, int width) {
+		return Math.min(0, m - n) - width <= -n
+				&& Math.max(0, m - n) + width >= m;
+	}
+
+	private static long bandSize(int n, int m, int width) {
+		return (long) Math.abs(m - n) + 2L * width + 1;
+	}
+
+	// a banded matrix over the diagonals [dlo, dhi] (diagonal = j - i)
+	private static class Band {
+		private final Workspace ws;
+		private final ScoringTable table;
+		private final EncodedSequence seq1, seq2;
+		private final int n, m, dlo, size;
+		private final Traceback tb;
+		int score;
+
+		// traceback: false to only compute the score
+		Band(Workspace ws, ScoringTable table, EncodedSequence seq1,
+				EncodedSequence seq2, int width, boolean traceback) {
+			this.ws = ws;
+			this.table = table;
+			this.seq1 = seq1;
+			this.seq2 = seq2;
+			n = seq1.length();
+			m = seq2.length();
+			dlo = Math.min(0, m - n) - width;
+			size = (int) bandSize(n, m, width);
+			tb = traceback ? ws.traceback(n + 1, size) : null;
+		}
+
+		// fills the band and sets the score of (n, m). Cell (i, j) is stored
+		// at index j - i - dlo of row i
+		void fill() {
+			int gap = table.gapMismatch;
+			int[] prev = ws.row1(size + 1);
+			int[] curr = ws.row2(size + 1);
+			Arrays.fill(prev, 0, size + 1, INF);
+
+			for (int k = 0; k < size; k++) {
+				int j = k + dlo;
+				if (j >= 0 && j <= m) {
+					prev[k] = j * gap;
+				}
+			}
+
+			for (int i = 1; i <= n; i++) {
+				Arrays.fill(curr, 0, size + 1, INF);
+				int jlo = Math.max(0, i + dlo);
+				int jhi = Math.min(m, i + dlo + size - 1);
+				for (int j = jlo; j <= jhi; j++) {
+					int k = j - i - dlo;
+					if (j == 0) {
+						curr[k] = i * gap;
+						continue;
+					}
+
+					boolean labelsMatch = EncodedSequence.labelsMatch(
+							seq1.labels[i - 1], seq2.labels[j - 1]);
+					int gapPen = table.gap(labelsMatch);
+					int matchScore = prev[k]
+							+ table.score(labelsMatch, seq1.bases[i - 1],
+									seq2.bases[j - 1]);
+					int gap1Score = k > 0 ? curr[k - 1] + gapPen : INF;
+					int gap2Score = prev[k + 1] + gapPen;
+					int score = Math.min(Math.min(gap1Score, gap2Score),
+							matchScore);
+					curr[k] = score;
+
+					if (tb == null)
+						continue;
+					if (score == matchScore)
+						tb.set(i, k, Traceback.DIAG);
+					else if (score == gap1Score)
+						tb.set(i, k, Traceback.LEFT);
+					else
+						tb.set(i, k, Traceback.UP);
+				}
+
+				int[] tmp = prev;
+				prev = curr;
+				curr = tmp;
+			}
+
+			score = prev[m - n - dlo];
+		}
+
+		Alignment traceback(char[] str1, char[] str2) {
+			Alignment.Builder runs = new Alignment.Builder();
+			int i = n;
+			int j = m;
+			while (i > 0 || j > 0) {
+				int p = i == 0 ? Traceback.LEFT : j == 0 ? Traceback.UP : tb
+						.get(i, j - i - dlo);
+				runs.add(Traceback.operation(p));
+				if (p != Traceback.LEFT)
+					i--;
+				if (p != Traceback.UP)
+					j--;
+			}
+			return new Alignment(str1, str2, runs.toRuns(true));
+		}
+	}
+
+	/**
+	 * @return the scores this engine aligns with
+	 */
+	ScoringTable scoringTable() {
+		return nw.scoringTable();
+	}
+
+	@Override
+	public void updateScoreMatrix(int[][] newScoreMatrix, double weight) {
+		nw.updateScoreMatrix(newScoreMatrix, weight);
+	}
+
+	@Override
+	public void updateGapPenaltyFunction(GapPenaltyFunction gpf, double weight) {
+		nw.updateGapPenaltyFunction(gpf, weight);
+	}
+}
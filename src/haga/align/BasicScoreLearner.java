@@ -23,6 +23,7 @@ import haga.labeler.Label;
 import haga.labeler.LabeledAlignment;
 import haga.labeler.LabeledSequence;
 import haga.labeler.LabeledSequenceImpl;
+import haga.labeler.LabeledSequenceView;
 
 public class BasicScoreLearner implements ScoreLearner {
 
@@ -42,6 +43,12 @@ public class BasicScoreLearner implements ScoreLearner {
 			throw new RuntimeException("ls1 and ls2 are not the same size");
 		}
 
+		// views are read in place
+		char[] seq1 = LabeledSequenceView.backingOf(ls1);
+		char[] seq2 = LabeledSequenceView.backingOf(ls2);
+		int offset1 = LabeledSequenceView.offsetOf(ls1);
+		int offset2 = LabeledSequenceView.offsetOf(ls2);
+
 		// This assumes all corresponding labels are the same length
 		for (int x = 0; x < ls1.getLabels().size(); x++) {
 			Label label1 = ls1.getLabels().get(x);
@@ -56,8 +63,8 @@ public class BasicScoreLearner implements ScoreLearner {
 			}
 
 			for (int i = 0; i <= label1.getEndIndex() - label1.getStartIndex(); i++) {
-				char c1 = ls1.getSequence()[label1.getStartIndex() + i];
-				char c2 = ls2.getSequence()[label2.getStartIndex() + i];
+				char c1 = seq1[offset1 + label1.getStartIndex() + i];
+				char c2 = seq2[offset2 + label2.getStartIndex() + i];
 				if (c1 == GAP || c2 == GAP) {
 					if (c1 == c2) {
 						throw new RuntimeException(
@@ -0,0 +1,332 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Aligns many independent pairs of sequences with one Aligner, on several
+ * threads. The threads take the pairs from a shared queue, the most
+ * expensive (by length product) first, so a single large pair starts early
+ * instead of holding up the end of the batch while the other threads are
+ * idle. Many queries can also be aligned with one reference, prepared once
+ * with Aligner.prepare().
+ *
+ * A pair that fails does not stop the others: what it threw goes to the
+ * listener, or its result is null. Only errors that leave the JVM unusable,
+ * such as an OutOfMemoryError, stop the run.
+ */
+public class BatchAligner {
+
+	public static final int DEFAULT_LOOKAHEAD = 1024;
+
+	private final Aligner aligner;
+	private final int threadCount;
+	private volatile int lookahead = DEFAULT_LOOKAHEAD;
+
+	/**
+	 * Uses one thread per processor.
+	 */
+	public BatchAligner(Aligner aligner) {
+		this(aligner, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param threadCount the number of threads aligning pairs, including the
+	 *   calling thread
+	 */
+	public BatchAligner(Aligner aligner, int threadCount) {
+		if (aligner == null)
+			throw new IllegalArgumentException("'aligner' cannot be null");
+		if (threadCount < 1)
+			throw new IllegalArgumentException(
+					"'threadCount' must be positive");
+
+		this.aligner = aligner;
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * @param lookahead the number of pairs align() reads ahead of the ones
+	 *   being aligned, to pick the most expensive from
+	 */
+	public void setLookahead(int lookahead) {
+		if (lookahead < 1)
+			throw new IllegalArgumentException("'lookahead' must be positive");
+
+		this.lookahead = lookahead;
+	}
+
+	public int getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * @param pairs the pairs of sequences to align, as LS1 and LS2
+	 * @return the alignment of each pair, in the order of pairs, or null for
+	 *   the pairs the Aligner failed on
+	 */
+	public List<LabeledAlignment> alignAll(List<LabeledAlignment> pairs) {
+		ResultList results = new ResultList(pairs.size());
+		run(new PairBatch(pairs.iterator(), Math.max(1, pairs.size()),
+				results));
+		return results.toList();
+	}
+
+	/**
+	 * @return the alignment of reference with each query, in the order of
+	 *   queries, or null for the queries the Aligner failed on
+	 */
+	public List<LabeledAlignment> alignAll(PreparedReference reference,
+			List<LabeledSequence> queries) {
+		ResultList results = new ResultList(queries.size());
+		run(new QueryBatch(reference, queries.iterator(), Math.max(1, queries
+				.size()), results));
+		return results.toList();
+	}
+
+	/**
+	 * Aligns the pairs as they are read, and returns once all of them are
+	 * aligned. Only about getLookahead() pairs are held at a time, so pairs
+	 * may be a stream of any length.
+	 *
+	 * @param pairs the pairs of sequences to align, as LS1 and LS2
+	 * @throws RuntimeException if pairs or listener throws one, after the
+	 *   pairs already taken are finished; the remaining pairs are not read
+	 */
+	public void align(Iterator<LabeledAlignment> pairs, BatchListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("'listener' cannot be null");
+
+		run(new PairBatch(pairs, lookahead, listener));
+	}
+
+	/**
+	 * Aligns reference with each query as they are read, as align() does for
+	 * pairs.
+	 */
+	public void align(PreparedReference reference,
+			Iterator<LabeledSequence> queries, BatchListener listener) {
+		if (reference == null)
+			throw new IllegalArgumentException("'reference' cannot be null");
+		if (listener == null)
+			throw new IllegalArgumentException("'listener' cannot be null");
+
+		run(new QueryBatch(reference, queries, lookahead, listener));
+	}
+
+	private void run(final Batch<?> batch) {
+		Thread[] workers = new Thread[threadCount - 1];
+		for (int t = 0; t < workers.length; t++) {
+			workers[t] = new Thread("BatchAligner-" + t) {
+				@Override
+				public void run() {
+					batch.work();
+				}
+			};
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+		batch.work();
+
+		boolean interrupted = false;
+		for (Thread worker : workers) {
+			while (worker.isAlive()) {
+				try {
+					worker.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		if (batch.failure instanceof RuntimeException)
+			throw (RuntimeException) batch.failure;
+		if (batch.failure instanceof Error)
+			throw (Error) batch.failure;
+	}
+
+	private static class Pending<T> implements Comparable<Pending<T>> {
+		final int index;
+		final T item;
+		final long cost;
+
+		Pending(int index, T item, long cost) {
+			this.index = index;
+			this.item = item;
+			this.cost = cost;
+		}
+
+		// the most expensive first
+		public int compareTo(Pending<T> other) {
+			return cost > other.cost ? -1 : cost < other.cost ? 1 : index
+					- other.index;
+		}
+	}
+
+	// the state of one run, shared by its threads
+	private abstract static class Batch<T> {
+		private final Iterator<T> input;
+		private final int lookahead;
+		private final BatchListener listener;
+		private final PriorityQueue<Pending<T>> pending;
+		private int nextIndex;
+		// the listener is called under this lock, never under one of its own
+		private final Object listenerLock = new Object();
+
+		// the first exception not caused by a pair; no pair is started after it
+		private Throwable failure;
+
+		Batch(Iterator<T> input, int lookahead, BatchListener listener) {
+			this.input = input;
+			this.lookahead = lookahead;
+			this.listener = listener;
+			pending = new PriorityQueue<Pending<T>>(Math.min(lookahead, 1024));
+		}
+
+		abstract long cost(T item);
+
+		abstract LabeledAlignment align(T item);
+
+		// the next item to align, or null when there is none
+		synchronized Pending<T> next() {
+			if (failure != null)
+				return null;
+			try {
+				while (pending.size() < lookahead && input.hasNext()) {
+					T item = input.next();
+					pending.add(new Pending<T>(nextIndex++, item, cost(item)));
+				}
+			} catch (Throwable t) {
+				fail(t);
+				return null;
+			}
+			return pending.poll();
+		}
+
+		synchronized void fail(Throwable t) {
+			if (failure == null)
+				failure = t;
+			pending.clear();
+		}
+
+		void work() {
+			try {
+				for (Pending<T> p = next(); p != null; p = next()) {
+					LabeledAlignment result = null;
+					Throwable failed = null;
+					try {
+						result = align(p.item);
+					} catch (Throwable thrown) {
+						if (isFatal(thrown))
+							throw thrown;
+						failed = thrown;
+					}
+					synchronized (listenerLock) {
+						if (failed == null)
+							listener.aligned(p.index, result);
+						else
+							listener.failed(p.index, failed);
+					}
+				}
+			} catch (Throwable t) {
+				fail(t);
+			}
+		}
+	}
+
+	/**
+	 * @return whether t leaves the JVM in a state no other pair should run
+	 *   in. A StackOverflowError only unwinds the pair that overflowed
+	 */
+	private static boolean isFatal(Throwable t) {
+		return (t instanceof VirtualMachineError && !(t instanceof StackOverflowError))
+				|| t instanceof ThreadDeath;
+	}
+
+	private class PairBatch extends Batch<LabeledAlignment> {
+
+		PairBatch(Iterator<LabeledAlignment> pairs, int lookahead,
+				BatchListener listener) {
+			super(pairs, lookahead, listener);
+		}
+
+		@Override
+		long cost(LabeledAlignment pair) {
+			return (long) LabeledSequenceView.length(pair.getLS1())
+					* LabeledSequenceView.length(pair.getLS2());
+		}
+
+		@Override
+		LabeledAlignment align(LabeledAlignment pair) {
+			return aligner.align(pair.getLS1(), pair.getLS2());
+		}
+	}
+
+	private class QueryBatch extends Batch<LabeledSequence> {
+		private final PreparedReference reference;
+
+		QueryBatch(PreparedReference reference,
+				Iterator<LabeledSequence> queries, int lookahead,
+				BatchListener listener) {
+			super(queries, lookahead, listener);
+			this.reference = reference;
+		}
+
+		@Override
+		long cost(LabeledSequence query) {
+			return reference.length() * LabeledSequenceView.length(query);
+		}
+
+		@Override
+		LabeledAlignment align(LabeledSequence query) {
+			return aligner.align(reference, query);
+		}
+	}
+
+	// collects the results of alignAll()
+	private static class ResultList implements BatchListener {
+		private final LabeledAlignment[] results;
+
+		ResultList(int size) {
+			results = new LabeledAlignment[size];
+		}
+
+		public void aligned(int index, LabeledAlignment result) {
+			results[index] = result;
+		}
+
+		public void failed(int index, Throwable t) {
+		}
+
+		List<LabeledAlignment> toList() {
+			return Arrays.asList(results);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+
+/**
+ * The matrices of up to LANES independent pairs filled together with the
+ * Vector API, one pair per lane: the sequences of the pairs are interleaved
+ * position by position, so cell (i, j) of every pair is one vector
+ * operation. Every lane is computed over the largest matrix of the group;
+ * the cells past the end of a pair are never read by its traceback.
+ *
+ * The score of a cell is picked among the scores of the base of its row
+ * against each of the four bases, which are set up once per row, so the
+ * inner loop does no lookups. The traceback pointers of a cell are the lane
+ * masks of StripedKernel.
+ *
+ * Like StripedKernel, this class needs the jdk.incubator.vector module.
+ */
+final class BatchKernel {
+
+	static final int LANES = StripedKernel.LANES;
+
+	private BatchKernel() {
+	}
+
+	/**
+	 * Aligns seq1[l] with seq2[l] into result[l], for each lane l, with the
+	 * position independent gaps of table. The label ids of each pair must
+	 * be comparable within the pair only.
+	 */
+	static void align(ScoringTable table, EncodedSequence[] seq1,
+			EncodedSequence[] seq2, char[][] str1, char[][] str2,
+			Alignment[] result) {
+		int lanes = seq1.length;
+		int n = 0, m = 0;
+		for (int l = 0; l < lanes; l++) {
+			n = Math.max(n, seq1[l].length());
+			m = Math.max(m, seq2[l].length());
+		}
+
+		// position i of lane l is at i * LANES + l. Lanes past their end,
+		// and unused lanes, hold padding
+		int[] bases1 = new int[n * LANES], bases2 = new int[m * LANES];
+		int[] labels1 = new int[n * LANES], labels2 = new int[m * LANES];
+		Arrays.fill(labels1, EncodedSequence.NO_LABEL);
+		Arrays.fill(labels2, EncodedSequence.NO_LABEL);
+		for (int l = 0; l < lanes; l++) {
+			interleave(seq1[l], l, bases1, labels1);
+			interleave(seq2[l], l, bases2, labels2);
+		}
+		boolean labelsAlwaysMatch = alwaysMatch(labels1, labels2);
+
+		int gapMismatch = table.gapMismatch;
+		int w = (m + 1) * LANES;
+		int[] prev = new int[w];
+		int[] curr = new int[w];
+		// the traceback masks of cell (i, j) of every lane
+		int[] pointers = new int[(n + 1) * (m + 1)];
+		for (int j = 0; j <= m; j++)
+			Arrays.fill(prev, j * LANES, (j + 1) * LANES, j * gapMismatch);
+
+		// rowScores[(labels match ? 4 : 0) + base2] holds, in each lane, the
+		// score of the base of the row against base2
+		IntVector[] rowScores = new IntVector[8];
+		int[] scores = new int[LANES];
+		IntVector gapMatch = IntVector.broadcast(StripedKernel.SPECIES,
+				table.gapMatch);
+		IntVector gapsMismatch = IntVector.broadcast(StripedKernel.SPECIES,
+				gapMismatch);
+		for (int i = 1; i <= n; i++) {
+			int row1 = (i - 1) * LANES;
+			for (int k = 0; k < 8; k++) {
+				for (int l = 0; l < LANES; l++)
+					scores[l] = table.score(k >= 4, bases1[row1 + l], k & 3);
+				rowScores[k] = IntVector.fromArray(StripedKernel.SPECIES,
+						scores, 0);
+			}
+			IntVector label1 = IntVector.fromArray(StripedKernel.SPECIES,
+					labels1, row1);
+			VectorMask<Integer> noLabel1 = label1.compare(VectorOperators.EQ,
+					EncodedSequence.NO_LABEL);
+
+			IntVector left = IntVector.broadcast(StripedKernel.SPECIES, i
+					* gapMismatch);
+			left.intoArray(curr, 0);
+			IntVector diagonal = IntVector.fromArray(StripedKernel.SPECIES,
+					prev, 0);
+			int pointer = i * (m + 1);
+			for (int j = 1; j <= m; j++) {
+				int row2 = (j - 1) * LANES;
+				IntVector base2 = IntVector.fromArray(StripedKernel.SPECIES,
+						bases2, row2);
+				VectorMask<Integer> is1 = base2.compare(VectorOperators.EQ, 1);
+				VectorMask<Integer> is2 = base2.compare(VectorOperators.EQ, 2);
+				VectorMask<Integer> is3 = base2.compare(VectorOperators.EQ, 3);
+				IntVector score = rowScores[4].blend(rowScores[5], is1).blend(
+						rowScores[6], is2).blend(rowScores[7], is3);
+				IntVector gap = gapMatch;
+				if (!labelsAlwaysMatch) {
+					IntVector label2 = IntVector.fromArray(
+							StripedKernel.SPECIES, labels2, row2);
+					VectorMask<Integer> labelsMatch = label1.compare(
+							VectorOperators.EQ, label2).or(noLabel1).or(
+							label2.compare(VectorOperators.EQ,
+									EncodedSequence.NO_LABEL));
+					score = rowScores[0].blend(rowScores[1], is1).blend(
+							rowScores[2], is2).blend(rowScores[3], is3).blend(
+							score, labelsMatch);
+					gap = gapsMismatch.blend(gapMatch, labelsMatch);
+				}
+
+				int cell = j * LANES;
+				IntVector up = IntVector.fromArray(StripedKernel.SPECIES,
+						prev, cell);
+				IntVector matchScore = diagonal.add(score);
+				IntVector gap1Score = left.add(gap);
+				IntVector best = matchScore.min(gap1Score).min(up.add(gap));
+				best.intoArray(curr, cell);
+
+				// DIAG, then LEFT, then UP, as NeedlemanWunsch breaks ties
+				pointers[pointer + j] = StripedKernel.masks(matchScore,
+						gap1Score, best);
+				diagonal = up;
+				left = best;
+			}
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+
+		for (int l = 0; l < lanes; l++)
+			result[l] = trace(pointers, m + 1, l, str1[l], str2[l]);
+	}
+
+	// whether every label of labels1 matches every label of labels2
+	private static boolean alwaysMatch(int[] labels1, int[] labels2) {
+		int label = EncodedSequence.NO_LABEL;
+		for (int[] labels : new int[][] { labels1, labels2 }) {
+			for (int id : labels) {
+				if (id == EncodedSequence.NO_LABEL || id == label)
+					continue;
+				if (label != EncodedSequence.NO_LABEL)
+					return false;
+				label = id;
+			}
+		}
+		return true;
+	}
+
+	private static void interleave(EncodedSequence seq, int lane, int[] bases,
+			int[] labels) {
+		for (int i = 0; i < seq.length(); i++) {
+			bases[i * LANES + lane] = seq.bases[i];
+			labels[i * LANES + lane] = seq.labels[i];
+		}
+	}
+
+	// as Traceback.trace(), from the masks of one lane
+	private static Alignment trace(int[] pointers, int cols, int lane,
+			char[] str1, char[] str2) {
+		Alignment.Builder runs = new Alignment.Builder();
+		int i = str1.length;
+		int j = str2.length;
+		while (i > 0 || j > 0) {
+			int p;
+			if (i == 0) {
+				p = Traceback.LEFT;
+			} else if (j == 0) {
+				p = Traceback.UP;
+			} else {
+				int bits = pointers[i * cols + j];
+				p = (bits >>> lane & 1) != 0 ? Traceback.DIAG
+						: (bits >>> (lane + LANES) & 1) != 0 ? Traceback.LEFT
+								: Traceback.UP;
+			}
+			runs.add(Traceback.operation(p));
+			if (p != Traceback.LEFT)
+				i--;
+			if (p != Traceback.UP)
+				j--;
+		}
+		return new Alignment(str1, str2, runs.toRuns(true));
+	}
+}
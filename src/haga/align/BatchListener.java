@@ -0,0 +1,42 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledAlignment;
+
+/**
+ * Receives the outcome of each pair of a BatchAligner run. The calls come
+ * from the worker threads, one at a time, in the order the pairs finish;
+ * BatchAligner serializes them on a lock of its own.
+ */
+public interface BatchListener {
+
+	/**
+	 * @param index the position of the pair in the input
+	 */
+	public void aligned(int index, LabeledAlignment result);
+
+	/**
+	 * @param index the position of the pair in the input
+	 * @param t what the Aligner threw, an exception or an error such as a
+	 *   StackOverflowError; the other pairs are not affected
+	 */
+	public void failed(int index, Throwable t);
+}
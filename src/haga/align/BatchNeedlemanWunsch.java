@@ -0,0 +1,171 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Aligns many short, independent pairs of sequences with the scores of one
+ * NeedlemanWunsch, LANES pairs at a time, one pair per SIMD lane (see
+ * BatchKernel). Single alignments of a few dozen bases are too short to
+ * vectorize well; the lanes of a group do not depend on each other, so each
+ * cell of the group is one vector operation.
+ * 
+ * Every lane of a group is computed over the largest matrix of the group, so
+ * the pairs are grouped by size, and a group is only formed while padding
+ * adds little to it. Pairs left without a group of at least MIN_LANES are
+ * aligned one by one, and so is every pair when the jdk.incubator.vector
+ * module is not available (see isVectorized()).
+ * 
+ * The alignments are the ones the NeedlemanWunsch would return. Every pair
+ * gets a full matrix, so this is meant for pairs of up to a few hundred
+ * bases.
+ */
+public class BatchNeedlemanWunsch {
+
+	public static final int MIN_LANES = 4;
+
+	// whether the Vector API kernel can be used
+	private static final boolean VECTORIZED = batchKernelAvailable();
+
+	/**
+	 * The number of pairs aligned together: the number of int lanes of the
+	 * SIMD registers, or 1 without the Vector API.
+	 */
+	public static final int LANES = VECTORIZED ? BatchKernel.LANES : 1;
+
+	// the padded cells of a group may add this fraction to its real cells
+	private static final double MAX_PADDING = 0.25;
+
+	private final NeedlemanWunsch nw;
+	private final GlobalAlignmentAlgorithm single;
+
+	public BatchNeedlemanWunsch(NeedlemanWunsch nw) {
+		if (nw == null)
+			throw new IllegalArgumentException("'nw' cannot be null");
+
+		this.nw = nw;
+		single = new VectorizedNeedlemanWunsch(nw);
+	}
+
+	/**
+	 * @return whether pairs are aligned LANES at a time, which needs the
+	 *   jdk.incubator.vector module (java --add-modules
+	 *   jdk.incubator.vector). Otherwise every pair is aligned on its own
+	 */
+	public static boolean isVectorized() {
+		return VECTORIZED;
+	}
+
+	private static boolean batchKernelAvailable() {
+		try {
+			return BatchKernel.LANES >= MIN_LANES;
+		} catch (LinkageError e) {
+			// jdk.incubator.vector is not in the module graph
+			return false;
+		}
+	}
+
+	/**
+	 * @return the alignment of ls1[k] with ls2[k], for each k
+	 */
+	public Alignment[] align(LabeledSequence[] ls1, LabeledSequence[] ls2) {
+		if (ls1.length != ls2.length)
+			throw new IllegalArgumentException(
+					"'ls1' and 'ls2' must have the same length");
+
+		Alignment[] result = new Alignment[ls1.length];
+		if (!VECTORIZED || !nw.hasPositionIndependentGaps()) {
+			for (int k = 0; k < ls1.length; k++)
+				result[k] = single.align(ls1[k], ls2[k]);
+			return result;
+		}
+
+		// group the pairs by size
+		final long[] cells = new long[ls1.length];
+		Integer[] order = new Integer[ls1.length];
+		for (int k = 0; k < order.length; k++) {
+			order[k] = k;
+			cells[k] = (long) LabeledSequenceView.length(ls1[k])
+					* LabeledSequenceView.length(ls2[k]);
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer k1, Integer k2) {
+				return cells[k1] < cells[k2] ? -1 : cells[k1] > cells[k2] ? 1
+						: 0;
+			}
+		});
+
+		ScoringTable table = nw.scoringTable();
+		int[] group = new int[LANES];
+		int start = 0;
+		while (start < order.length) {
+			int lanes = 0, n = 0, m = 0;
+			long real = 0;
+			while (lanes < LANES && start + lanes < order.length) {
+				int k = order[start + lanes];
+				int n2 = Math.max(n, LabeledSequenceView.length(ls1[k]));
+				int m2 = Math.max(m, LabeledSequenceView.length(ls2[k]));
+				long real2 = real + cells[k];
+				if (lanes >= MIN_LANES
+						&& (lanes + 1) * (long) n2 * m2 > (1 + MAX_PADDING)
+								* real2)
+					break;
+				group[lanes++] = k;
+				n = n2;
+				m = m2;
+				real = real2;
+			}
+			if (lanes >= MIN_LANES
+					&& (long) lanes * n * m <= (1 + MAX_PADDING) * real) {
+				alignGroup(table, ls1, ls2, group, lanes, result);
+				start += lanes;
+			} else {
+				int k = order[start++];
+				result[k] = single.align(ls1[k], ls2[k]);
+			}
+		}
+		return result;
+	}
+
+	private void alignGroup(ScoringTable table, LabeledSequence[] ls1,
+			LabeledSequence[] ls2, int[] group, int lanes, Alignment[] result) {
+		EncodedSequence[] seq1 = new EncodedSequence[lanes];
+		EncodedSequence[] seq2 = new EncodedSequence[lanes];
+		char[][] str1 = new char[lanes][], str2 = new char[lanes][];
+		for (int l = 0; l < lanes; l++) {
+			Map<String, Integer> labelIds = new HashMap<String, Integer>();
+			seq1[l] = PreparedSequence.encode(ls1[group[l]], labelIds);
+			seq2[l] = PreparedSequence.encode(ls2[group[l]], labelIds);
+			str1[l] = ls1[group[l]].getSequence();
+			str2[l] = ls2[group[l]].getSequence();
+		}
+		Alignment[] aligned = new Alignment[lanes];
+		BatchKernel.align(table, seq1, seq2, str1, str2, aligned);
+		for (int l = 0; l < lanes; l++)
+			result[group[l]] = aligned[l];
+	}
+}
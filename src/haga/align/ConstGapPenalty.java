@@ -21,7 +21,7 @@ package haga.align;
 
 public class ConstGapPenalty implements GapPenaltyFunction {
 
-	private int gapPenalty;
+	private final int gapPenalty;
 
 	public ConstGapPenalty() {
 		this(-7);
@@ -35,6 +35,10 @@ public class ConstGapPenalty implements GapPenaltyFunction {
 		return gapPenalty;
 	}
 
+	public boolean isPositionIndependent() {
+		return true;
+	}
+
 	@Override
 	public GapPenaltyFunction merge(GapPenaltyFunction other, double otherWeight) {
 		if (other != null && other.getClass() == ConstGapPenalty.class) {
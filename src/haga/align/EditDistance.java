@@ -0,0 +1,121 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+/**
+ * Unit cost (Levenshtein) edit distance between two nucleotide sequences,
+ * using Myers' bit-parallel algorithm: each column of the dynamic programming
+ * matrix is held as vertical deltas packed 64 rows to a long, and computed
+ * with a handful of word operations per block of 64 cells. The shorter
+ * sequence is used for the rows.
+ *
+ * It is meant as a cheap divergence estimate before a full alignment, e.g.
+ * to skip or reroute pairs that are obviously unrelated.
+ */
+public final class EditDistance {
+
+	private EditDistance() {
+	}
+
+	public static int distance(char[] s1, char[] s2) {
+		return distance(s1, s2, Integer.MAX_VALUE - 1);
+	}
+
+	/**
+	 * @param maxDistance the computation stops as soon as the distance is known
+	 *   to be greater than this
+	 * @return the edit distance, or maxDistance + 1 if it is greater than
+	 *   maxDistance
+	 */
+	public static int distance(char[] s1, char[] s2, int maxDistance) {
+		if (maxDistance < 0)
+			throw new IllegalArgumentException(
+					"'maxDistance' cannot be negative");
+
+		char[] rows = s1.length <= s2.length ? s1 : s2;
+		char[] cols = s1.length <= s2.length ? s2 : s1;
+		int m = rows.length, n = cols.length;
+		if (n - m > maxDistance)
+			return maxDistance + 1;
+		if (m == 0)
+			return n;
+
+		// peq[c][b]: the rows of block b that hold base c
+		int blocks = (m + 63) >>> 6;
+		long[][] peq = new long[4][blocks];
+		for (int i = 0; i < m; i++)
+			peq[NeedlemanWunsch.getIndex(rows[i])][i >>> 6] |= 1L << i;
+
+		// vertical deltas (+1/-1) of each block, and the score of the last row
+		// of each block
+		long[] pv = new long[blocks];
+		long[] mv = new long[blocks];
+		int[] score = new int[blocks];
+		for (int b = 0; b < blocks; b++) {
+			pv[b] = -1L;
+			score[b] = Math.min(m, (b + 1) << 6);
+		}
+		long lastBit = 1L << ((m - 1) & 63);
+
+		for (int j = 0; j < n; j++) {
+			long[] eq = peq[NeedlemanWunsch.getIndex(cols[j])];
+
+			// the first row is j + 1 in column j + 1, so +1 comes in at the top
+			int hin = 1;
+			int top = j + 1;
+			int lowerBound = Integer.MAX_VALUE;
+			for (int b = 0; b < blocks; b++) {
+				long p = pv[b], mm = mv[b], e = eq[b];
+				long xv = e | mm;
+				if (hin < 0)
+					e |= 1L;
+				long xh = (((e & p) + p) ^ p) | e;
+				long ph = mm | ~(xh | p);
+				long mh = p & xh;
+
+				long high = b == blocks - 1 ? lastBit : 1L << 63;
+				int hout = (ph & high) != 0 ? 1 : (mh & high) != 0 ? -1 : 0;
+				ph <<= 1;
+				mh <<= 1;
+				if (hin < 0)
+					mh |= 1L;
+				else if (hin > 0)
+					ph |= 1L;
+				pv[b] = mh | ~(xv | ph);
+				mv[b] = ph & xv;
+
+				// a walk of +-1 steps between top and score[b] cannot go below
+				// (top + score[b] - steps) / 2
+				score[b] += hout;
+				int steps = b == blocks - 1 ? m - (b << 6) : 64;
+				lowerBound = Math.min(lowerBound, (top + score[b] - steps) >> 1);
+				top = score[b];
+				hin = hout;
+			}
+
+			// every alignment crosses this column at some row
+			if (lowerBound > maxDistance)
+				return maxDistance + 1;
+		}
+
+		int distance = score[blocks - 1];
+		return distance > maxDistance ? maxDistance + 1 : distance;
+	}
+}
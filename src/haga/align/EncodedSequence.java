@@ -0,0 +1,131 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.PackedLabeledSequence;
+import haga.PackedSequence;
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A LabeledSequence prepared for the alignment kernels: one base code (the
+ * score matrix index of NeedlemanWunsch) and one label id per position.
+ */
+final class EncodedSequence {
+
+	// label id of positions that have no label; it matches every label
+	static final int NO_LABEL = -1;
+
+	// the base codes of NeedlemanWunsch, by PackedSequence code
+	private static final byte[] PACKED_BASES = { 0, 2, 1, 3 };
+
+	// only the first length() entries are used; the arrays can be longer
+	// when they are reused (see Workspace)
+	byte[] bases;
+	int[] labels;
+	private int length;
+
+	/**
+	 * @param labelIds the ids of the labels seen so far, extended with the new
+	 *   labels of ls. Sequences that are aligned together must share it
+	 */
+	EncodedSequence(LabeledSequence ls, Map<String, Integer> labelIds) {
+		int length = LabeledSequenceView.length(ls);
+		bases = new byte[length];
+		labels = new int[length];
+		encode(ls, labelIds);
+	}
+
+	// an empty sequence, to be filled by encode()
+	EncodedSequence() {
+		bases = new byte[0];
+		labels = new int[0];
+	}
+
+	/**
+	 * Replaces this sequence with ls, growing the arrays if they are too
+	 * short. A view is read in place, and a packed sequence is not unpacked.
+	 */
+	void encode(LabeledSequence ls, Map<String, Integer> labelIds) {
+		if (ls instanceof PackedLabeledSequence) {
+			encode(((PackedLabeledSequence) ls).getPackedSequence());
+		} else {
+			char[] backing = LabeledSequenceView.backingOf(ls);
+			int offset = LabeledSequenceView.offsetOf(ls);
+			length = LabeledSequenceView.length(ls);
+			grow();
+			for (int i = 0; i < length; i++)
+				bases[i] = (byte) NeedlemanWunsch.getIndex(backing[offset + i]);
+		}
+
+		// the label in effect at each position follows the same iteration
+		// NeedlemanWunsch has always used: move to the next label after the
+		// end of the current one
+		Iterator<Label> iterator = ls.getLabels().iterator();
+		Label label = iterator.hasNext() ? iterator.next() : null;
+		int id = label == null ? NO_LABEL : idOf(label, labelIds);
+		for (int i = 0; i < length; i++) {
+			labels[i] = id;
+			if (label != null && i == label.getEndIndex() && iterator.hasNext()) {
+				label = iterator.next();
+				id = idOf(label, labelIds);
+			}
+		}
+	}
+
+	// the bases of a packed sequence, without unpacking it
+	private void encode(PackedSequence sequence) {
+		length = sequence.length();
+		grow();
+		sequence.getCodes(0, length, bases, 0);
+		for (int i = 0; i < length; i++) {
+			bases[i] = bases[i] == PackedSequence.NOT_A_BASE ? (byte) NeedlemanWunsch
+					.getIndex(sequence.charAt(i)) : PACKED_BASES[bases[i]];
+		}
+	}
+
+	private void grow() {
+		if (bases.length < length) {
+			bases = new byte[length];
+			labels = new int[length];
+		}
+	}
+
+	int length() {
+		return length;
+	}
+
+	private static int idOf(Label label, Map<String, Integer> labelIds) {
+		Integer id = labelIds.get(label.toString());
+		if (id == null) {
+			id = labelIds.size();
+			labelIds.put(label.toString(), id);
+		}
+		return id;
+	}
+
+	static boolean labelsMatch(int label1, int label2) {
+		return label1 == NO_LABEL || label2 == NO_LABEL || label1 == label2;
+	}
+}
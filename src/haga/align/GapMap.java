@@ -0,0 +1,149 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+/**
+ * Maps the positions of a gapped sequence (a row of an alignment) to the
+ * positions of the same sequence without gaps, and back. The map is a bit
+ * per position, set for the bases, with the number of bases before each
+ * word of 64 bits: toUngapped() takes constant time, and toGapped() a binary
+ * search over the words.
+ *
+ * A GapMap never changes once built, so it can be shared between threads.
+ */
+public final class GapMap {
+
+	public static final char GAP = '-';
+
+	// bit i % 64 of word i / 64 is set when position i is a base
+	private final long[] bases;
+	// the number of bases before each word, and after the last one
+	private final int[] ranks;
+	private final int length;
+
+	/**
+	 * @param gapped the sequence, with GAP for the gaps
+	 */
+	public GapMap(char[] gapped) {
+		length = gapped.length;
+		bases = new long[(length + 63) >>> 6];
+		ranks = new int[bases.length + 1];
+		for (int w = 0; w < bases.length; w++) {
+			int start = w << 6, end = Math.min(length, start + 64);
+			long word = 0;
+			for (int i = start; i < end; i++) {
+				if (gapped[i] != GAP)
+					word |= 1L << (i - start);
+			}
+			bases[w] = word;
+			ranks[w + 1] = ranks[w] + Long.bitCount(word);
+		}
+	}
+
+	// takes bases, whose bits past length must be clear
+	GapMap(long[] bases, int length) {
+		this.length = length;
+		this.bases = bases;
+		ranks = new int[bases.length + 1];
+		for (int w = 0; w < bases.length; w++)
+			ranks[w + 1] = ranks[w] + Long.bitCount(bases[w]);
+	}
+
+	/**
+	 * @return the length of the gapped sequence
+	 */
+	public int gappedLength() {
+		return length;
+	}
+
+	/**
+	 * @return the number of bases of the sequence
+	 */
+	public int ungappedLength() {
+		return ranks[bases.length];
+	}
+
+	public boolean isGap(int gappedIndex) {
+		checkIndex(gappedIndex, length - 1);
+		return (bases[gappedIndex >>> 6] & (1L << gappedIndex)) == 0;
+	}
+
+	/**
+	 * @param gappedIndex between 0 and gappedLength(), inclusive
+	 * @return the number of bases before gappedIndex: the position of its
+	 *   base without the gaps, or of the next base if it is a gap
+	 */
+	public int toUngapped(int gappedIndex) {
+		checkIndex(gappedIndex, length);
+		int w = gappedIndex >>> 6;
+		int bit = gappedIndex & 63;
+		if (bit == 0)
+			return ranks[w];
+		return ranks[w] + Long.bitCount(bases[w] & (-1L >>> (64 - bit)));
+	}
+
+	/**
+	 * @param ungappedIndex between 0 and ungappedLength(), inclusive
+	 * @return the position in the gapped sequence of the base at
+	 *   ungappedIndex, or gappedLength() for ungappedLength()
+	 */
+	public int toGapped(int ungappedIndex) {
+		checkIndex(ungappedIndex, ungappedLength());
+		if (ungappedIndex == ungappedLength())
+			return length;
+
+		// the last word with fewer bases before it than ungappedIndex + 1
+		int low = 0, high = bases.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (ranks[mid] <= ungappedIndex)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		long word = bases[low];
+		for (int skip = ungappedIndex - ranks[low]; skip > 0; skip--)
+			word &= word - 1;
+		return (low << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * @return the bases of gapped, which this map was built from
+	 */
+	public char[] removeGaps(char[] gapped) {
+		if (gapped.length != length)
+			throw new IllegalArgumentException("'gapped' must have length "
+					+ length);
+
+		char[] ungapped = new char[ungappedLength()];
+		int j = 0;
+		for (int w = 0; w < bases.length; w++) {
+			for (long word = bases[w]; word != 0; word &= word - 1)
+				ungapped[j++] = gapped[(w << 6) + Long.numberOfTrailingZeros(word)];
+		}
+		return ungapped;
+	}
+
+	private static void checkIndex(int index, int max) {
+		if (index < 0 || index > max)
+			throw new IndexOutOfBoundsException("Index: " + index + ", max: "
+					+ max);
+	}
+}
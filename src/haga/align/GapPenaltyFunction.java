@@ -28,5 +28,13 @@ public interface GapPenaltyFunction {
 	 */
 	int calcGapPenalty (int[][] dynProgMatrix, int[][] scoreMatrix);
 	
+	/**
+	 * Alignment engines evaluate a position independent penalty once per
+	 * alignment, with a null dynamic programming matrix, instead of once per
+	 * cell.
+	 * @return true if calcGapPenalty() ignores the dynamic programming matrix
+	 */
+	boolean isPositionIndependent();
+	
 	GapPenaltyFunction merge(GapPenaltyFunction other, double otherWeight);
 }
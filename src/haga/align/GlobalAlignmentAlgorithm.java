@@ -24,6 +24,10 @@ import haga.labeler.LabeledSequence;
 public interface GlobalAlignmentAlgorithm {
 	Alignment align(LabeledSequence ls1, LabeledSequence ls2);
 
+	// The score of the alignment align() would return, computed without a
+	// traceback
+	int score(LabeledSequence ls1, LabeledSequence ls2);
+
 	// Update the score matrix. weight specifies weight for the new matrix
 	public void updateScoreMatrix(int[][] newScoreMatrix, double weight);
 
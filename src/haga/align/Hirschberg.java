@@ -0,0 +1,292 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Divide-and-conquer, linear space version of NeedlemanWunsch.align(). The
+ * score matrix is never stored; instead the matrix is cut at its middle row,
+ * the column where the traceback crosses that row is found with a forward
+ * pass, and both halves are solved recursively.
+ * 
+ * Unlike the textbook algorithm, each sub-problem is solved with the scores
+ * of its top row and left column as a boundary, so every traceback decision
+ * is made on the same numbers as in the full matrix. This makes the result
+ * identical to NeedlemanWunsch.align(), ties included. Scores and gap
+ * penalties come from the ScoringTable of the given NeedlemanWunsch, so
+ * subclasses such as NeedlemanWunschIyoToscano work unchanged.
+ */
+class Hirschberg {
+
+	// sub-problems smaller than this are solved with a full traceback matrix
+	private static final int BASE_CELLS = 1 << 14;
+
+	private final ScoringTable table;
+	private final char[] str1, str2;
+	private final EncodedSequence seq1, seq2;
+
+	// the alignment is written backwards, from the end of these buffers
+	private final char[] out1, out2;
+	private int pos;
+
+	Hirschberg(NeedlemanWunsch nw, LabeledSequence ls1, LabeledSequence ls2) {
+		table = nw.scoringTable();
+		str1 = ls1.getSequence();
+		str2 = ls2.getSequence();
+		Map<String, Integer> labelIds = new HashMap<String, Integer>();
+		seq1 = PreparedSequence.encode(ls1, labelIds);
+		seq2 = PreparedSequence.encode(ls2, labelIds);
+		out1 = new char[str1.length + str2.length];
+		out2 = new char[out1.length];
+		pos = out1.length;
+	}
+
+	Alignment align() {
+		int n = str1.length;
+		int m = str2.length;
+		int gap = table.gapMismatch;
+
+		int[] top = new int[m + 1];
+		for (int j = 0; j <= m; j++)
+			top[j] = j * gap;
+		int[] left = new int[n + 1];
+		for (int i = 0; i <= n; i++)
+			left[i] = i * gap;
+
+		long touch = trace(0, 0, n, m, top, 0, left, 0);
+		int i = row(touch);
+		int j = col(touch);
+		while (j > 0)
+			emit(Traceback.LEFT, i, j--);
+		while (i > 0)
+			emit(Traceback.UP, i--, j);
+
+		return new Alignment(Arrays.copyOfRange(out1, pos, out1.length),
+				Arrays.copyOfRange(out2, pos, out2.length));
+	}
+
+	/*
+	 * Emits the traceback of the rectangle [r0, r1] x [c0, c1] starting at
+	 * (r1, c1) and stopping at the first cell on row r0 or column c0, which is
+	 * returned. top[topOff + k] is the score of (r0, c0 + k) and
+	 * left[leftOff + k] is the score of (r0 + k, c0).
+	 */
+	private long trace(int r0, int c0, int r1, int c1, int[] top, int topOff,
+			int[] left, int leftOff) {
+		if (r1 == r0 || c1 == c0)
+			return cell(r1, c1);
+
+		int h = r1 - r0;
+		int w = c1 - c0;
+		if (h == 1 || (long) (h + 1) * (w + 1) <= BASE_CELLS)
+			return traceFull(r0, c0, r1, c1, top, topOff, left, leftOff);
+
+		int mid = r0 + h / 2;
+
+		// forward pass. For the rows below mid, also track where the traceback
+		// from each cell first reaches row mid (as a column >= 0) or the left
+		// column (as a negated row offset)
+		int[] prev = Arrays.copyOfRange(top, topOff, topOff + w + 1);
+		int[] curr = new int[w + 1];
+		int[] midRow = null;
+		int[] prevCross = null;
+		int[] currCross = null;
+		for (int i = r0 + 1; i <= r1; i++) {
+			boolean below = i > mid;
+			if (below && prevCross == null) {
+				midRow = prev.clone();
+				prevCross = new int[w + 1];
+				currCross = new int[w + 1];
+				for (int j = 0; j <= w; j++)
+					prevCross[j] = j;
+			}
+
+			curr[0] = left[leftOff + i - r0];
+			if (below)
+				currCross[0] = -(i - r0);
+			for (int j = 1; j <= w; j++) {
+				int gj = c0 + j;
+				boolean labelsMatch = EncodedSequence.labelsMatch(
+						seq1.labels[i - 1], seq2.labels[gj - 1]);
+				int gapPen = table.gap(labelsMatch);
+				int matchScore = prev[j - 1]
+						+ table.score(labelsMatch, seq1.bases[i - 1],
+								seq2.bases[gj - 1]);
+				int gap1Score = curr[j - 1] + gapPen;
+				int gap2Score = prev[j] + gapPen;
+				int score = Math.min(Math.min(gap1Score, gap2Score), matchScore);
+				curr[j] = score;
+
+				if (below) {
+					if (score == matchScore)
+						currCross[j] = prevCross[j - 1];
+					else if (score == gap1Score)
+						currCross[j] = currCross[j - 1];
+					else
+						currCross[j] = prevCross[j];
+				}
+			}
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+			if (below) {
+				tmp = prevCross;
+				prevCross = currCross;
+				currCross = tmp;
+			}
+		}
+		int cross = prevCross[w];
+		prev = curr = prevCross = currCross = null;
+
+		if (cross < 0) {
+			// the traceback leaves through the left column below mid, so the
+			// upper half is never visited
+			return trace(mid, c0, r1, c1, midRow, 0, left, leftOff + mid - r0);
+		}
+
+		// the traceback first reaches row mid at column c, and stays at or to
+		// the right of c below it. Solve the lower half, which needs the scores
+		// of column c as its left boundary
+		int c = c0 + cross;
+		long touch;
+		if (c == c1) { // straight up from (r1, c1)
+			touch = cell(r1, c1);
+		} else {
+			int[] lowerTop = Arrays.copyOfRange(midRow, cross, w + 1);
+			int[] lowerLeft = left;
+			int lowerLeftOff = leftOff + mid - r0;
+			if (c != c0) {
+				lowerLeft = column(r0, c0, mid, r1, c, midRow, left, leftOff);
+				lowerLeftOff = 0;
+			}
+			midRow = null;
+			touch = trace(mid, c, r1, c1, lowerTop, 0, lowerLeft, lowerLeftOff);
+		}
+		for (int i = row(touch); i > mid; i--)
+			emit(Traceback.UP, i, c);
+
+		if (c == c0)
+			return cell(mid, c0);
+
+		return trace(r0, c0, mid, c, top, topOff, left, leftOff);
+	}
+
+	// Recomputes the scores of column c for rows [mid, r1], starting from row
+	// mid and the left column c0
+	private int[] column(int r0, int c0, int mid, int r1, int c, int[] midRow,
+			int[] left, int leftOff) {
+		int w = c - c0;
+		int[] prev = Arrays.copyOf(midRow, w + 1);
+		int[] curr = new int[w + 1];
+		int[] result = new int[r1 - mid + 1];
+		result[0] = prev[w];
+		for (int i = mid + 1; i <= r1; i++) {
+			curr[0] = left[leftOff + i - r0];
+			for (int j = 1; j <= w; j++) {
+				curr[j] = score(i, c0 + j, prev[j - 1], curr[j - 1], prev[j]);
+			}
+			result[i - mid] = curr[w];
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		return result;
+	}
+
+	private long traceFull(int r0, int c0, int r1, int c1, int[] top,
+			int topOff, int[] left, int leftOff) {
+		int h = r1 - r0;
+		int w = c1 - c0;
+		int[] scores = new int[(h + 1) * (w + 1)];
+		Traceback tb = new Traceback(h + 1, w + 1);
+		System.arraycopy(top, topOff, scores, 0, w + 1);
+		for (int i = 1; i <= h; i++) {
+			int row = i * (w + 1);
+			scores[row] = left[leftOff + i];
+			for (int j = 1; j <= w; j++) {
+				int gi = r0 + i;
+				int gj = c0 + j;
+				boolean labelsMatch = EncodedSequence.labelsMatch(
+						seq1.labels[gi - 1], seq2.labels[gj - 1]);
+				int gapPen = table.gap(labelsMatch);
+				int matchScore = scores[row - (w + 1) + j - 1]
+						+ table.score(labelsMatch, seq1.bases[gi - 1],
+								seq2.bases[gj - 1]);
+				int gap1Score = scores[row + j - 1] + gapPen;
+				int gap2Score = scores[row - (w + 1) + j] + gapPen;
+				int score = Math.min(Math.min(gap1Score, gap2Score), matchScore);
+				scores[row + j] = score;
+
+				if (score == matchScore)
+					tb.set(i, j, Traceback.DIAG);
+				else if (score == gap1Score)
+					tb.set(i, j, Traceback.LEFT);
+				else
+					tb.set(i, j, Traceback.UP);
+			}
+		}
+
+		int i = h;
+		int j = w;
+		while (i > 0 && j > 0) {
+			int p = tb.get(i, j);
+			emit(p, r0 + i, c0 + j);
+			if (p != Traceback.LEFT)
+				i--;
+			if (p != Traceback.UP)
+				j--;
+		}
+		return cell(r0 + i, c0 + j);
+	}
+
+	private int score(int i, int j, int diag, int left, int up) {
+		boolean labelsMatch = EncodedSequence.labelsMatch(seq1.labels[i - 1],
+				seq2.labels[j - 1]);
+		int gapPen = table.gap(labelsMatch);
+		int matchScore = diag
+				+ table.score(labelsMatch, seq1.bases[i - 1], seq2.bases[j - 1]);
+		return Math.min(Math.min(left + gapPen, up + gapPen), matchScore);
+	}
+
+	// writes the alignment column for leaving cell (i, j) in direction p
+	private void emit(int p, int i, int j) {
+		pos--;
+		out1[pos] = p == Traceback.LEFT ? '-' : str1[i - 1];
+		out2[pos] = p == Traceback.UP ? '-' : str2[j - 1];
+	}
+
+	private static long cell(int i, int j) {
+		return ((long) i << 32) | j;
+	}
+
+	private static int row(long cell) {
+		return (int) (cell >>> 32);
+	}
+
+	private static int col(long cell) {
+		return (int) cell;
+	}
+}
@@ -19,16 +19,33 @@
 
 package haga.align;
 
-import haga.labeler.Label;
 import haga.labeler.LabeledSequence;
 
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.Map;
 
 public class NeedlemanWunsch implements GlobalAlignmentAlgorithm {
 
-	private int[][] alignmentMatrix;
-	private GapPenaltyFunction gpf;
-	private int[][] scoreMatrix;
+	/**
+	 * Alignments whose dynamic programming matrix would have more cells than
+	 * this are computed in linear space (see Hirschberg) by default.
+	 */
+	public static final long DEFAULT_LINEAR_SPACE_THRESHOLD = 1L << 24;
+
+	// the bases accepted by calcScore(), in score matrix order
+	static final char[] BASES = new char[] { 'A', 'G', 'C', 'T' };
+
+	// the matrix calcGapPen(boolean) is called for, on each thread
+	private static final ThreadLocal<int[][]> MATRIX = new ThreadLocal<int[][]>();
+
+	// The scoring parameters are never modified in place: updates replace
+	// them, under the lock of this object, and drop the cached table. An
+	// alignment reads the table once, so it sees one consistent version of
+	// the parameters even when they are updated concurrently
+	private volatile GapPenaltyFunction gpf;
+	private volatile int[][] scoreMatrix;
+	private volatile ScoringTable table;
+	private volatile long linearSpaceThreshold = DEFAULT_LINEAR_SPACE_THRESHOLD;
 
 	public NeedlemanWunsch(int[][] scoreMatrix,
 			GapPenaltyFunction gapPenaltyFunc) {
@@ -46,173 +63,273 @@ public class NeedlemanWunsch implements GlobalAlignmentAlgorithm {
 				{ 5, 5, 0, 4 }, { 5, 5, 4, 0 } });
 	}
 
-	public void setScoreMatrix(int[][] newScoreMatrix) {
+	/**
+	 * @param newScoreMatrix copied, so later changes to it have no effect
+	 */
+	public synchronized void setScoreMatrix(int[][] newScoreMatrix) {
 		if (newScoreMatrix == null)
 			throw new IllegalArgumentException(
 					"'newScoreMatrix' cannot be null");
 
-		this.scoreMatrix = newScoreMatrix;
+		int[][] copy = new int[newScoreMatrix.length][];
+		for (int i = 0; i < copy.length; i++)
+			copy[i] = newScoreMatrix[i].clone();
+		scoreMatrix = copy;
+		table = null;
+	}
+
+	/**
+	 * @return the calcScore()/calcGapPen() hooks evaluated for the current
+	 *   scoring parameters. The table is built once per version of the
+	 *   parameters and shared by all the alignments that use it
+	 */
+	ScoringTable scoringTable() {
+		ScoringTable t = table;
+		if (t == null) {
+			synchronized (this) {
+				t = table;
+				if (t == null) {
+					t = new ScoringTable(this);
+					table = t;
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Sets the number of matrix cells ((n+1)*(m+1)) above which align() switches
+	 * to the divide-and-conquer linear space mode. The linear space mode
+	 * produces exactly the same alignment, at roughly twice the running time.
+	 * @param cells 0 to always use linear space, Long.MAX_VALUE to never use it
+	 */
+	public void setLinearSpaceThreshold(long cells) {
+		if (cells < 0)
+			throw new IllegalArgumentException("'cells' cannot be negative");
+
+		linearSpaceThreshold = cells;
+	}
+
+	public long getLinearSpaceThreshold() {
+		return linearSpaceThreshold;
 	}
 
-	private enum Pointer {
-		UP, LEFT, DIAG
+	/**
+	 * @return true if the gap penalty function is position independent, in
+	 *   which case the alignment engines look the gap penalties up once per
+	 *   alignment (see ScoringTable)
+	 */
+	boolean hasPositionIndependentGaps() {
+		return gpf.isPositionIndependent();
 	}
 
+	/**
+	 * The scores of calcScore() and calcGapPen() are looked up once per call
+	 * (see ScoringTable), so overriding hooks must only depend on their
+	 * arguments. A position dependent gap penalty function is instead called
+	 * for every cell with the full matrix, whatever the linear space
+	 * threshold.
+	 */
 	@Override
 	public Alignment align(LabeledSequence ls1, LabeledSequence ls2) {
-
-		Pointer[][] tb = new Pointer[ls1.getSequence().length + 1][ls2
-				.getSequence().length + 1];
-
-		char[] str1 = ls1.getSequence();
-		char[] str2 = ls2.getSequence();
-		Iterator<Label> iterator1 = ls1.getLabels().iterator();
-		Label label1 = iterator1.hasNext() ? iterator1.next() : null;
-		// initialize alignmentMatrix
-		alignmentMatrix = new int[str1.length + 1][str2.length + 1];
-		for (int i = 1; i < alignmentMatrix.length; i++) {
-			alignmentMatrix[i][0] = -i * calcGapPen(false);
+		if (!hasPositionIndependentGaps()) {
+			Traceback tb = new Traceback(ls1.getSequence().length + 1, ls2
+					.getSequence().length + 1);
+			fillPositionDependent(ls1, ls2, tb);
+			return tb.trace(ls1.getSequence(), ls2.getSequence());
 		}
-		for (int i = 1; i < alignmentMatrix[0].length; i++) {
-			alignmentMatrix[0][i] = -i * calcGapPen(false);
+
+		long cells = (long) (ls1.getSequence().length + 1)
+				* (ls2.getSequence().length + 1);
+		if (cells > linearSpaceThreshold) {
+			return new Hirschberg(this, ls1, ls2).align();
 		}
 
-		for (int i = 0; i < tb.length; i++) {
-			tb[i][0] = Pointer.UP;
+		Workspace ws = Workspace.acquire();
+		try {
+			return align(ws, ls1, ls2);
+		} finally {
+			ws.release();
 		}
-		
-		for (int i = 0; i < tb[0].length; i++) {
-			tb[0][i] = Pointer.LEFT;
+	}
+
+	private Alignment align(Workspace ws, LabeledSequence ls1,
+			LabeledSequence ls2) {
+		ScoringTable table = scoringTable();
+		EncodedSequence seq1 = ws.encode1(ls1);
+		EncodedSequence seq2 = ws.encode2(ls2);
+		int n = seq1.length();
+		int m = seq2.length();
+		Traceback tb = ws.traceback(n + 1, m + 1);
+
+		int[] prev = ws.row1(m + 1);
+		int[] curr = ws.row2(m + 1);
+		prev[0] = 0;
+		for (int j = 1; j <= m; j++) {
+			prev[j] = j * table.gapMismatch;
 		}
-		
+
 		// fill in the matrix
-		for (int i = 1; i < alignmentMatrix.length; i++) {
-			Iterator<Label> iterator2 = ls2.getLabels().iterator();
-			Label label2 = iterator2.hasNext() ? iterator2.next() : null;
-			for (int j = 1; j < alignmentMatrix[0].length; j++) {
-				boolean labelsMatch = (label1 == null || label2 == null) ? true
-						: label1.toString().equals(label2.toString());
-				
-				int matchScore = alignmentMatrix[i - 1][j - 1]
-						+ calcScore(str1[i - 1], str2[j - 1], labelsMatch);
-				int gap1Score = alignmentMatrix[i][j - 1]
-						- calcGapPen(labelsMatch);
-				int gap2Score = alignmentMatrix[i - 1][j]
-						- calcGapPen(labelsMatch);
-
-				alignmentMatrix[i][j] = Math.min(
-						Math.min(gap1Score, gap2Score), matchScore);
-
-				if (alignmentMatrix[i][j] == matchScore) {
-					tb[i][j] = Pointer.DIAG;
-				} else if (alignmentMatrix[i][j] == gap1Score) {
-					tb[i][j] = Pointer.LEFT;
+		for (int i = 1; i <= n; i++) {
+			int base1 = seq1.bases[i - 1];
+			int label1 = seq1.labels[i - 1];
+			curr[0] = i * table.gapMismatch;
+			for (int j = 1; j <= m; j++) {
+				boolean labelsMatch = EncodedSequence.labelsMatch(label1,
+						seq2.labels[j - 1]);
+				int gapPen = table.gap(labelsMatch);
+
+				int matchScore = prev[j - 1]
+						+ table.score(labelsMatch, base1, seq2.bases[j - 1]);
+				int gap1Score = curr[j - 1] + gapPen;
+				int gap2Score = prev[j] + gapPen;
+
+				int score = Math.min(Math.min(gap1Score, gap2Score), matchScore);
+				curr[j] = score;
+
+				if (score == matchScore) {
+					tb.set(i, j, Traceback.DIAG);
+				} else if (score == gap1Score) {
+					tb.set(i, j, Traceback.LEFT);
 				} else {
-					tb[i][j] = Pointer.UP;
+					tb.set(i, j, Traceback.UP);
 				}
-
-				if (label2 != null && j - 1 == label2.getEndIndex() 
-						&& iterator2.hasNext()) {
-					label2 = iterator2.next();
-				}
-			}
-			if (label1 != null && i - 1 == label1.getEndIndex()
-					&& iterator1.hasNext()) {
-				label1 = iterator1.next();
 			}
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
 		}
 
-		// System.out.println(alignmentMatrix[alignmentMatrix.length-1][alignmentMatrix[0].length-1]);
-
-		/*
-		 * for (int i=0; i<alignmentMatrix.length; i++) { for (int j=0; j<alignmentMatrix[0].length;
-		 * j++) { System.out.print(alignmentMatrix[i][j]+" "); }
-		 * 
-		 * System.out.print('\n'); }
-		 */
-
-		// calculate best path through alignmentMatrix
-		int i = alignmentMatrix.length - 1;
-		int j = alignmentMatrix[0].length - 1;
-		StringBuffer strbuf1 = new StringBuffer();
-		StringBuffer strbuf2 = new StringBuffer();
-
-		while (i > 0 || j > 0) {
-			if (i == 0) {
-				strbuf1.append('-');
-				strbuf2.append(str2[j - 1]);
-				j--;
-				continue;
-			} else if (j == 0) {
-				strbuf1.append(str1[i - 1]);
-				strbuf2.append('-');
-				i--;
-				continue;
-			}
-//
-//			int topScore = alignmentMatrix[i - 1][j];
-//			int leftScore = alignmentMatrix[i][j - 1];
-			// int diagScore = alignmentMatrix[i - 1][j - 1];
-			//
-			// boolean top = false, diag = false;
-
-//			int score = alignmentMatrix[i][j];
-			switch (tb[i][j]) {
-			case UP:
-				strbuf1.append(str1[i - 1]);
-				strbuf2.append('-');
-				i--;
-				break;
-			case LEFT:
-				strbuf1.append('-');
-				strbuf2.append(str2[j - 1]);
-				j--;
-				break;
-			default:
-				strbuf1.append(str1[i - 1]);
-				strbuf2.append(str2[j - 1]);
-				i--;
-				j--;
-				break;
+		// calculate best path through the matrix
+		return tb.trace(ls1.getSequence(), ls2.getSequence());
+	}
+
+	/**
+	 * Computes the score of the optimal alignment with two rolling rows along
+	 * the shorter of the two sequences, so only O(min(n, m)) memory is used
+	 * for the matrix.
+	 */
+	@Override
+	public int score(LabeledSequence ls1, LabeledSequence ls2) {
+		if (!hasPositionIndependentGaps()) {
+			int[][] matrix = fillPositionDependent(ls1, ls2, null);
+			return matrix[matrix.length - 1][matrix[0].length - 1];
+		}
+
+		Workspace ws = Workspace.acquire();
+		try {
+			return score(ws, ls1, ls2);
+		} finally {
+			ws.release();
+		}
+	}
+
+	private int score(Workspace ws, LabeledSequence ls1, LabeledSequence ls2) {
+		ScoringTable table = scoringTable();
+		EncodedSequence seq1 = ws.encode1(ls1);
+		EncodedSequence seq2 = ws.encode2(ls2);
+
+		// fill the matrix row by row or column by column, whichever keeps the
+		// rolling arrays shortest
+		boolean byColumn = seq2.length() > seq1.length();
+		EncodedSequence outer = byColumn ? seq2 : seq1;
+		EncodedSequence inner = byColumn ? seq1 : seq2;
+
+		int width = inner.length() + 1;
+		int[] prev = ws.row1(width);
+		int[] curr = ws.row2(width);
+		for (int k = 0; k < width; k++) {
+			prev[k] = k * table.gapMismatch;
+		}
+
+		for (int a = 1; a <= outer.length(); a++) {
+			int outerBase = outer.bases[a - 1];
+			int outerLabel = outer.labels[a - 1];
+			curr[0] = a * table.gapMismatch;
+			for (int b = 1; b < width; b++) {
+				boolean labelsMatch = EncodedSequence.labelsMatch(outerLabel,
+						inner.labels[b - 1]);
+				int gapPen = table.gap(labelsMatch);
+				int matchScore = prev[b - 1]
+						+ (byColumn ? table.score(labelsMatch, inner.bases[b - 1],
+								outerBase) : table.score(labelsMatch, outerBase,
+								inner.bases[b - 1]));
+				curr[b] = Math.min(Math.min(curr[b - 1] + gapPen, prev[b]
+						+ gapPen), matchScore);
 			}
-//			if (leftScore - gpf.calcGapPenalty(alignmentMatrix, scoreMatrix) == score) {
-//				strbuf1.append('-');
-//				strbuf2.append(str2[j - 1]);
-//				j--;
-//			} else if (topScore
-//					- gpf.calcGapPenalty(alignmentMatrix, scoreMatrix) == score) {
-//				strbuf1.append(str1[i - 1]);
-//				strbuf2.append('-');
-//				i--;
-//			} else {
-//				strbuf1.append(str1[i - 1]);
-//				strbuf2.append(str2[j - 1]);
-//				i--;
-//				j--;
-//			}
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
 		}
 
-		int len = strbuf1.length();
+		return prev[inner.length()];
+	}
 
-		char[] result1 = new char[strbuf1.length()];
-		for (int index = 0; index < strbuf1.length(); index++)
-			result1[len - index - 1] = strbuf1.charAt(index);
+	/**
+	 * Fills the whole dynamic programming matrix, calling the gap penalty
+	 * function once per cell with the matrix calculated so far.
+	 * @param tb the traceback pointers to set, or null
+	 */
+	private int[][] fillPositionDependent(LabeledSequence ls1,
+			LabeledSequence ls2, Traceback tb) {
+		ScoringTable table = scoringTable();
+		Map<String, Integer> labelIds = new HashMap<String, Integer>();
+		EncodedSequence seq1 = PreparedSequence.encode(ls1, labelIds);
+		EncodedSequence seq2 = PreparedSequence.encode(ls2, labelIds);
+		int n = seq1.length();
+		int m = seq2.length();
+
+		int[][] matrix = new int[n + 1][m + 1];
+		for (int i = 1; i <= n; i++) {
+			matrix[i][0] = -i * calcGapPen(matrix, false);
+		}
+		for (int j = 1; j <= m; j++) {
+			matrix[0][j] = -j * calcGapPen(matrix, false);
+		}
 
-		char[] result2 = new char[strbuf2.length()];
-		i = result2.length - 1;
-		for (int index = 0; index < strbuf2.length(); index++)
-			result2[len - index - 1] = strbuf2.charAt(index);
+		for (int i = 1; i <= n; i++) {
+			int base1 = seq1.bases[i - 1];
+			int label1 = seq1.labels[i - 1];
+			for (int j = 1; j <= m; j++) {
+				boolean labelsMatch = EncodedSequence.labelsMatch(label1,
+						seq2.labels[j - 1]);
+				int gapPen = -calcGapPen(matrix, labelsMatch);
+
+				int matchScore = matrix[i - 1][j - 1]
+						+ table.score(labelsMatch, base1, seq2.bases[j - 1]);
+				int gap1Score = matrix[i][j - 1] + gapPen;
+				int gap2Score = matrix[i - 1][j] + gapPen;
+
+				int score = Math.min(Math.min(gap1Score, gap2Score), matchScore);
+				matrix[i][j] = score;
+
+				if (tb == null) {
+					continue;
+				} else if (score == matchScore) {
+					tb.set(i, j, Traceback.DIAG);
+				} else if (score == gap1Score) {
+					tb.set(i, j, Traceback.LEFT);
+				} else {
+					tb.set(i, j, Traceback.UP);
+				}
+			}
+		}
 
-		return new Alignment(result1, result2);
+		return matrix;
 	}
 
 	@Override
-	public void updateGapPenaltyFunction(GapPenaltyFunction gpf, double weight) {
+	public synchronized void updateGapPenaltyFunction(GapPenaltyFunction gpf,
+			double weight) {
 		this.gpf = this.gpf.merge(gpf, weight);
+		table = null;
 	}
 
 	@Override
-	public void updateScoreMatrix(int[][] newScoreMatrix, double weight) {
+	public synchronized void updateScoreMatrix(int[][] newScoreMatrix,
+			double weight) {
 		if (weight < 0 || weight > 1) {
 			throw new IllegalArgumentException(
 					"weight must be between 0 and 1 (was " + weight + ")");
@@ -230,24 +347,53 @@ public class NeedlemanWunsch implements GlobalAlignmentAlgorithm {
 					"Score matrices have different sizes");
 		}
 
+		int[][] merged = new int[scoreMatrix.length][];
 		for (int i = 0; i < scoreMatrix.length; i++) {
+			merged[i] = new int[scoreMatrix[i].length];
 			for (int j = 0; j < scoreMatrix[i].length; j++) {
-				scoreMatrix[i][j] = (int) Math.round(weight
+				merged[i][j] = (int) Math.round(weight
 						* newScoreMatrix[i][j] + (1 - weight)
 						* scoreMatrix[i][j]);
 			}
 		}
+		scoreMatrix = merged;
+		table = null;
 	}
 
 	protected int calcScore(char c1, char c2, boolean labelsMatch) {
 		return scoreMatrix[getIndex(c1)][getIndex(c2)];
 	}
 
+	/**
+	 * Calls calcGapPen(boolean), the hook subclasses override, with the
+	 * matrix available to it through dynProgMatrix().
+	 * @param dynProgMatrix the dynamic programming matrix calculated so far,
+	 *   or null when the gap penalty function is position independent
+	 */
+	protected int calcGapPen(int[][] dynProgMatrix, boolean labelsMatch) {
+		int[][] outer = MATRIX.get();
+		MATRIX.set(dynProgMatrix);
+		try {
+			return calcGapPen(labelsMatch);
+		} finally {
+			MATRIX.set(outer);
+		}
+	}
+
 	protected int calcGapPen(boolean labelsMatch) {
-		return gpf.calcGapPenalty(alignmentMatrix, scoreMatrix);
+		return gpf.calcGapPenalty(dynProgMatrix(), scoreMatrix);
+	}
+
+	/**
+	 * @return the dynamic programming matrix calculated so far, for the
+	 *   calcGapPen(boolean) running on this thread, or null when the gap
+	 *   penalty function is position independent
+	 */
+	protected final int[][] dynProgMatrix() {
+		return MATRIX.get();
 	}
 
-	private int getIndex(char c) {
+	static int getIndex(char c) {
 		char cUpper = Character.toUpperCase(c);
 
 		switch (cUpper) {
@@ -0,0 +1,52 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sequence to align many others with (see Aligner.prepare()): without
+ * gaps, split on its user labels, with each piece encoded for the engines.
+ * It never changes once prepared, so it can be shared between threads.
+ */
+public final class PreparedReference {
+
+	final List<Aligner.Segment> segments;
+	// of the sequence as given, to find its alignments in an AlignmentCache
+	final byte[] digest;
+	private final long length;
+
+	PreparedReference(List<Aligner.Segment> segments, byte[] digest) {
+		this.segments = Collections.unmodifiableList(segments);
+		this.digest = digest;
+		long length = 0;
+		for (Aligner.Segment s : segments)
+			length += s.ls.getSequence().length;
+		this.length = length;
+	}
+
+	/**
+	 * @return the number of bases of the labeled part of the reference
+	 */
+	public long length() {
+		return length;
+	}
+}
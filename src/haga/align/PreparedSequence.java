@@ -0,0 +1,80 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A LabeledSequence encoded once, for sequences that are aligned many times
+ * (see Aligner.prepare()). The engines use the stored encoding instead of
+ * encoding the sequence again when it is the first one of an alignment;
+ * otherwise it behaves as any LabeledSequence. It must not be changed.
+ */
+final class PreparedSequence implements LabeledSequence {
+
+	private final char[] sequence;
+	private final List<Label> labels;
+	private final EncodedSequence encoded;
+	private final Map<String, Integer> labelIds;
+
+	/**
+	 * @param sequence not copied
+	 * @param labels copied
+	 */
+	PreparedSequence(char[] sequence, List<Label> labels) {
+		this.sequence = sequence;
+		this.labels = Collections.unmodifiableList(new ArrayList<Label>(labels));
+		labelIds = new HashMap<String, Integer>();
+		encoded = new EncodedSequence(this, labelIds);
+	}
+
+	public List<Label> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return not a copy
+	 */
+	public char[] getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @param labelIds as for the EncodedSequence constructor
+	 * @return the stored encoding of ls if it has one that fits labelIds,
+	 *   which is when ls is encoded first; otherwise a new encoding
+	 */
+	static EncodedSequence encode(LabeledSequence ls,
+			Map<String, Integer> labelIds) {
+		if (ls instanceof PreparedSequence && labelIds.isEmpty()) {
+			PreparedSequence prepared = (PreparedSequence) ls;
+			labelIds.putAll(prepared.labelIds);
+			return prepared.encoded;
+		}
+		return new EncodedSequence(ls, labelIds);
+	}
+}
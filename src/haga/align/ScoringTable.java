@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+/**
+ * The calcScore()/calcGapPen() hooks of a NeedlemanWunsch evaluated once for
+ * every combination of arguments, so that the alignment kernels can score a
+ * cell with array lookups only. The hooks must therefore only depend on their
+ * arguments. Gap penalties are only looked up when the gap penalty function
+ * is position independent (see NeedlemanWunsch.hasPositionIndependentGaps()).
+ * 
+ * A table never changes once built, so it can be shared by any number of
+ * concurrent alignments (see NeedlemanWunsch.scoringTable()).
+ */
+final class ScoringTable {
+
+	private static final int MATCHING = 16;
+
+	// indexed by (labels match ? 16 : 0) + base1 * 4 + base2
+	private final int[] scores = new int[2 * MATCHING];
+
+	// the (positive) cost of a gap, when labels match and when they do not.
+	// The first row and column always use gapMismatch
+	final int gapMatch, gapMismatch;
+
+	ScoringTable(NeedlemanWunsch nw) {
+		for (int b1 = 0; b1 < 4; b1++) {
+			for (int b2 = 0; b2 < 4; b2++) {
+				char c1 = NeedlemanWunsch.BASES[b1];
+				char c2 = NeedlemanWunsch.BASES[b2];
+				scores[b1 * 4 + b2] = nw.calcScore(c1, c2, false);
+				scores[MATCHING + b1 * 4 + b2] = nw.calcScore(c1, c2, true);
+			}
+		}
+		if (nw.hasPositionIndependentGaps()) {
+			gapMatch = -nw.calcGapPen(null, true);
+			gapMismatch = -nw.calcGapPen(null, false);
+		} else {
+			gapMatch = gapMismatch = 0;
+		}
+	}
+
+	int score(boolean labelsMatch, int base1, int base2) {
+		return scores[(labelsMatch ? MATCHING : 0) + base1 * 4 + base2];
+	}
+
+	int gap(boolean labelsMatch) {
+		return labelsMatch ? gapMatch : gapMismatch;
+	}
+
+	/**
+	 * @return the scores, then gapMatch and gapMismatch: all an alignment
+	 *   with this table depends on
+	 */
+	int[] toArray() {
+		int[] values = new int[scores.length + 2];
+		System.arraycopy(scores, 0, values, 0, scores.length);
+		values[scores.length] = gapMatch;
+		values[scores.length + 1] = gapMismatch;
+		return values;
+	}
+
+	int minScore() {
+		int min = Integer.MAX_VALUE;
+		for (int s : scores)
+			min = Math.min(min, s);
+		return min;
+	}
+}
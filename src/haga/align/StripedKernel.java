@@ -0,0 +1,284 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The matrix of VectorizedNeedlemanWunsch filled with the Vector API, one
+ * column at a time, in Farrar's striped layout: the n rows of a column are
+ * split into LANES stripes of segments = ceil(n / LANES) consecutive rows,
+ * and vector k holds row k of every stripe. Each vector then only depends on
+ * the vector before it, and on the previous column, so a column takes one
+ * pass of vector operations, plus the (usually short) lazy pass that carries
+ * gaps along a column across the stripe boundaries.
+ *
+ * The scores and gap penalties of a column come from a profile per (label,
+ * base) and per label of the second sequence, laid out the same way over the
+ * rows. The traceback pointers of a vector are kept as two lane masks, the
+ * cells whose best move is DIAG and those for which it is LEFT, with the
+ * tie-breaking of NeedlemanWunsch.
+ *
+ * This class needs the jdk.incubator.vector module (java --add-modules
+ * jdk.incubator.vector). Without it, it cannot be loaded, and
+ * VectorizedNeedlemanWunsch uses its scalar kernel instead.
+ */
+final class StripedKernel {
+
+	// at most 16 lanes, so the two masks of a vector fit in an int
+	static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED
+			.length() <= 16 ? IntVector.SPECIES_PREFERRED : IntVector.SPECIES_512;
+
+	static final int LANES = SPECIES.length();
+
+	// the bit of each lane in the diagonal and left masks of a vector
+	private static final IntVector DIAGONAL_BITS = IntVector.zero(SPECIES)
+			.addIndex(1);
+	private static final IntVector LEFT_BITS = DIAGONAL_BITS.add(LANES);
+
+	// larger than any score, with room to add a gap penalty to it
+	private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+	private StripedKernel() {
+	}
+
+	/**
+	 * @return the number of ints of pointers the alignment of seq1 and a
+	 *   sequence of length m needs
+	 */
+	static long pointerCount(int n, int m) {
+		return (long) m * segments(n);
+	}
+
+	private static int segments(int n) {
+		return Math.max(1, (n + LANES - 1) / LANES);
+	}
+
+	/**
+	 * Aligns seq1 (along the rows) and seq2 (along the columns) with the
+	 * position independent gaps of table.
+	 */
+	static Alignment align(Workspace ws, ScoringTable table,
+			EncodedSequence seq1, EncodedSequence seq2, char[] str1,
+			char[] str2) {
+		int n = seq1.length();
+		int m = seq2.length();
+		int segments = segments(n);
+		int size = segments * LANES;
+		int gap = table.gapMismatch;
+		int[] pointers = ws.pointers(m * segments);
+
+		// column 0
+		int[] prev = ws.row1(size);
+		int[] curr = ws.row2(size);
+		for (int l = 0; l < LANES; l++) {
+			for (int k = 0; k < segments; k++)
+				prev[k * LANES + l] = (l * segments + k + 1) * gap;
+		}
+
+		Profiles profiles = new Profiles(ws, table, seq1, seq2, segments);
+		IntVector infinity = IntVector.broadcast(SPECIES, INFINITY);
+		int last = (segments - 1) * LANES;
+		for (int j = 1; j <= m; j++) {
+			int[] s = profiles.scores(j);
+			int[] g = profiles.gaps(j);
+			int top = j * gap;
+			int p = (j - 1) * segments;
+
+			// the row above the first row of each stripe is the last row of
+			// the stripe before it
+			IntVector diagonal = IntVector.broadcast(SPECIES, top - gap).slice(
+					LANES - 1, IntVector.fromArray(SPECIES, prev, last));
+			IntVector up = IntVector.broadcast(SPECIES, top).slice(LANES - 1,
+					infinity);
+			for (int k = 0; k < segments; k++) {
+				int index = k * LANES;
+				IntVector left = IntVector.fromArray(SPECIES, prev, index);
+				IntVector gaps = IntVector.fromArray(SPECIES, g, index);
+				IntVector match = diagonal.add(IntVector.fromArray(SPECIES, s,
+						index));
+				IntVector gap1 = left.add(gaps);
+				IntVector score = match.min(gap1).min(up.add(gaps));
+				score.intoArray(curr, index);
+
+				// DIAG, then LEFT, then UP, as NeedlemanWunsch breaks ties
+				pointers[p + k] = masks(match, gap1, score);
+				diagonal = left;
+				up = score;
+			}
+
+			// carry the gaps going down each stripe into the next stripe,
+			// until they no longer lower any cell. The cells they lower are
+			// reached from above
+			up = IntVector.broadcast(SPECIES, top).slice(LANES - 1,
+					IntVector.fromArray(SPECIES, curr, last));
+			for (int k = 0;;) {
+				int index = k * LANES;
+				IntVector score = IntVector.fromArray(SPECIES, curr, index);
+				IntVector fromAbove = up.add(IntVector.fromArray(SPECIES, g,
+						index));
+				if (!fromAbove.compare(VectorOperators.LT, score).anyTrue())
+					break;
+				IntVector lower = fromAbove.add(1);
+				pointers[p + k] &= ~masks(lower, lower, score);
+				score = score.min(fromAbove);
+				score.intoArray(curr, index);
+				up = score;
+				if (++k == segments) {
+					k = 0;
+					up = IntVector.broadcast(SPECIES, top).slice(LANES - 1, up);
+				}
+			}
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+
+		return trace(pointers, segments, str1, str2);
+	}
+
+	/**
+	 * @return the lanes where diagonal is at most score, and above them the
+	 *   lanes where left is at most score. This does the work of
+	 *   compare(LE).toLong(), which the JDK 17 compiler does not intrinsify,
+	 *   with lane operations it does
+	 */
+	static int masks(IntVector diagonal, IntVector left,
+			IntVector score) {
+		return atMost(diagonal, score).lanewise(VectorOperators.LSHL,
+				DIAGONAL_BITS).or(
+				atMost(left, score).lanewise(VectorOperators.LSHL, LEFT_BITS))
+				.reduceLanes(VectorOperators.OR);
+	}
+
+	// 1 in the lanes where candidate is at most score, 0 elsewhere
+	private static IntVector atMost(IntVector candidate, IntVector score) {
+		return candidate.sub(score).sub(1).lanewise(VectorOperators.LSHR, 31);
+	}
+
+	private static Alignment trace(int[] pointers, int segments, char[] str1,
+			char[] str2) {
+		Alignment.Builder runs = new Alignment.Builder();
+		int i = str1.length;
+		int j = str2.length;
+		while (i > 0 || j > 0) {
+			int p;
+			if (i == 0) {
+				p = Traceback.LEFT;
+			} else if (j == 0) {
+				p = Traceback.UP;
+			} else {
+				int lane = (i - 1) / segments;
+				int bits = pointers[(j - 1) * segments + i - 1 - lane
+						* segments];
+				p = (bits >>> lane & 1) != 0 ? Traceback.DIAG
+						: (bits >>> (lane + LANES) & 1) != 0 ? Traceback.LEFT
+								: Traceback.UP;
+			}
+			runs.add(Traceback.operation(p));
+			if (p != Traceback.LEFT)
+				i--;
+			if (p != Traceback.UP)
+				j--;
+		}
+		return new Alignment(str1, str2, runs.toRuns(true));
+	}
+
+	/**
+	 * The scores and gap penalties of every row of seq1 against the columns
+	 * of seq2, in the striped layout: one profile per (label, base) and per
+	 * label of seq2, built when first asked for in buffers of the Workspace.
+	 * The rows past the end of seq1 score 0.
+	 */
+	private static final class Profiles {
+		private final ScoringTable table;
+		private final Workspace ws;
+		private final EncodedSequence seq1, seq2;
+		private final int segments, none, gapProfiles;
+		// profiles[slot * 4 + base], and profiles[gapProfiles + slot]
+		private final int[][] profiles;
+		private int built;
+
+		Profiles(Workspace ws, ScoringTable table, EncodedSequence seq1,
+				EncodedSequence seq2, int segments) {
+			this.ws = ws;
+			this.table = table;
+			this.seq1 = seq1;
+			this.seq2 = seq2;
+			this.segments = segments;
+			none = ws.labelIds.size();
+			gapProfiles = (none + 1) * 4;
+			profiles = new int[gapProfiles + none + 1][];
+		}
+
+		// the scores of column j against every row
+		int[] scores(int j) {
+			int label2 = seq2.labels[j - 1];
+			int base2 = seq2.bases[j - 1];
+			int k = slot(label2) * 4 + base2;
+			int[] profile = profiles[k];
+			if (profile == null) {
+				profile = profiles[k] = newProfile();
+				for (int i = 0; i < seq1.length(); i++) {
+					profile[index(i)] = table.score(EncodedSequence
+							.labelsMatch(seq1.labels[i], label2),
+							seq1.bases[i], base2);
+				}
+			}
+			return profile;
+		}
+
+		// the gap penalties of column j against every row
+		int[] gaps(int j) {
+			int label2 = seq2.labels[j - 1];
+			int k = gapProfiles + slot(label2);
+			int[] profile = profiles[k];
+			if (profile == null) {
+				profile = profiles[k] = newProfile();
+				for (int i = 0; i < seq1.length(); i++) {
+					profile[index(i)] = table.gap(EncodedSequence.labelsMatch(
+							seq1.labels[i], label2));
+				}
+			}
+			return profile;
+		}
+
+		private int[] newProfile() {
+			int[] profile = ws.profile(built++, segments * LANES);
+			Arrays.fill(profile, 0, segments * LANES, 0);
+			return profile;
+		}
+
+		// the position of row i + 1 in the striped layout
+		private int index(int i) {
+			int lane = i / segments;
+			return (i - lane * segments) * LANES + lane;
+		}
+
+		private int slot(int label) {
+			return label == EncodedSequence.NO_LABEL ? none : label;
+		}
+	}
+}
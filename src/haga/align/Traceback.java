@@ -0,0 +1,124 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+/**
+ * Traceback pointers of a dynamic programming matrix, packed two bits per
+ * cell into a flat long[]. Each row starts on a new long, so different rows
+ * can be written by different threads.
+ */
+class Traceback {
+
+	static final int UP = 0, LEFT = 1, DIAG = 2;
+
+	private static final int CELLS_PER_WORD = 32;
+
+	private long[] words;
+	private int rows, cols, rowWords;
+
+	Traceback(int rows, int cols) {
+		words = new long[checkedSize(wordCount(rows, cols))];
+		reset(rows, cols);
+	}
+
+	/**
+	 * Resizes the matrix, reusing the current words if there are enough of
+	 * them. The pointers of the cells are undefined until they are set.
+	 */
+	void reset(int rows, int cols) {
+		this.rows = rows;
+		this.cols = cols;
+		rowWords = (cols + CELLS_PER_WORD - 1) / CELLS_PER_WORD;
+		long size = wordCount(rows, cols);
+		if (words.length < size)
+			words = new long[checkedSize(size)];
+	}
+
+	static long wordCount(int rows, int cols) {
+		return (long) rows * ((cols + CELLS_PER_WORD - 1) / CELLS_PER_WORD);
+	}
+
+	private static int checkedSize(long size) {
+		if (size > Integer.MAX_VALUE - 8)
+			throw new OutOfMemoryError("traceback of " + size
+					+ " words is too large");
+		return (int) size;
+	}
+
+	int getRows() {
+		return rows;
+	}
+
+	int getCols() {
+		return cols;
+	}
+
+	void set(int i, int j, int pointer) {
+		int index = i * rowWords + (j >>> 5);
+		int shift = (j & (CELLS_PER_WORD - 1)) << 1;
+		words[index] = (words[index] & ~(3L << shift))
+				| ((long) pointer << shift);
+	}
+
+	/**
+	 * Sets the pointers of up to 32 cells of row i at once, among cells
+	 * 32 * w to 32 * w + 31: two bits each of word, from its lowest bits, for
+	 * the cells whose bits are set in mask.
+	 */
+	void setWord(int i, int w, long word, long mask) {
+		int index = i * rowWords + w;
+		words[index] = (words[index] & ~mask) | (word & mask);
+	}
+
+	int get(int i, int j) {
+		int shift = (j & (CELLS_PER_WORD - 1)) << 1;
+		return (int) (words[i * rowWords + (j >>> 5)] >>> shift) & 3;
+	}
+
+	/**
+	 * Follows the pointers from the last cell back to (0, 0), going left along
+	 * row 0 and up along column 0, and returns the alignment they describe.
+	 * @param str1 the sequence along the rows (length rows - 1)
+	 * @param str2 the sequence along the columns (length cols - 1)
+	 */
+	Alignment trace(char[] str1, char[] str2) {
+		Alignment.Builder runs = new Alignment.Builder();
+		int i = str1.length;
+		int j = str2.length;
+		while (i > 0 || j > 0) {
+			int p = i == 0 ? LEFT : j == 0 ? UP : get(i, j);
+			runs.add(operation(p));
+			if (p != LEFT)
+				i--;
+			if (p != UP)
+				j--;
+		}
+		return new Alignment(str1, str2, runs.toRuns(true));
+	}
+
+	/**
+	 * @return the run operation of an alignment column that pointer leads to
+	 */
+	static int operation(int pointer) {
+		return pointer == DIAG ? Alignment.OP_MATCH
+				: pointer == LEFT ? Alignment.OP_INSERTION
+						: Alignment.OP_DELETION;
+	}
+}
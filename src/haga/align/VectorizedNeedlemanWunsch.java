@@ -0,0 +1,257 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+/**
+ * A GlobalAlignmentAlgorithm that fills the same matrix as NeedlemanWunsch
+ * with SIMD instructions. When the jdk.incubator.vector module is available
+ * (java --add-modules jdk.incubator.vector), the matrix is filled by
+ * StripedKernel, a column of cells per pass of Vector API operations.
+ * Otherwise it is filled by a scalar kernel that does no lookups and takes
+ * no branches per cell: the scores and gap penalties of each row are looked
+ * up in the ScoringTable once per (label, base) pair of the first sequence,
+ * as a profile over the second sequence, so the inner loop only reads plain
+ * int arrays. Its traceback pointers are computed without branches, using
+ * the tie-breaking of NeedlemanWunsch, and written 32 cells to a word. The
+ * scalar kernel fills any rectangle of the matrix, which
+ * WavefrontNeedlemanWunsch uses for its tiles.
+ * 
+ * The buffers come from the thread's Workspace. Matrices of fewer than
+ * MIN_CELLS cells, which do not repay building the profiles, and the
+ * alignments NeedlemanWunsch does not compute with a full matrix of
+ * position independent gaps, go to the wrapped NeedlemanWunsch. The result
+ * is identical to the wrapped NeedlemanWunsch's, ties included, whichever
+ * kernel fills the matrix.
+ */
+public class VectorizedNeedlemanWunsch implements GlobalAlignmentAlgorithm {
+
+	public static final long MIN_CELLS = 1 << 12;
+
+	// whether the Vector API kernel can be used (see StripedKernel)
+	private static final boolean STRIPED = stripedKernelAvailable();
+
+	private final NeedlemanWunsch nw;
+
+	public VectorizedNeedlemanWunsch() {
+		this(new NeedlemanWunsch());
+	}
+
+	public VectorizedNeedlemanWunsch(NeedlemanWunsch nw) {
+		if (nw == null)
+			throw new IllegalArgumentException("'nw' cannot be null");
+
+		this.nw = nw;
+	}
+
+	@Override
+	public Alignment align(LabeledSequence ls1, LabeledSequence ls2) {
+		long cells = (long) (LabeledSequenceView.length(ls1) + 1)
+				* (LabeledSequenceView.length(ls2) + 1);
+		if (cells < MIN_CELLS || cells > nw.getLinearSpaceThreshold()
+				|| !nw.hasPositionIndependentGaps())
+			return nw.align(ls1, ls2);
+
+		Workspace ws = Workspace.acquire();
+		try {
+			return align(ws, ls1, ls2);
+		} finally {
+			ws.release();
+		}
+	}
+
+	private Alignment align(Workspace ws, LabeledSequence ls1,
+			LabeledSequence ls2) {
+		ScoringTable table = nw.scoringTable();
+		EncodedSequence seq1 = ws.encode1(ls1);
+		EncodedSequence seq2 = ws.encode2(ls2);
+		int n = seq1.length();
+		int w = seq2.length() + 1;
+		if (STRIPED && StripedKernel.pointerCount(n, w - 1) < Integer.MAX_VALUE)
+			return StripedKernel.align(ws, table, seq1, seq2,
+					ls1.getSequence(), ls2.getSequence());
+
+		Profiles profiles = new Profiles(ws, table, seq1, seq2);
+		Traceback tb = ws.traceback(n + 1, w);
+		int[] prev = ws.row1(w);
+		for (int j = 0; j < w; j++)
+			prev[j] = j * table.gapMismatch;
+		fill(profiles, tb, 0, n, 0, w - 1, prev, ws.row2(w), null, 0, null, 0);
+
+		return tb.trace(ls1.getSequence(), ls2.getSequence());
+	}
+
+	private static boolean stripedKernelAvailable() {
+		try {
+			return StripedKernel.LANES > 1;
+		} catch (LinkageError e) {
+			// jdk.incubator.vector is not in the module graph
+			return false;
+		}
+	}
+
+	/**
+	 * Fills the cells of rows r0 + 1 to r1 and columns c0 + 1 to c1, setting
+	 * their traceback pointers.
+	 * @param prev the scores of row r0, from column c0 to c1
+	 * @param curr a row of at least c1 - c0 + 1 ints
+	 * @param left the score of column c0 of row i at leftOffset + i, or null
+	 *   for the first column of the matrix
+	 * @param right where the score of column c1 of row i goes, at
+	 *   rightOffset + i, or null
+	 * @return prev or curr, whichever holds the scores of row r1
+	 */
+	static int[] fill(Profiles profiles, Traceback tb, int r0, int r1,
+			int c0, int c1, int[] prev, int[] curr, int[] left,
+			int leftOffset, int[] right, int rightOffset) {
+		int gap = profiles.table.gapMismatch;
+		int width = c1 - c0;
+		for (int i = r0 + 1; i <= r1; i++) {
+			int[] s = profiles.scores(i);
+			int[] g = profiles.gaps(i);
+			int leftScore = left == null ? i * gap : left[leftOffset + i];
+			curr[0] = leftScore;
+
+			// the pointers of the cells of a word are set together; the first
+			// and last words of the tile keep the cells of their neighbours
+			long word = 0;
+			int low = ((c0 + 1) & 31) << 1;
+			for (int j = c0 + 1; j <= c1; j++) {
+				int k = j - c0;
+				int gapPen = g[j];
+				int matchScore = prev[k - 1] + s[j];
+				int gap1Score = leftScore + gapPen;
+				int score = Math.min(Math.min(gap1Score, prev[k] + gapPen),
+						matchScore);
+				curr[k] = score;
+				leftScore = score;
+
+				// DIAG, then LEFT, then UP, as NeedlemanWunsch breaks ties
+				int diag = (matchScore - score - 1) >>> 31;
+				int leftPointer = (gap1Score - score - 1) >>> 31;
+				int shift = (j & 31) << 1;
+				word |= (long) ((diag << 1) | (leftPointer & ~diag)) << shift;
+				if (shift == 62 || j == c1) {
+					tb.setWord(i, j >>> 5, word, (-1L << low)
+							& (-1L >>> (62 - shift)));
+					word = 0;
+					low = 0;
+				}
+			}
+			if (right != null)
+				right[rightOffset + i] = curr[width];
+
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		return prev;
+	}
+
+	/**
+	 * The scores and gap penalties of the rows of seq1 against every column
+	 * of seq2: one profile per (label, base) and per label of seq1, built
+	 * when first asked for in buffers of the Workspace. Positions without a
+	 * label use the last slot.
+	 */
+	static final class Profiles {
+		final ScoringTable table;
+		private final Workspace ws;
+		private final EncodedSequence seq1, seq2;
+		private final int none, gapProfiles;
+		// profiles[slot * 4 + base], and profiles[gapProfiles + slot]
+		private final int[][] profiles;
+		private int built;
+
+		Profiles(Workspace ws, ScoringTable table, EncodedSequence seq1,
+				EncodedSequence seq2) {
+			this.ws = ws;
+			this.table = table;
+			this.seq1 = seq1;
+			this.seq2 = seq2;
+			none = ws.labelIds.size();
+			gapProfiles = (none + 1) * 4;
+			profiles = new int[gapProfiles + none + 1][];
+		}
+
+		/**
+		 * Builds the profiles of all the rows, after which they can be read
+		 * from any thread the Profiles are handed to.
+		 */
+		void buildAll() {
+			for (int i = 1; i <= seq1.length(); i++) {
+				scores(i);
+				gaps(i);
+			}
+		}
+
+		// the scores of row i against every column
+		int[] scores(int i) {
+			int label1 = seq1.labels[i - 1];
+			int base1 = seq1.bases[i - 1];
+			int k = slot(label1) * 4 + base1;
+			int[] profile = profiles[k];
+			if (profile == null) {
+				profile = profiles[k] = ws.profile(built++, seq2.length() + 1);
+				for (int j = 1; j <= seq2.length(); j++) {
+					profile[j] = table.score(EncodedSequence.labelsMatch(
+							label1, seq2.labels[j - 1]), base1, seq2.bases[j - 1]);
+				}
+			}
+			return profile;
+		}
+
+		// the gap penalties of row i against every column
+		int[] gaps(int i) {
+			int label1 = seq1.labels[i - 1];
+			int k = gapProfiles + slot(label1);
+			int[] profile = profiles[k];
+			if (profile == null) {
+				profile = profiles[k] = ws.profile(built++, seq2.length() + 1);
+				for (int j = 1; j <= seq2.length(); j++) {
+					profile[j] = table.gap(EncodedSequence.labelsMatch(label1,
+							seq2.labels[j - 1]));
+				}
+			}
+			return profile;
+		}
+
+		private int slot(int label) {
+			return label == EncodedSequence.NO_LABEL ? none : label;
+		}
+	}
+
+	@Override
+	public int score(LabeledSequence ls1, LabeledSequence ls2) {
+		return nw.score(ls1, ls2);
+	}
+
+	@Override
+	public void updateScoreMatrix(int[][] newScoreMatrix, double weight) {
+		nw.updateScoreMatrix(newScoreMatrix, weight);
+	}
+
+	@Override
+	public void updateGapPenaltyFunction(GapPenaltyFunction gpf, double weight) {
+		nw.updateGapPenaltyFunction(gpf, weight);
+	}
+}
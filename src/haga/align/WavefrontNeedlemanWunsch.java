@@ -0,0 +1,250 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A GlobalAlignmentAlgorithm that fills the NeedlemanWunsch matrix in
+ * parallel. The matrix is cut into square tiles; a tile only depends on the
+ * tiles above, to the left and diagonally above-left of it, so all the tiles
+ * of an anti-diagonal are computed at the same time on a ForkJoinPool, one
+ * anti-diagonal after the other. Each tile is filled by the kernel of
+ * VectorizedNeedlemanWunsch, and writes its own part of a shared traceback
+ * matrix and the last row and column of scores its neighbours need.
+ * 
+ * An anti-diagonal costs a round trip through the pool, which only pays off
+ * on large matrices: below the parallel threshold, or when the pool has a
+ * single thread, the matrix is filled by a VectorizedNeedlemanWunsch on the
+ * calling thread. The traceback and the scores between tiles are kept in
+ * the Workspace of the calling thread, and each tile works in the Workspace
+ * of the thread that fills it.
+ * 
+ * The result is identical to the wrapped NeedlemanWunsch's, ties included.
+ */
+public class WavefrontNeedlemanWunsch implements GlobalAlignmentAlgorithm {
+
+	public static final int DEFAULT_TILE_SIZE = 256;
+	public static final long DEFAULT_PARALLEL_THRESHOLD = 1L << 22;
+
+	private final NeedlemanWunsch nw;
+	private final VectorizedNeedlemanWunsch sequential;
+	private final ForkJoinPool pool;
+	private volatile int tileSize = DEFAULT_TILE_SIZE;
+	private volatile long parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	public WavefrontNeedlemanWunsch() {
+		this(new NeedlemanWunsch(), ForkJoinPool.commonPool());
+	}
+
+	public WavefrontNeedlemanWunsch(NeedlemanWunsch nw, ForkJoinPool pool) {
+		if (nw == null)
+			throw new IllegalArgumentException("'nw' cannot be null");
+		if (pool == null)
+			throw new IllegalArgumentException("'pool' cannot be null");
+
+		this.nw = nw;
+		this.pool = pool;
+		sequential = new VectorizedNeedlemanWunsch(nw);
+	}
+
+	/**
+	 * @param size the height and width, in cells, of each tile
+	 */
+	public void setTileSize(int size) {
+		if (size < 1)
+			throw new IllegalArgumentException("'size' must be positive");
+
+		tileSize = size;
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * Sets the number of matrix cells ((n+1)*(m+1)) from which the tiles are
+	 * filled in parallel.
+	 * @param cells 0 to always fill tiles in parallel
+	 */
+	public void setParallelThreshold(long cells) {
+		if (cells < 0)
+			throw new IllegalArgumentException("'cells' cannot be negative");
+
+		parallelThreshold = cells;
+	}
+
+	public long getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	@Override
+	public Alignment align(LabeledSequence ls1, LabeledSequence ls2) {
+		// position dependent gap penalties read cells of other tiles, and
+		// NeedlemanWunsch computes them
+		long cells = (long) (LabeledSequenceView.length(ls1) + 1)
+				* (LabeledSequenceView.length(ls2) + 1);
+		if (cells < parallelThreshold || pool.getParallelism() < 2
+				|| !nw.hasPositionIndependentGaps())
+			return sequential.align(ls1, ls2);
+
+		Workspace ws = Workspace.acquire();
+		try {
+			return align(ws, ls1, ls2);
+		} finally {
+			ws.release();
+		}
+	}
+
+	private Alignment align(Workspace ws, LabeledSequence ls1,
+			LabeledSequence ls2) {
+		final Matrix matrix = new Matrix(ws, ls1, ls2, tileSize);
+		int rows = matrix.tileRows;
+		int cols = matrix.tileCols;
+		for (int wave = 0; wave < rows + cols - 1; wave++) {
+			int first = Math.max(0, wave - cols + 1);
+			int last = Math.min(rows - 1, wave);
+			if (first == last) {
+				matrix.fill(first, wave - first);
+				continue;
+			}
+
+			List<Callable<Object>> tiles = new ArrayList<Callable<Object>>();
+			for (int bi = first; bi <= last; bi++) {
+				final int tileRow = bi;
+				final int tileCol = wave - bi;
+				tiles.add(new Callable<Object>() {
+					public Object call() {
+						matrix.fill(tileRow, tileCol);
+						return null;
+					}
+				});
+			}
+
+			try {
+				for (Future<Object> f : pool.invokeAll(tiles))
+					f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		return matrix.tb.trace(ls1.getSequence(), ls2.getSequence());
+	}
+
+	private class Matrix {
+		final VectorizedNeedlemanWunsch.Profiles profiles;
+		final int n, w, size, tileRows, tileCols;
+		final Traceback tb;
+
+		// the score of column j of the last row above tile row bi is at
+		// boundaryRows[bi * w + j], and the score of row i of the last column
+		// left of tile column bj at boundaryCols[bj * (n + 1) + i]. Each tile
+		// only writes the cells of its own columns and rows
+		final int[] boundaryRows, boundaryCols;
+
+		Matrix(Workspace ws, LabeledSequence ls1, LabeledSequence ls2,
+				int size) {
+			EncodedSequence seq1 = ws.encode1(ls1);
+			EncodedSequence seq2 = ws.encode2(ls2);
+			n = seq1.length();
+			w = seq2.length() + 1;
+			this.size = size;
+			tileRows = Math.max(1, (n + size - 1) / size);
+			tileCols = Math.max(1, (w - 1 + size - 1) / size);
+
+			// the tiles only read the profiles, from other threads
+			ScoringTable table = nw.scoringTable();
+			profiles = new VectorizedNeedlemanWunsch.Profiles(ws, table,
+					seq1, seq2);
+			profiles.buildAll();
+
+			int gapMismatch = table.gapMismatch;
+			tb = ws.traceback(n + 1, w);
+			boundaryRows = ws.row1((int) checkedSize((long) tileRows * w));
+			boundaryCols = ws.row2((int) checkedSize((long) tileCols
+					* (n + 1)));
+			for (int j = 0; j < w; j++)
+				boundaryRows[j] = j * gapMismatch;
+			for (int i = 0; i <= n; i++)
+				boundaryCols[i] = i * gapMismatch;
+			for (int bi = 1; bi < tileRows; bi++)
+				boundaryRows[bi * w] = bi * size * gapMismatch;
+		}
+
+		void fill(int bi, int bj) {
+			int r0 = bi * size;
+			int c0 = bj * size;
+			int r1 = Math.min(n, r0 + size);
+			int c1 = Math.min(w - 1, c0 + size);
+			int width = c1 - c0;
+
+			Workspace ws = Workspace.acquire();
+			try {
+				int[] prev = ws.row1(width + 1);
+				System.arraycopy(boundaryRows, bi * w + c0, prev, 0, width + 1);
+				int[] last = VectorizedNeedlemanWunsch.fill(profiles, tb, r0,
+						r1, c0, c1, prev, ws.row2(width + 1), boundaryCols, bj
+								* (n + 1), bj + 1 < tileCols ? boundaryCols
+								: null, (bj + 1) * (n + 1));
+				if (bi + 1 < tileRows)
+					System.arraycopy(last, 1, boundaryRows, (bi + 1) * w + c0
+							+ 1, width);
+			} finally {
+				ws.release();
+			}
+		}
+	}
+
+	private static long checkedSize(long size) {
+		if (size > Integer.MAX_VALUE - 8)
+			throw new OutOfMemoryError("tile boundaries of " + size
+					+ " cells are too large");
+		return size;
+	}
+
+	@Override
+	public int score(LabeledSequence ls1, LabeledSequence ls2) {
+		return nw.score(ls1, ls2);
+	}
+
+	@Override
+	public void updateScoreMatrix(int[][] newScoreMatrix, double weight) {
+		nw.updateScoreMatrix(newScoreMatrix, weight);
+	}
+
+	@Override
+	public void updateGapPenaltyFunction(GapPenaltyFunction gpf, double weight) {
+		nw.updateGapPenaltyFunction(gpf, weight);
+	}
+}
@@ -0,0 +1,382 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A GlobalAlignmentAlgorithm for highly similar sequences, based on the
+ * wavefront alignment algorithm (WFA). Instead of filling the whole dynamic
+ * programming matrix, it computes for every score s and every diagonal the
+ * furthest cell reachable with cost s, sliding for free along runs of
+ * matching bases. It runs in O((n + m) * s) time and O(s * s) memory.
+ *
+ * The scores come from the wrapped NeedlemanWunsch. WFA needs identical bases
+ * to be free, so costs are rescaled: with c the score of identical bases, a
+ * pair of bases costs 2 * (score - c) and a gap 2 * gapPenalty - c. Every
+ * alignment of the same sequences changes by the same amount, so the optimal
+ * alignments are the same. The wrapped NeedlemanWunsch, through a
+ * BandedNeedlemanWunsch, is used instead when that is not possible (identical
+ * bases do not all score c, or a mismatch scores less than c, or scores depend
+ * on labels that differ between the two sequences), and when the alignment
+ * turns out to be too divergent: more than the maximum divergence, or more
+ * wavefront cells than its linear space threshold.
+ *
+ * The score is always the optimal one; among equally good alignments, the
+ * one returned may differ from the wrapped NeedlemanWunsch's.
+ */
+public class WfaAligner implements GlobalAlignmentAlgorithm {
+
+	public static final double DEFAULT_MAX_DIVERGENCE = 0.05;
+
+	private static final int NONE = Integer.MIN_VALUE / 2;
+	private static final int[] EMPTY = new int[0];
+
+	private final NeedlemanWunsch nw;
+	private final BandedNeedlemanWunsch fallback;
+	private volatile double maxDivergence = DEFAULT_MAX_DIVERGENCE;
+
+	public WfaAligner() {
+		this(new NeedlemanWunsch());
+	}
+
+	public WfaAligner(NeedlemanWunsch nw) {
+		if (nw == null)
+			throw new IllegalArgumentException("'nw' cannot be null");
+
+		this.nw = nw;
+		fallback = new BandedNeedlemanWunsch(nw);
+	}
+
+	/**
+	 * @param divergence the fraction of differing positions above which the
+	 *   wrapped NeedlemanWunsch is used instead
+	 */
+	public void setMaxDivergence(double divergence) {
+		if (divergence < 0 || divergence > 1)
+			throw new IllegalArgumentException(
+					"'divergence' must be between 0 and 1");
+
+		maxDivergence = divergence;
+	}
+
+	public double getMaxDivergence() {
+		return maxDivergence;
+	}
+
+	@Override
+	public Alignment align(LabeledSequence ls1, LabeledSequence ls2) {
+		Wavefronts w = solve(ls1, ls2);
+		return w == null ? fallback.align(ls1, ls2) : w.traceback(ls1.getSequence(),
+				ls2.getSequence());
+	}
+
+	@Override
+	public int score(LabeledSequence ls1, LabeledSequence ls2) {
+		Wavefronts w = solve(ls1, ls2);
+		return w == null ? fallback.score(ls1, ls2) : w.originalScore;
+	}
+
+	// computes the wavefronts up to the end of the alignment, or returns null
+	// if the fallback has to be used
+	private Wavefronts solve(LabeledSequence ls1, LabeledSequence ls2) {
+		if (!nw.hasPositionIndependentGaps())
+			return null;
+
+		Map<String, Integer> labelIds = new HashMap<String, Integer>();
+		EncodedSequence seq1 = PreparedSequence.encode(ls1, labelIds);
+		EncodedSequence seq2 = PreparedSequence.encode(ls2, labelIds);
+		ScoringTable table = nw.scoringTable();
+
+		// the labels always match when there is at most one of them;
+		// otherwise the scores must not depend on the labels
+		boolean labelsMatch = labelIds.size() <= 1;
+		if (!labelsMatch && !isLabelIndependent(table))
+			return null;
+
+		// the first row and column always use the mismatching gap penalty
+		int gap = table.gap(labelsMatch);
+		if (gap != table.gapMismatch)
+			return null;
+
+		int c = table.score(labelsMatch, 0, 0);
+		int[] pair = new int[16];
+		for (int b1 = 0; b1 < 4; b1++) {
+			for (int b2 = 0; b2 < 4; b2++) {
+				int s = table.score(labelsMatch, b1, b2);
+				if ((b1 == b2 && s != c) || s < c)
+					return null;
+				pair[b1 * 4 + b2] = 2 * (s - c);
+			}
+		}
+		int gapCost = 2 * gap - c;
+		if (gapCost <= 0)
+			return null;
+
+		// divide the costs by their common divisor, so fewer scores are
+		// visited
+		int unit = gapCost;
+		for (int p : pair)
+			unit = gcd(unit, p);
+		gapCost /= unit;
+		int maxStep = gapCost;
+		for (int i = 0; i < pair.length; i++) {
+			pair[i] /= unit;
+			maxStep = Math.max(maxStep, pair[i]);
+		}
+
+		int n = seq1.length(), m = seq2.length();
+		long maxScore = (long) Math.ceil(maxDivergence * Math.max(n, m))
+				* maxStep;
+		Wavefronts w = new Wavefronts(seq1.bases, seq2.bases, pair, gapCost);
+		long cells = 0;
+		while (!w.isDone()) {
+			if (w.score() >= maxScore)
+				return null;
+			cells += w.next();
+			if (cells > nw.getLinearSpaceThreshold())
+				return null;
+		}
+		return w.toOriginalScore(unit, c);
+	}
+
+	private static boolean isLabelIndependent(ScoringTable table) {
+		if (table.gapMatch != table.gapMismatch)
+			return false;
+		for (int b1 = 0; b1 < 4; b1++)
+			for (int b2 = 0; b2 < 4; b2++)
+				if (table.score(true, b1, b2) != table.score(false, b1, b2))
+					return false;
+		return true;
+	}
+
+	private static int gcd(int a, int b) {
+		return b == 0 ? a : gcd(b, a % b);
+	}
+
+	// the furthest reaching offsets: for score s and diagonal k = j - i, the
+	// largest i such that cell (i, i + k) can be reached with cost s or less
+	private static class Wavefronts {
+		final byte[] bases1, bases2;
+		final int[] pair;
+		final int gapCost;
+		final int[] mismatchCosts;
+		final int n, m;
+
+		// waves[s][k - lows[s]]
+		int[][] waves = new int[64][];
+		int[] lows = new int[64];
+		int size;
+		int originalScore;
+
+		Wavefronts(byte[] bases1, byte[] bases2, int[] pair, int gapCost) {
+			this.bases1 = bases1;
+			this.bases2 = bases2;
+			this.pair = pair;
+			this.gapCost = gapCost;
+			n = bases1.length;
+			m = bases2.length;
+
+			int[] sorted = pair.clone();
+			Arrays.sort(sorted);
+			int distinct = 0;
+			for (int i = 0; i < sorted.length; i++)
+				if (sorted[i] > 0 && (i == 0 || sorted[i] != sorted[i - 1]))
+					sorted[distinct++] = sorted[i];
+			mismatchCosts = Arrays.copyOf(sorted, distinct);
+
+			waves[0] = new int[] { extend(0, 0) };
+			size = 1;
+		}
+
+		int score() {
+			return size - 1;
+		}
+
+		boolean isDone() {
+			return get(score(), m - n) >= n;
+		}
+
+		// offset of diagonal k at score s, NONE if it cannot be reached
+		int get(int s, int k) {
+			if (s < 0)
+				return NONE;
+			return at(waves[s], lows[s], k);
+		}
+
+		// computes the wavefront of the next score, and returns its size
+		int next() {
+			int s = size;
+			int reach = s / gapCost;
+			int lo = Math.max(-n, -reach), hi = Math.min(m, reach);
+			int[] wave = new int[hi - lo + 1];
+
+			// the wavefronts this one is computed from
+			int[] prev = waves[s - 1];
+			int prevLo = lows[s - 1];
+			int[] gapped = s >= gapCost ? waves[s - gapCost] : EMPTY;
+			int gappedLo = s >= gapCost ? lows[s - gapCost] : 0;
+			int[][] mismatched = new int[mismatchCosts.length][];
+			int[] mismatchedLo = new int[mismatchCosts.length];
+			for (int x = 0; x < mismatchCosts.length; x++) {
+				int from = s - mismatchCosts[x];
+				mismatched[x] = from >= 0 ? waves[from] : EMPTY;
+				mismatchedLo[x] = from >= 0 ? lows[from] : 0;
+			}
+
+			for (int k = lo; k <= hi; k++) {
+				int best = at(prev, prevLo, k);
+
+				// gap in the first sequence, from diagonal k - 1
+				int i = at(gapped, gappedLo, k - 1);
+				if (i != NONE && i + k <= m)
+					best = Math.max(best, i);
+
+				// gap in the second sequence, from diagonal k + 1
+				i = at(gapped, gappedLo, k + 1);
+				if (i != NONE && i + 1 <= n)
+					best = Math.max(best, i + 1);
+
+				// pair of bases
+				for (int x = 0; x < mismatchCosts.length; x++) {
+					i = at(mismatched[x], mismatchedLo[x], k);
+					if (i != NONE && i < n && i + k < m
+							&& pair[bases1[i] * 4 + bases2[i + k]]
+									<= mismatchCosts[x])
+						best = Math.max(best, i + 1);
+				}
+
+				wave[k - lo] = best == NONE ? NONE : extend(best, k);
+			}
+
+			if (size == waves.length) {
+				waves = Arrays.copyOf(waves, 2 * size);
+				lows = Arrays.copyOf(lows, 2 * size);
+			}
+			waves[size] = wave;
+			lows[size] = lo;
+			size++;
+			return wave.length;
+		}
+
+		private static int at(int[] wave, int lo, int k) {
+			int index = k - lo;
+			return index < 0 || index >= wave.length ? NONE : wave[index];
+		}
+
+		// slides along diagonal k over free pairs of bases
+		int extend(int i, int k) {
+			while (i < n && i + k < m
+					&& pair[bases1[i] * 4 + bases2[i + k]] == 0)
+				i++;
+			return i;
+		}
+
+		// undoes the rescaling of the costs (see WfaAligner)
+		Wavefronts toOriginalScore(int unit, int c) {
+			originalScore = (score() * unit + c * (n + m)) / 2;
+			return this;
+		}
+
+		Alignment traceback(char[] str1, char[] str2) {
+			char[] result1 = new char[n + m];
+			char[] result2 = new char[n + m];
+			int pos = result1.length;
+
+			int s = score(), k = m - n, i = n;
+			while (s > 0) {
+				// find the offset this one was extended from (the largest
+				// candidate, as in next()), and where that came from
+				int from = get(s - 1, k), nextS = s - 1, nextK = k;
+				int j = get(s - gapCost, k - 1);
+				if (j != NONE && j + k <= m && j > from) {
+					from = j;
+					nextS = s - gapCost;
+					nextK = k - 1;
+				}
+				j = get(s - gapCost, k + 1);
+				if (j != NONE && j + 1 <= n && j + 1 > from) {
+					from = j + 1;
+					nextS = s - gapCost;
+					nextK = k + 1;
+				}
+				for (int x : mismatchCosts) {
+					j = get(s - x, k);
+					if (j != NONE && j < n && j + k < m
+							&& pair[bases1[j] * 4 + bases2[j + k]] <= x
+							&& j + 1 > from) {
+						from = j + 1;
+						nextS = s - x;
+						nextK = k;
+					}
+				}
+
+				// the free pairs, then the step that led to them
+				for (; i > from; i--) {
+					pos--;
+					result1[pos] = str1[i - 1];
+					result2[pos] = str2[i + k - 1];
+				}
+				if (nextK == k - 1) {
+					pos--;
+					result1[pos] = '-';
+					result2[pos] = str2[i + k - 1];
+				} else if (nextK == k + 1) {
+					pos--;
+					result1[pos] = str1[i - 1];
+					result2[pos] = '-';
+					i--;
+				} else if (nextS != s - 1) {
+					pos--;
+					i--;
+					result1[pos] = str1[i];
+					result2[pos] = str2[i + k];
+				}
+				s = nextS;
+				k = nextK;
+			}
+
+			// the free pairs at the start of diagonal 0
+			for (; i > 0; i--) {
+				pos--;
+				result1[pos] = str1[i - 1];
+				result2[pos] = str2[i - 1];
+			}
+
+			return new Alignment(Arrays.copyOfRange(result1, pos,
+					result1.length), Arrays.copyOfRange(result2, pos,
+					result2.length));
+		}
+	}
+
+	@Override
+	public void updateScoreMatrix(int[][] newScoreMatrix, double weight) {
+		nw.updateScoreMatrix(newScoreMatrix, weight);
+	}
+
+	@Override
+	public void updateGapPenaltyFunction(GapPenaltyFunction gpf, double weight) {
+		nw.updateGapPenaltyFunction(gpf, weight);
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.align;
+
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The buffers of one alignment, kept per thread and reused by the next
+ * alignment on that thread, so aligning many small pieces does not allocate
+ * anything but the results. The buffers only grow, up to MAX_RETAINED_LENGTH
+ * elements each; larger alignments get buffers of their own, which are not
+ * kept.
+ *
+ * A workspace is taken with acquire() and given back with release(). An
+ * alignment started while the thread's workspace is taken (e.g. from a
+ * gap penalty function) gets a new, temporary one.
+ */
+final class Workspace {
+
+	static final int MAX_RETAINED_LENGTH = 1 << 20;
+
+	// the profiles past these are not kept either
+	static final int MAX_RETAINED_PROFILES = 16;
+
+	private static final ThreadLocal<Workspace> CURRENT =
+			new ThreadLocal<Workspace>() {
+				@Override
+				protected Workspace initialValue() {
+					return new Workspace();
+				}
+			};
+
+	final Map<String, Integer> labelIds = new HashMap<String, Integer>();
+
+	private final EncodedSequence seq1 = new EncodedSequence();
+	private final EncodedSequence seq2 = new EncodedSequence();
+	private final Traceback traceback = new Traceback(0, 0);
+	private int[] row1 = new int[0], row2 = new int[0];
+	private int[] pointers = new int[0];
+	private int[][] profiles = new int[0][];
+	private boolean inUse;
+
+	private Workspace() {
+	}
+
+	/**
+	 * @return the workspace of the current thread, with no label ids
+	 */
+	static Workspace acquire() {
+		Workspace ws = CURRENT.get();
+		if (ws.inUse)
+			ws = new Workspace();
+		ws.inUse = true;
+		ws.labelIds.clear();
+		return ws;
+	}
+
+	void release() {
+		inUse = false;
+	}
+
+	EncodedSequence encode1(LabeledSequence ls) {
+		return encode(seq1, ls);
+	}
+
+	EncodedSequence encode2(LabeledSequence ls) {
+		return encode(seq2, ls);
+	}
+
+	private EncodedSequence encode(EncodedSequence seq, LabeledSequence ls) {
+		if (LabeledSequenceView.length(ls) > MAX_RETAINED_LENGTH
+				|| ls instanceof PreparedSequence)
+			return PreparedSequence.encode(ls, labelIds);
+		seq.encode(ls, labelIds);
+		return seq;
+	}
+
+	// two rows of at least length ints; their contents are undefined
+	int[] row1(int length) {
+		if (length > MAX_RETAINED_LENGTH)
+			return new int[length];
+		if (row1.length < length)
+			row1 = new int[length];
+		return row1;
+	}
+
+	int[] row2(int length) {
+		if (length > MAX_RETAINED_LENGTH)
+			return new int[length];
+		if (row2.length < length)
+			row2 = new int[length];
+		return row2;
+	}
+
+	// the packed traceback pointers of the striped kernel; their contents
+	// are undefined
+	int[] pointers(int length) {
+		if (length > MAX_RETAINED_LENGTH)
+			return new int[length];
+		if (pointers.length < length)
+			pointers = new int[length];
+		return pointers;
+	}
+
+	// profile k of at least length ints; its contents are undefined
+	int[] profile(int k, int length) {
+		if (length > MAX_RETAINED_LENGTH || k >= MAX_RETAINED_PROFILES)
+			return new int[length];
+		if (profiles.length <= k)
+			profiles = Arrays.copyOf(profiles, Math.max(k + 1, 2 * profiles.length));
+		if (profiles[k] == null || profiles[k].length < length)
+			profiles[k] = new int[length];
+		return profiles[k];
+	}
+
+	Traceback traceback(int rows, int cols) {
+		if (Traceback.wordCount(rows, cols) > MAX_RETAINED_LENGTH)
+			return new Traceback(rows, cols);
+		traceback.reset(rows, cols);
+		return traceback;
+	}
+}
@@ -20,6 +20,8 @@
 package haga.labeler;
 
 import haga.NucleotideLabeledSequence;
+import haga.PackedLabeledSequence;
+import haga.PackedSequence;
 
 import java.util.*;
 
@@ -61,22 +63,15 @@ public class HMMLabeler implements Labeler {
 		// result varialbes
 		List<Label> lbls = new LinkedList<Label>();
 		
+		// the tables of the hmm, looked up once for all the pieces
+		ViterbiDecoder decoder = hmm.nbStates() <= ViterbiDecoder.MAX_STATES
+				? new ViterbiDecoder(hmm, NB_CHARS) : null;
+		
 		// create labels for every piece of unlabeled data
 		int start = 0;
 		for (Label l : sequence.getLabels()) {
-			char[] subSequence =
-				Arrays.copyOfRange(sequence.getSequence(),
-								   start,
-								   l.getStartIndex());
-			if (subSequence.length > 0) {
-				LabeledSequence ls = labelSequenceHelper(subSequence);
-				for (Label subLabel : ls.getLabels()) {
-					lbls.add(new Label(subLabel.toString(), subLabel
-							.getStartIndex()
-							+ start, subLabel.getEndIndex() + start,
-							subLabel.userDefined));
-				}
-			}
+			if (l.getStartIndex() > start)
+				labelSequenceHelper(sequence, start, l.getStartIndex(), decoder, lbls);
 			start = l.getEndIndex()+1;
 			
 			// add the user defined label
@@ -84,65 +79,75 @@ public class HMMLabeler implements Labeler {
 		}
 		
 		// get the last background piece
-		if (start != sequence.getSequence().length) {
-			char[] subSequence =
-				Arrays.copyOfRange(sequence.getSequence(),
-								   start,
-								   sequence.getSequence().length);
-			LabeledSequence ls = labelSequenceHelper(subSequence);
-			for (Label subLabel : ls.getLabels()) {
-				lbls.add(new Label(subLabel.toString(), 
-								   subLabel.getStartIndex()+start,
-								   subLabel.getEndIndex()+start, subLabel.userDefined));
-			}
-		}
+		int length = LabeledSequenceView.length(sequence);
+		if (start != length)
+			labelSequenceHelper(sequence, start, length, decoder, lbls);
 		
 		
+		// a packed sequence stays packed, and a view stays a view
+		if (sequence instanceof PackedLabeledSequence)
+			return new PackedLabeledSequence(((PackedLabeledSequence) sequence)
+					.getPackedSequence(), lbls);
+		if (sequence instanceof LabeledSequenceView)
+			return LabeledSequenceView.of(sequence, 0, length, lbls);
 		return new NucleotideLabeledSequence(sequence.getSequence(), lbls);
 	}
 	
-	private LabeledSequence labelSequenceHelper (char[] sequence) {
-//		 convert sequence into a List of ObservationIntegers
-		List<ObservationInteger> s = new ArrayList<ObservationInteger>(sequence.length);
-		for (char c : sequence)
-			s.add(nucleotideCharToObservationInteger(c));
-		
-		// print observation sequence
-		/*System.out.println("Observation Sequence:");
-		for (ObservationInteger o : s) System.out.print(o.value);
-		*/
-		
-		// label the sequence
-		int[] intLabels = hmm.mostLikelyStateSequence(s);
-		
-		// print out the labels
-		/*System.out.println("Labels:");
-		for (int i : intLabels) System.out.print(i);
-		System.out.println();*/
-		
-		// convert the int label sequence into a LabeledSequence
-		List<Label> labels = new ArrayList<Label>();
+	// the codes of the characters from start to end, read in place; a packed
+	// sequence has them already
+	private byte[] encode(LabeledSequence sequence, int start, int end) {
+		byte[] codes = new byte[end - start];
+		if (sequence instanceof PackedLabeledSequence) {
+			((PackedLabeledSequence) sequence).getPackedSequence().getCodes(
+					start, end, codes, 0);
+			for (byte code : codes) {
+				if (code == PackedSequence.NOT_A_BASE)
+					throw new RuntimeException("Only 'A', 'C', 'G', and 'T' characters are supported.");
+			}
+			return codes;
+		}
+		char[] backing = LabeledSequenceView.backingOf(sequence);
+		int offset = LabeledSequenceView.offsetOf(sequence) + start;
+		for (int i = 0; i < codes.length; i++)
+			codes[i] = (byte) nucleotideCharToInt(backing[offset + i]);
+		return codes;
+	}
+	
+	// adds the labels of the characters from start to end to lbls
+	private void labelSequenceHelper (LabeledSequence sequence, int start, int end,
+			ViterbiDecoder decoder, List<Label> lbls) {
+		byte[] codes = encode(sequence, start, end);
+		
+		// label the sequence: the decoder replaces the codes with the states
+		int[] intLabels = null;
+		if (decoder != null) {
+			decoder.decode(codes, 0, codes.length);
+		} else {
+			List<ObservationInteger> s = new ArrayList<ObservationInteger>(codes.length);
+			for (byte code : codes)
+				s.add(new ObservationInteger(code));
+			intLabels = hmm.mostLikelyStateSequence(s);
+		}
+		
+		// convert the label sequence into labels
 		int prevLabel = -1;
 		int startIndex = 0;
-		for (int i=0; i<intLabels.length; i++) {
-			if (intLabels[i] != prevLabel) { 
+		for (int i=0; i<codes.length; i++) {
+			int label = intLabels == null ? codes[i] : intLabels[i];
+			if (label != prevLabel) { 
 				if (prevLabel != -1) { // first iteration					
-					labels.add(new Label(labelNames.get(prevLabel), startIndex, i-1, false));
+					lbls.add(new Label(labelNames.get(prevLabel), startIndex+start, i-1+start, false));
 				}
 					
 				// mark start of new label
 				startIndex = i;
 					
-				prevLabel = intLabels[i];
+				prevLabel = label;
 			}		
 		}
 		
 		// add last label
-		labels.add(new Label(labelNames.get(prevLabel), startIndex, intLabels.length-1, false));
-		
-		//System.out.println(labels.get(0).toChar());
-
-		return new NucleotideLabeledSequence(sequence, labels);
+		lbls.add(new Label(labelNames.get(prevLabel), startIndex+start, codes.length-1+start, false));
 	}
 
 	public void train(LabeledSequence labeledSequence, double weight) {
@@ -176,7 +181,7 @@ public class HMMLabeler implements Labeler {
 		
 		// 1.b calculate probabilities of transition types
 		double[][] transitionProbabilities = new double[hmm.nbStates()][hmm.nbStates()];
-		double nbTransitions = (double)labeledSequence.getSequence().length-1;
+		double nbTransitions = (double)LabeledSequenceView.length(labeledSequence)-1;
 		for (int i=0; i<hmm.nbStates(); i++) {
 			for (int j=0; j<hmm.nbStates(); j++) {				
 				transitionProbabilities[i][j] =
@@ -195,12 +200,16 @@ public class HMMLabeler implements Labeler {
 		
 		// 1.c count frequencies of characters in each state
 		int[][] charFrequencies = new int[hmm.nbStates()][NB_CHARS];
-		char[] seq = labeledSequence.getSequence();
+		// read a chunk at a time, so a packed sequence is not unpacked
+		char[] chunk = new char[4096];
+		int length = LabeledSequenceView.length(labeledSequence);
 		int labelIndex = 0;
 		Label currLabel = labeledSequence.getLabels().get(labelIndex);
-		for (int i=0; i<seq.length; i++) {
-			charFrequencies[labelNames.indexOf(currLabel.toString())][nucleotideCharToInt(seq[i])]++;
-			if (currLabel.getEndIndex() == i && i < seq.length-1) { // get next label
+		for (int i=0; i<length; i++) {
+			if (i % chunk.length == 0)
+				LabeledSequenceView.getChars(labeledSequence, i, Math.min(length, i + chunk.length), chunk, 0);
+			charFrequencies[labelNames.indexOf(currLabel.toString())][nucleotideCharToInt(chunk[i % chunk.length])]++;
+			if (currLabel.getEndIndex() == i && i < length-1) { // get next label
 				labelIndex++;
 				if (labelIndex == labeledSequence.getLabels().size()) break;
 				currLabel = labeledSequence.getLabels().get(labelIndex);
@@ -370,10 +379,6 @@ public class HMMLabeler implements Labeler {
 				opdfs);
 	}
 	
-	private ObservationInteger nucleotideCharToObservationInteger (char c) {		
-		return new ObservationInteger(nucleotideCharToInt(c));
-	}
-
 	private int nucleotideCharToInt (char c) {
 		switch (c) {
 		case 'A': return 0;
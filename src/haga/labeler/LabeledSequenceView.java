@@ -0,0 +1,144 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.labeler;
+
+import haga.PackedLabeledSequence;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A range of the characters of another sequence, with labels of its own,
+ * made without copying them. The Aligner, the HMMLabeler and the learners
+ * read the range from the backing array; getSequence() is the one place that
+ * copies it, the first time it is called, for code that needs an array of
+ * the exact length.
+ *
+ * The backing array must not change while the view is used.
+ */
+public class LabeledSequenceView implements LabeledSequence {
+
+	private final char[] backing;
+	private final int offset, length;
+	private final List<Label> labels;
+	private volatile char[] sequence;
+
+	/**
+	 * @param labels the labels of the range, from 0 - is not copied
+	 */
+	public LabeledSequenceView(char[] backing, int offset, int length,
+			List<Label> labels) {
+		if (offset < 0 || length < 0 || offset + length > backing.length)
+			throw new IndexOutOfBoundsException("Range: " + offset + " + "
+					+ length + ", length: " + backing.length);
+		if (labels == null)
+			throw new IllegalArgumentException("'labels' cannot be null");
+
+		this.backing = backing;
+		this.offset = offset;
+		this.length = length;
+		this.labels = labels;
+	}
+
+	/**
+	 * @return a view of ls from start (inclusive) to end (exclusive), over the
+	 *   backing array of ls if it is a view itself
+	 */
+	public static LabeledSequenceView of(LabeledSequence ls, int start, int end,
+			List<Label> labels) {
+		if (start < 0 || start > end || end > length(ls))
+			throw new IndexOutOfBoundsException("Range: " + start + " to "
+					+ end + ", length: " + length(ls));
+		return new LabeledSequenceView(backingOf(ls), offsetOf(ls) + start,
+				end - start, labels);
+	}
+
+	public char[] getBacking() {
+		return backing;
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public List<Label> getLabels() {
+		return labels;
+	}
+
+	/**
+	 * @return a copy of the range, made on the first call
+	 */
+	public char[] getSequence() {
+		if (sequence == null)
+			sequence = Arrays.copyOfRange(backing, offset, offset + length);
+		return sequence;
+	}
+
+	/**
+	 * @return the length of the sequence of ls, without copying a view or
+	 *   unpacking a packed sequence
+	 */
+	public static int length(LabeledSequence ls) {
+		if (ls instanceof LabeledSequenceView)
+			return ((LabeledSequenceView) ls).length();
+		if (ls instanceof PackedLabeledSequence)
+			return ((PackedLabeledSequence) ls).getPackedSequence().length();
+		return ls.getSequence().length;
+	}
+
+	/**
+	 * Copies the characters of ls from start (inclusive) to end (exclusive)
+	 * into dest from destStart, as String.getChars() does: from the backing
+	 * array of a view, and from the packed bases of a packed sequence, which
+	 * is not unpacked.
+	 */
+	public static void getChars(LabeledSequence ls, int start, int end,
+			char[] dest, int destStart) {
+		if (ls instanceof PackedLabeledSequence) {
+			((PackedLabeledSequence) ls).getPackedSequence().getChars(start,
+					end, dest, destStart);
+			return;
+		}
+		if (start < 0 || start > end || end > length(ls))
+			throw new IndexOutOfBoundsException("Range: " + start + " to "
+					+ end + ", length: " + length(ls));
+		System.arraycopy(backingOf(ls), offsetOf(ls) + start, dest,
+				destStart, end - start);
+	}
+
+	/**
+	 * @return the array the characters of ls are in, from offsetOf(ls) on.
+	 *   A packed sequence has no such array, and is unpacked: code that reads
+	 *   packed sequences too should use getChars(), or their packed bases
+	 */
+	public static char[] backingOf(LabeledSequence ls) {
+		return ls instanceof LabeledSequenceView ? ((LabeledSequenceView) ls)
+				.getBacking() : ls.getSequence();
+	}
+
+	public static int offsetOf(LabeledSequence ls) {
+		return ls instanceof LabeledSequenceView ? ((LabeledSequenceView) ls)
+				.getOffset() : 0;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.labeler;
+
+import be.ac.ulg.montefiore.run.jahmm.Hmm;
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+
+/**
+ * Finds the most likely state sequence of an Hmm over a byte[] of
+ * observation codes, with the costs (-ln) of its initial, transition and
+ * emission probabilities looked up once into flat tables. Only two rows of
+ * the Viterbi costs are kept, and the back pointers take as few bits as the
+ * number of states needs, so a sequence takes about its length in bytes.
+ *
+ * The states are the ones jahmm's ViterbiCalculator finds: the costs are
+ * computed by the same operations, and ties go the same way.
+ */
+final class ViterbiDecoder {
+
+	// the most states a state fits in a byte for
+	static final int MAX_STATES = Byte.MAX_VALUE + 1;
+
+	private final int nbStates, nbSymbols;
+	private final double[] initialCosts;
+	// [i * nbStates + j] is the cost of going from state i to state j
+	private final double[] transitionCosts;
+	// [o * nbStates + j] is the cost of state j emitting o
+	private final double[] emissionCosts;
+	// a power of two, so a pointer never spans two words
+	private final int pointerBits;
+
+	ViterbiDecoder(Hmm<ObservationInteger> hmm, int nbSymbols) {
+		nbStates = hmm.nbStates();
+		if (nbStates > MAX_STATES)
+			throw new IllegalArgumentException("at most " + MAX_STATES
+					+ " states are supported");
+
+		this.nbSymbols = nbSymbols;
+		initialCosts = new double[nbStates];
+		transitionCosts = new double[nbStates * nbStates];
+		emissionCosts = new double[nbSymbols * nbStates];
+		for (int i = 0; i < nbStates; i++) {
+			initialCosts[i] = -Math.log(hmm.getPi(i));
+			for (int j = 0; j < nbStates; j++)
+				transitionCosts[i * nbStates + j] = -Math.log(hmm.getAij(i, j));
+			for (int o = 0; o < nbSymbols; o++)
+				emissionCosts[o * nbStates + i] = -Math.log(hmm.getOpdf(i)
+						.probability(new ObservationInteger(o)));
+		}
+
+		int bits = 1;
+		while (1 << bits < nbStates)
+			bits <<= 1;
+		pointerBits = bits;
+	}
+
+	/**
+	 * Replaces the observations from offset to offset + length with the most
+	 * likely states to have emitted them.
+	 */
+	void decode(byte[] observations, int offset, int length) {
+		if (length <= 0)
+			throw new IllegalArgumentException("Invalid empty sequence");
+
+		int n = nbStates;
+		long pointerCount = (long) length * n;
+		long words = (pointerCount * pointerBits + 63) >>> 6;
+		if (words > Integer.MAX_VALUE - 8)
+			throw new OutOfMemoryError("back pointers of " + length
+					+ " observations are too large");
+		long[] pointers = new long[(int) words];
+		long mask = (1L << pointerBits) - 1;
+
+		double[] prev = new double[n], curr = new double[n];
+		int emission = symbol(observations[offset]) * n;
+		for (int i = 0; i < n; i++)
+			prev[i] = initialCosts[i] + emissionCosts[emission + i];
+
+		for (int t = 1; t < length; t++) {
+			emission = symbol(observations[offset + t]) * n;
+			long pointer = (long) t * n * pointerBits;
+			for (int j = 0; j < n; j++, pointer += pointerBits) {
+				double min = Double.MAX_VALUE;
+				int argMin = 0;
+				for (int i = 0; i < n; i++) {
+					double cost = prev[i] + transitionCosts[i * n + j];
+					if (min > cost) {
+						min = cost;
+						argMin = i;
+					}
+				}
+				curr[j] = min + emissionCosts[emission + j];
+				pointers[(int) (pointer >>> 6)] |= (long) argMin << (pointer & 63);
+			}
+			double[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+
+		double min = Double.MAX_VALUE;
+		int state = 0;
+		for (int i = 0; i < n; i++) {
+			if (min > prev[i]) {
+				min = prev[i];
+				state = i;
+			}
+		}
+		for (int t = length - 1; t >= 0; t--) {
+			observations[offset + t] = (byte) state;
+			long pointer = ((long) t * n + state) * pointerBits;
+			state = (int) (pointers[(int) (pointer >>> 6)] >>> (pointer & 63) & mask);
+		}
+	}
+
+	private int symbol(byte observation) {
+		if (observation < 0 || observation >= nbSymbols)
+			throw new IllegalArgumentException("Observation out of range: "
+					+ observation);
+		return observation;
+	}
+}
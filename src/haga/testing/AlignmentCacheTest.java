@@ -0,0 +1,238 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.align.Aligner;
+import haga.align.AlignmentCache;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class AlignmentCacheTest {
+
+	// the disk budget of the bounded directory: a few alignments' worth
+	private static final long DISK_BYTES = 40000;
+
+	private static int failures;
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		LabeledSequence[][] pairs = new LabeledSequence[40][];
+		for (int i = 0; i < pairs.length; i++)
+			pairs[i] = userLabeledPair(rand);
+
+		String[] expected = new String[pairs.length];
+		for (int i = 0; i < pairs.length; i++)
+			expected[i] = toString(new Aligner().align(pairs[i][0], pairs[i][1]));
+
+		// a second pass finds every alignment, and changing a result does not
+		// change what the cache returns
+		Aligner aligner = new Aligner();
+		AlignmentCache cache = new AlignmentCache(1 << 24);
+		aligner.setCache(cache);
+		for (int pass = 0; pass < 2; pass++) {
+			for (int i = 0; i < pairs.length; i++) {
+				LabeledAlignment la = aligner.align(pairs[i][0], pairs[i][1]);
+				check(expected[i].equals(toString(la)), "pass " + pass
+						+ ", pair " + i);
+				la.getLS1().getSequence()[0] = '*';
+				la.getLS1().getLabels().clear();
+			}
+		}
+		check(cache.getHits() == pairs.length, cache.getHits()
+				+ " hits instead of " + pairs.length);
+
+		// a small cache keeps the most recent alignments only
+		AlignmentCache small = new AlignmentCache(8000);
+		aligner.setCache(small);
+		for (int i = 0; i < pairs.length; i++)
+			aligner.align(pairs[i][0], pairs[i][1]);
+		check(small.getBytes() <= 8000 && small.size() < pairs.length,
+				small.size() + " alignments in " + small.getBytes() + " bytes");
+		long hits = small.getHits();
+		aligner.align(pairs[pairs.length - 1][0], pairs[pairs.length - 1][1]);
+		check(small.getHits() == hits + 1, "the last alignment was dropped");
+
+		// training changes the model, and so the key of every alignment
+		aligner.setCache(cache);
+		long version = aligner.getModelVersion();
+		aligner.train(aligner.align(pairs[0][0], pairs[0][1]));
+		check(aligner.getModelVersion() != version, "the version is the same");
+		hits = cache.getHits();
+		for (int i = 0; i < pairs.length; i++)
+			aligner.align(pairs[i][0], pairs[i][1]);
+		check(cache.getHits() == hits, "trained alignments found in the cache");
+
+		// Aligners trained the same way have the same version, in any run,
+		// so the alignments one writes to disk are found by the other
+		LabeledAlignment example = new Aligner().align(pairs[0][0], pairs[0][1]);
+		File dir = new File(System.getProperty("java.io.tmpdir"),
+				"AlignmentCacheTest-" + System.nanoTime());
+		Aligner first = new Aligner();
+		first.train(example);
+		first.setCache(new AlignmentCache(0, dir, 1 << 30));
+		String[] trained = new String[pairs.length];
+		for (int i = 0; i < pairs.length; i++)
+			trained[i] = toString(first.align(pairs[i][0], pairs[i][1]));
+		Aligner second = new Aligner();
+		second.train(example);
+		check(second.getModelVersion() == first.getModelVersion()
+				&& first.getModelVersion() != 0, "versions "
+				+ first.getModelVersion() + " and " + second.getModelVersion());
+		AlignmentCache reopened = new AlignmentCache(1 << 24, dir, 1 << 30);
+		second.setCache(reopened);
+		for (int i = 0; i < pairs.length; i++) {
+			check(trained[i].equals(toString(second.align(pairs[i][0],
+					pairs[i][1]))), "pair " + i + " from disk");
+		}
+		check(reopened.getHits() == pairs.length, reopened.getHits()
+				+ " hits from disk instead of " + pairs.length);
+
+		// a damaged file is a miss, and is deleted; the alignment is then
+		// written again
+		File[] files = dir.listFiles();
+		int damaged = 0;
+		for (File f : files) {
+			damage(f, damaged++ % 3);
+		}
+		Aligner third = new Aligner();
+		third.train(example);
+		AlignmentCache damagedCache = new AlignmentCache(1 << 24, dir, 1 << 30);
+		third.setCache(damagedCache);
+		for (int i = 0; i < pairs.length; i++) {
+			check(trained[i].equals(toString(third.align(pairs[i][0],
+					pairs[i][1]))), "pair " + i + " with damaged files");
+		}
+		check(damagedCache.getHits() == 0, damagedCache.getHits()
+				+ " damaged files read");
+		check(dir.listFiles().length == files.length, dir.listFiles().length
+				+ " files instead of " + files.length);
+
+		// a directory over its budget loses its oldest files, and keeps the
+		// newest
+		for (File f : dir.listFiles())
+			f.delete();
+		AlignmentCache bounded = new AlignmentCache(0, dir, DISK_BYTES);
+		second.setCache(bounded);
+		for (int i = 0; i < pairs.length; i++)
+			second.align(pairs[i][0], pairs[i][1]);
+		long onDisk = 0;
+		for (File f : dir.listFiles())
+			onDisk += f.length();
+		check(onDisk <= DISK_BYTES && onDisk == bounded.getDiskBytes(), onDisk
+				+ " bytes on disk, " + bounded.getDiskBytes() + " counted");
+		check(dir.listFiles().length < pairs.length, dir.listFiles().length
+				+ " files kept");
+		AlignmentCache newest = new AlignmentCache(0, dir, DISK_BYTES);
+		second.setCache(newest);
+		second.align(pairs[pairs.length - 1][0], pairs[pairs.length - 1][1]);
+		check(newest.getHits() == 1 && newest.getDiskBytes() == onDisk,
+				"the newest file was deleted");
+
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+
+		System.out.println(failures == 0 ? "All cached alignments correct."
+				: failures + " cache checks failed.");
+	}
+
+	// overwrites f with a huge length, a truncated copy of itself, or runs
+	// that do not match its sequences
+	private static void damage(File f, int how) {
+		try {
+			byte[] bytes = new byte[(int) f.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(f));
+			in.readFully(bytes);
+			in.close();
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+			if (how == 0) {
+				out.write(bytes, 0, 4);
+				out.writeInt(Integer.MAX_VALUE);
+			} else if (how == 1) {
+				out.write(bytes, 0, bytes.length / 2);
+			} else {
+				// the first sequence gets one base fewer than the runs need
+				int length = (bytes[4] & 0xff) << 24 | (bytes[5] & 0xff) << 16
+						| (bytes[6] & 0xff) << 8 | (bytes[7] & 0xff);
+				out.write(bytes, 0, 4);
+				out.writeInt(length - 1);
+				out.write(bytes, 8, 2 * (length - 1));
+				out.write(bytes, 8 + 2 * length, bytes.length - 8 - 2 * length);
+			}
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void check(boolean ok, String message) {
+		if (!ok) {
+			failures++;
+			System.out.println("Failed: " + message);
+		}
+	}
+
+	// two related sequences split into the same user labels, with long
+	// enough pieces to be cached on their own
+	private static LabeledSequence[] userLabeledPair(Random rand) {
+		StringBuffer s1 = new StringBuffer(), s2 = new StringBuffer();
+		List<Label> labels1 = new ArrayList<Label>();
+		List<Label> labels2 = new ArrayList<Label>();
+		int segments = 1 + rand.nextInt(4);
+		for (int s = 0; s < segments; s++) {
+			String name = "gene" + rand.nextInt(4);
+			LabeledSequence segment = RandomSequences.randomLabeledSequence(
+					1 + rand.nextInt(400), rand);
+			char[] seq1 = segment.getSequence();
+			char[] seq2 = RandomSequences.mutate(segment, rand).getSequence();
+			if (seq2.length == 0)
+				seq2 = seq1;
+			labels1.add(new Label(name, s1.length(), s1.length() + seq1.length
+					- 1, true));
+			labels2.add(new Label(name, s2.length(), s2.length() + seq2.length
+					- 1, true));
+			s1.append(seq1);
+			s2.append(seq2);
+		}
+		return new LabeledSequence[] {
+				new NucleotideLabeledSequence(s1.toString().toCharArray(),
+						labels1),
+				new NucleotideLabeledSequence(s2.toString().toCharArray(),
+						labels2) };
+	}
+
+	private static String toString(LabeledAlignment la) {
+		return new String(la.getLS1().getSequence()) + "\n"
+				+ new String(la.getLS2().getSequence()) + "\n"
+				+ la.getLS1().getLabels() + "\n" + la.getLS2().getLabels();
+	}
+}
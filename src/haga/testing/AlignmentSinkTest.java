@@ -0,0 +1,114 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.align.Aligner;
+import haga.align.AlignmentSink;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class AlignmentSinkTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		Aligner aligner = new Aligner();
+		int failures = 0;
+		for (int trial = 0; trial < 100; trial++) {
+			LabeledSequence[] pair = pair(rand);
+			LabeledAlignment expected = aligner.align(pair[0], pair[1]);
+
+			// the pieces, put back together
+			final StringBuffer s1 = new StringBuffer(), s2 = new StringBuffer();
+			final List<Label> labels1 = new ArrayList<Label>();
+			final List<Label> labels2 = new ArrayList<Label>();
+			aligner.align(pair[0], pair[1], new AlignmentSink() {
+				public void append(char[] seq1, char[] seq2,
+						List<Label> pieceLabels1, List<Label> pieceLabels2) {
+					if (seq1.length != seq2.length)
+						throw new IllegalStateException("Rows of "
+								+ seq1.length + " and " + seq2.length);
+					s1.append(seq1);
+					s2.append(seq2);
+					labels1.addAll(pieceLabels1);
+					labels2.addAll(pieceLabels2);
+				}
+			});
+
+			if (!s1.toString().equals(
+					new String(expected.getLS1().getSequence()))
+					|| !s2.toString().equals(
+							new String(expected.getLS2().getSequence()))
+					|| !labels1.equals(expected.getLS1().getLabels())
+					|| !labels2.equals(expected.getLS2().getLabels())) {
+				failures++;
+				System.out.println("Mismatch for pair " + trial);
+			}
+		}
+
+		System.out.println(failures == 0 ? "All streamed alignments correct."
+				: failures + " streamed alignments wrong.");
+	}
+
+	// two related sequences, with background labels between the same user
+	// labels
+	private static LabeledSequence[] pair(Random rand) {
+		StringBuffer s1 = new StringBuffer(), s2 = new StringBuffer();
+		List<Label> labels1 = new ArrayList<Label>();
+		List<Label> labels2 = new ArrayList<Label>();
+		int segments = 1 + rand.nextInt(6);
+		for (int s = 0; s < segments; s++) {
+			boolean user = rand.nextBoolean();
+			LabeledSequence segment1 = RandomSequences.randomLabeledSequence(
+					1 + rand.nextInt(300), rand);
+			LabeledSequence segment2 = RandomSequences.mutate(segment1, rand);
+			if (segment2.getSequence().length == 0)
+				segment2 = segment1;
+			add(s1, labels1, segment1, user ? "gene" + s : null);
+			add(s2, labels2, segment2, user ? "gene" + s : null);
+		}
+		return new LabeledSequence[] {
+				new NucleotideLabeledSequence(s1.toString().toCharArray(),
+						labels1),
+				new NucleotideLabeledSequence(s2.toString().toCharArray(),
+						labels2) };
+	}
+
+	// appends segment, under one user label if userLabel is not null, or
+	// under its own labels otherwise
+	private static void add(StringBuffer sb, List<Label> labels,
+			LabeledSequence segment, String userLabel) {
+		int offset = sb.length();
+		sb.append(segment.getSequence());
+		if (userLabel != null) {
+			labels.add(new Label(userLabel, offset, sb.length() - 1, true));
+			return;
+		}
+		for (Label l : segment.getLabels())
+			labels.add(new Label(l.toString(), l.getStartIndex() + offset, l
+					.getEndIndex()
+					+ offset, false));
+	}
+}
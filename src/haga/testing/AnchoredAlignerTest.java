@@ -0,0 +1,84 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Alignment;
+import haga.align.AnchoredAligner;
+import haga.align.BandedNeedlemanWunsch;
+import haga.align.NeedlemanWunschIyoToscano;
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class AnchoredAlignerTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+
+		for (int trial = 0; trial < 20; trial++) {
+			int n = trial < 10 ? 500 + rand.nextInt(1000) : 20000 + rand
+					.nextInt(20000);
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(n, rand);
+			boolean unrelated = trial % 5 == 0 && trial < 10;
+			LabeledSequence ls2 = unrelated ? RandomSequences
+					.randomLabeledSequence(rand.nextInt(n + 1), rand)
+					: RandomSequences.mutate(ls1, rand);
+
+			BandedNeedlemanWunsch engine = new BandedNeedlemanWunsch(
+					new NeedlemanWunschIyoToscano());
+			AnchoredAligner anchored = new AnchoredAligner(engine);
+			anchored.setMinAnchoredLength(trial < 10 ? 100 : 1000);
+			anchored.setK(12 + rand.nextInt(5));
+			anchored.setWindow(1 + rand.nextInt(10));
+
+			Alignment a = anchored.align(ls1, ls2);
+			if (!Arrays.equals(ls1.getSequence(), removeGaps(a.getSequence1()))
+					|| !Arrays.equals(ls2.getSequence(), removeGaps(a
+							.getSequence2()))) {
+				failures++;
+				System.out.println("Alignment does not match its sequences:");
+				System.out.println(a);
+			}
+
+			// anchors can only make the alignment worse (costlier), and not by
+			// much
+			int optimal = engine.score(ls1, ls2);
+			int score = anchored.score(ls1, ls2);
+			if (score < optimal
+					|| (!unrelated && score - optimal > Math.abs(optimal) / 10)) {
+				failures++;
+				System.out.println("Score " + score + " vs optimal " + optimal);
+			}
+		}
+
+		System.out.println(failures == 0 ? "All alignments consistent."
+				: failures + " alignments inconsistent.");
+	}
+
+	private static char[] removeGaps(char[] aligned) {
+		StringBuffer sb = new StringBuffer();
+		for (char c : aligned)
+			if (c != '-')
+				sb.append(c);
+		return sb.toString().toCharArray();
+	}
+}
@@ -0,0 +1,226 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.align.Aligner;
+import haga.align.BatchAligner;
+import haga.align.BatchListener;
+import haga.align.PreparedReference;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class BatchAlignerTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		List<LabeledAlignment> pairs = new ArrayList<LabeledAlignment>();
+		for (int i = 0; i < 300; i++) {
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(
+					i == 150 ? 5000 : 1 + rand.nextInt(400), rand);
+			pairs.add(new LabeledAlignment(ls1, RandomSequences.mutate(ls1,
+					rand)));
+		}
+		// a pair the Aligner rejects: the user labels do not correspond
+		LabeledSequence unmatched = new NucleotideLabeledSequence("ACGT"
+				.toCharArray(), new Label("exon", 0, 3, true));
+		pairs.set(42, new LabeledAlignment(unmatched, RandomSequences
+				.randomLabeledSequence(4, rand)));
+
+		Aligner aligner = new Aligner();
+		String[] expected = new String[pairs.size()];
+		for (int i = 0; i < pairs.size(); i++) {
+			try {
+				expected[i] = toString(aligner.align(pairs.get(i).getLS1(),
+						pairs.get(i).getLS2()));
+			} catch (RuntimeException e) {
+				expected[i] = null;
+			}
+		}
+
+		int failures = 0;
+		List<LabeledAlignment> results = new BatchAligner(aligner, 4)
+				.alignAll(pairs);
+		for (int i = 0; i < pairs.size(); i++) {
+			String actual = results.get(i) == null ? null : toString(results
+					.get(i));
+			if (expected[i] == null ? actual != null : !expected[i]
+					.equals(actual)) {
+				failures++;
+				System.out.println("alignAll() mismatch for pair " + i);
+			}
+		}
+
+		// streamed, with a small lookahead
+		final String[] streamed = new String[pairs.size()];
+		final boolean[] failed = new boolean[pairs.size()];
+		BatchAligner batch = new BatchAligner(aligner, 3);
+		batch.setLookahead(7);
+		batch.align(pairs.iterator(), new BatchListener() {
+			public void aligned(int index, LabeledAlignment result) {
+				streamed[index] = BatchAlignerTest.toString(result);
+			}
+
+			public void failed(int index, Throwable t) {
+				failed[index] = true;
+			}
+		});
+		for (int i = 0; i < pairs.size(); i++) {
+			if (expected[i] == null ? !failed[i] : !expected[i]
+					.equals(streamed[i])) {
+				failures++;
+				System.out.println("align() mismatch for pair " + i);
+			}
+		}
+
+		// a pair that overflows the stack is reported, and the others still
+		// aligned
+		List<LabeledAlignment> withError = new ArrayList<LabeledAlignment>(
+				pairs.subList(0, 20));
+		withError.set(7, new LabeledAlignment(new LabeledSequence() {
+			public List<Label> getLabels() {
+				throw new StackOverflowError();
+			}
+
+			public char[] getSequence() {
+				return "ACGT".toCharArray();
+			}
+		}, withError.get(7).getLS2()));
+		final Throwable[] thrown = new Throwable[withError.size()];
+		final String[] survived = new String[withError.size()];
+		new BatchAligner(aligner, 3).align(withError.iterator(),
+				new BatchListener() {
+					public void aligned(int index, LabeledAlignment result) {
+						survived[index] = BatchAlignerTest.toString(result);
+					}
+
+					public void failed(int index, Throwable t) {
+						thrown[index] = t;
+					}
+				});
+		for (int i = 0; i < withError.size(); i++) {
+			boolean ok = i == 7 ? thrown[i] instanceof StackOverflowError
+					: expected[i] == null ? thrown[i] != null : expected[i]
+							.equals(survived[i]);
+			if (!ok) {
+				failures++;
+				System.out.println("Error isolation mismatch for pair " + i);
+			}
+		}
+
+		// many queries against one prepared reference, made of background
+		// stretches and user labels
+		StringBuffer sb = new StringBuffer();
+		List<Label> labels = new ArrayList<Label>();
+		for (int s = 0; s < 6; s++) {
+			LabeledSequence segment = RandomSequences.randomLabeledSequence(
+					1 + rand.nextInt(300), rand);
+			addSegment(sb, labels, segment, s % 2 == 0 ? null : "gene" + s);
+		}
+		LabeledSequence reference = new NucleotideLabeledSequence(sb
+				.toString().toCharArray(), labels);
+		List<LabeledSequence> queries = new ArrayList<LabeledSequence>();
+		for (int q = 0; q < 100; q++)
+			queries.add(mutate(reference, rand));
+
+		PreparedReference prepared = aligner.prepare(reference);
+		results = new BatchAligner(aligner, 4).alignAll(prepared, queries);
+		for (int q = 0; q < queries.size(); q++) {
+			String expect = toString(aligner.align(reference, queries.get(q)));
+			if (!expect.equals(toString(aligner.align(prepared, queries
+					.get(q))))
+					|| !expect.equals(toString(results.get(q)))) {
+				failures++;
+				System.out.println("Mismatch for query " + q);
+			}
+		}
+
+		System.out.println(failures == 0 ? "All batch alignments correct."
+				: failures + " batch alignments wrong.");
+	}
+
+	// a copy of ls with each user label and each stretch between them mutated
+	private static LabeledSequence mutate(LabeledSequence ls, Random rand) {
+		StringBuffer sb = new StringBuffer();
+		List<Label> labels = new ArrayList<Label>();
+		List<Label> stretch = new ArrayList<Label>();
+		for (Label l : ls.getLabels()) {
+			if (!l.userDefined) {
+				stretch.add(l);
+				continue;
+			}
+			addStretch(sb, labels, ls, stretch, rand);
+			addSegment(sb, labels, RandomSequences.mutate(
+					segment(ls, l.getStartIndex(), l.getEndIndex() + 1), rand),
+					l.toString());
+		}
+		addStretch(sb, labels, ls, stretch, rand);
+		return new NucleotideLabeledSequence(sb.toString().toCharArray(),
+				labels);
+	}
+
+	private static void addStretch(StringBuffer sb, List<Label> labels,
+			LabeledSequence ls, List<Label> stretch, Random rand) {
+		if (stretch.isEmpty())
+			return;
+		addSegment(sb, labels, RandomSequences.mutate(segment(ls, stretch.get(0)
+				.getStartIndex(), stretch.get(stretch.size() - 1)
+				.getEndIndex() + 1), rand), null);
+		stretch.clear();
+	}
+
+	private static LabeledSequence segment(LabeledSequence ls, int start,
+			int end) {
+		char[] seq = new char[end - start];
+		System.arraycopy(ls.getSequence(), start, seq, 0, seq.length);
+		return new NucleotideLabeledSequence(seq, new ArrayList<Label>());
+	}
+
+	// appends segment, under one user label if userLabel is not null, or
+	// under its own labels otherwise. Empty segments get one base
+	private static void addSegment(StringBuffer sb, List<Label> labels,
+			LabeledSequence segment, String userLabel) {
+		char[] seq = segment.getSequence();
+		if (seq.length == 0)
+			seq = new char[] { 'A' };
+		int offset = sb.length();
+		sb.append(seq);
+		if (userLabel != null) {
+			labels.add(new Label(userLabel, offset, sb.length() - 1, true));
+			return;
+		}
+		for (Label l : RandomSequences.randomLabels(seq.length, new Random(
+				seq.length)))
+			labels.add(new Label(l.toString(), l.getStartIndex() + offset, l
+					.getEndIndex()
+					+ offset, false));
+	}
+
+	private static String toString(LabeledAlignment la) {
+		return new String(la.getLS1().getSequence()) + "\n"
+				+ new String(la.getLS2().getSequence()) + "\n"
+				+ la.getLS1().getLabels() + "\n" + la.getLS2().getLabels();
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.align.Aligner;
+import haga.align.Alignment;
+import haga.align.BatchNeedlemanWunsch;
+import haga.align.NeedlemanWunsch;
+import haga.align.NeedlemanWunschIyoToscano;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public class BatchNeedlemanWunschTest {
+
+	private static final int PAIRS = 500;
+
+	// blocks of the sequences aligned by an Aligner, every other one under
+	// a user label
+	private static final int BLOCKS = 40;
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		for (int trial = 0; trial < 4; trial++) {
+			// background labels on even trials, one user label on odd ones
+			boolean userLabeled = trial % 2 == 1;
+			LabeledSequence[] ls1 = new LabeledSequence[PAIRS];
+			LabeledSequence[] ls2 = new LabeledSequence[PAIRS];
+			for (int k = 0; k < PAIRS; k++) {
+				int length = trial < 2 ? 1 + rand.nextInt(150) : 60 + rand
+						.nextInt(10);
+				ls1[k] = RandomSequences.randomLabeledSequence(length, rand);
+				ls2[k] = RandomSequences.mutate(ls1[k], rand);
+				if (userLabeled) {
+					ls1[k] = userLabeled(ls1[k]);
+					ls2[k] = userLabeled(ls2[k]);
+				}
+			}
+
+			NeedlemanWunsch nw = trial % 2 == 0 ? new NeedlemanWunschIyoToscano()
+					: new NeedlemanWunsch();
+			Alignment[] batch = new BatchNeedlemanWunsch(nw).align(ls1, ls2);
+			for (int k = 0; k < PAIRS; k++) {
+				if (!nw.align(ls1[k], ls2[k]).toString().equals(
+						batch[k].toString())) {
+					failures++;
+					System.out.println("Mismatch for pair " + k + " of trial "
+							+ trial);
+				}
+			}
+		}
+
+		failures += checkAligner(rand);
+
+		System.out.println(BatchNeedlemanWunsch.isVectorized() ? "Aligned "
+				+ BatchNeedlemanWunsch.LANES + " pairs at a time."
+				: "Aligned one pair at a time (no jdk.incubator.vector).");
+		System.out.println(failures == 0 ? "All batch alignments correct."
+				: failures + " batch alignments wrong.");
+	}
+
+	// an Aligner hands the short pieces of an alignment to batches, when
+	// they are vectorized, and aligns each user label as NeedlemanWunsch does
+	private static int checkAligner(Random rand) {
+		StringBuffer seq1 = new StringBuffer(), seq2 = new StringBuffer();
+		List<Label> labels1 = new ArrayList<Label>();
+		List<Label> labels2 = new ArrayList<Label>();
+		List<Alignment> expected = new ArrayList<Alignment>();
+		for (int b = 0; b < BLOCKS; b++) {
+			LabeledSequence block1 = RandomSequences.randomLabeledSequence(
+					20 + rand.nextInt(90), rand);
+			LabeledSequence block2 = RandomSequences.mutate(block1, rand);
+			if (b % 2 == 1) {
+				block1 = userLabeled(block1);
+				block2 = userLabeled(block2);
+				expected.add(new NeedlemanWunsch().align(block1, block2));
+			}
+			append(seq1, labels1, block1);
+			append(seq2, labels2, block2);
+		}
+
+		final int[] submitted = new int[1];
+		Aligner aligner = new Aligner(new Executor() {
+			public void execute(Runnable command) {
+				submitted[0]++;
+				throw new RejectedExecutionException();
+			}
+		});
+		LabeledAlignment la = aligner.align(new NucleotideLabeledSequence(seq1
+				.toString().toCharArray(), labels1),
+				new NucleotideLabeledSequence(seq2.toString().toCharArray(),
+						labels2));
+
+		int failures = 0;
+		if (BatchNeedlemanWunsch.isVectorized() ? submitted[0] >= BLOCKS
+				: submitted[0] != BLOCKS) {
+			failures++;
+			System.out.println(submitted[0] + " runs for " + BLOCKS
+					+ " pieces");
+		}
+		Iterator<Alignment> pieces = expected.iterator();
+		List<Label> aligned2 = userLabels(la.getLS2());
+		for (Label label : userLabels(la.getLS1())) {
+			Alignment piece = pieces.next();
+			Label label2 = aligned2.remove(0);
+			int length = label.getEndIndex() - label.getStartIndex() + 1;
+			if (label.getStartIndex() != label2.getStartIndex()
+					|| !new String(piece.getSequence1()).equals(new String(la
+							.getLS1().getSequence(), label.getStartIndex(),
+							length))
+					|| !new String(piece.getSequence2()).equals(new String(la
+							.getLS2().getSequence(), label.getStartIndex(),
+							length))) {
+				failures++;
+				System.out.println("Mismatch for the user label at "
+						+ label.getStartIndex());
+			}
+		}
+		return failures;
+	}
+
+	// appends ls to seq and its labels to labels
+	private static void append(StringBuffer seq, List<Label> labels,
+			LabeledSequence ls) {
+		int offset = seq.length();
+		seq.append(ls.getSequence());
+		for (Label l : ls.getLabels()) {
+			labels.add(new Label(l.toString(), offset + l.getStartIndex(),
+					offset + l.getEndIndex(), l.userDefined));
+		}
+	}
+
+	private static List<Label> userLabels(LabeledSequence ls) {
+		List<Label> labels = new ArrayList<Label>();
+		for (Label l : ls.getLabels()) {
+			if (l.userDefined)
+				labels.add(l);
+		}
+		return labels;
+	}
+
+	private static LabeledSequence userLabeled(LabeledSequence ls) {
+		char[] seq = ls.getSequence();
+		return new NucleotideLabeledSequence(seq, new Label("exon", 0,
+				seq.length - 1, true));
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Aligner;
+import haga.align.Alignment;
+import haga.align.AlignmentRow;
+import haga.align.GapMap;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class CompactAlignmentTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		for (int trial = 0; trial < 500; trial++) {
+			// columns in runs, so runs of every length come up
+			StringBuffer row1 = new StringBuffer(), row2 = new StringBuffer();
+			StringBuffer bases1 = new StringBuffer(), bases2 = new StringBuffer();
+			StringBuffer cigar = new StringBuffer();
+			int runs = rand.nextInt(trial < 250 ? 10 : 200);
+			int last = -1;
+			for (int r = 0; r < runs; r++) {
+				int op = rand.nextInt(3);
+				if (op == last)
+					op = (op + 1) % 3;
+				last = op;
+				int length = 1 + rand.nextInt(rand.nextBoolean() ? 5 : 150);
+				cigar.append(length).append("MID".charAt(op));
+				for (int i = 0; i < length; i++) {
+					char b1 = RandomSequences.BASES[rand.nextInt(4)];
+					char b2 = RandomSequences.BASES[rand.nextInt(4)];
+					row1.append(op == 1 ? Alignment.GAP : b1);
+					row2.append(op == 2 ? Alignment.GAP : b2);
+					if (op != 1)
+						bases1.append(b1);
+					if (op != 2)
+						bases2.append(b2);
+				}
+			}
+
+			char[] gapped1 = row1.toString().toCharArray();
+			char[] gapped2 = row2.toString().toCharArray();
+			Alignment gapped = new Alignment(gapped1, gapped2);
+			Alignment compact = new Alignment(bases1.toString().toCharArray(),
+					bases2.toString().toCharArray(), cigar.toString());
+			if (!same(gapped, compact, cigar.toString())) {
+				failures++;
+				System.out.println("Mismatch for " + cigar);
+			}
+		}
+
+		// runs that do not use up the sequences, and malformed ones
+		for (String cigar : new String[] { "3M", "4M1D", "M", "4X", "4" }) {
+			try {
+				new Alignment("ACGT".toCharArray(), "ACGT".toCharArray(), cigar);
+				failures++;
+				System.out.println("Accepted " + cigar);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+
+		// the rows of the Aligner are the rows of one compact alignment
+		Aligner aligner = new Aligner();
+		for (int trial = 0; trial < 20; trial++) {
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(1 + rand
+					.nextInt(2000), rand);
+			LabeledAlignment la = aligner.align(ls1, RandomSequences.mutate(ls1,
+					rand));
+			if (!(la.getLS1() instanceof AlignmentRow)
+					|| !(la.getLS2() instanceof AlignmentRow)) {
+				failures++;
+				System.out.println("Aligner rows are not compact");
+				continue;
+			}
+			Alignment a = ((AlignmentRow) la.getLS1()).getAlignment();
+			char[] bases1 = ls1.getSequence().clone();
+
+			// the result keeps its own copy of the bases, which here have no
+			// gaps to remove: changing the caller's array does not change it
+			Arrays.fill(ls1.getSequence(), 'N');
+			if (a.getUngappedSequence1() == ls1.getSequence()
+					|| !Arrays.equals(bases1, a.getUngappedSequence1())) {
+				failures++;
+				System.out.println("Aligner result reads the caller's array");
+			}
+
+			char[] seq1 = la.getLS1().getSequence().clone();
+			char[] seq2 = la.getLS2().getSequence().clone();
+			if (a != ((AlignmentRow) la.getLS2()).getAlignment()
+					|| !same(new Alignment(seq1, seq2), a, a.toCigar())) {
+				failures++;
+				System.out.println("Aligner alignment differs from its runs");
+			}
+		}
+
+		System.out.println(failures == 0 ? "All compact alignments correct."
+				: failures + " compact alignments wrong.");
+	}
+
+	// whether gapped and compact are the same alignment, with the given runs
+	private static boolean same(Alignment gapped, Alignment compact,
+			String cigar) {
+		boolean ok = compact.length() == gapped.length()
+				&& gapped.toCigar().equals(cigar)
+				&& compact.toCigar().equals(cigar)
+				&& compact.getRunCount() == gapped.getRunCount()
+				&& Arrays.equals(compact.getUngappedSequence1(), gapped
+						.getUngappedSequence1())
+				&& Arrays.equals(compact.getUngappedSequence2(), gapped
+						.getUngappedSequence2());
+		for (int r = 0; ok && r < compact.getRunCount(); r++) {
+			ok = compact.getRunOperation(r) == gapped.getRunOperation(r)
+					&& compact.getRunLength(r) == gapped.getRunLength(r);
+		}
+		// the gap maps first, before the rows are built
+		ok = ok && sameMap(compact.getGapMap1(), gapped.getGapMap1())
+				&& sameMap(compact.getGapMap2(), gapped.getGapMap2());
+		return ok
+				&& Arrays.equals(compact.getSequence1(), gapped.getSequence1())
+				&& Arrays.equals(compact.getSequence2(), gapped.getSequence2());
+	}
+
+	private static boolean sameMap(GapMap map1, GapMap map2) {
+		if (map1.gappedLength() != map2.gappedLength()
+				|| map1.ungappedLength() != map2.ungappedLength())
+			return false;
+		for (int i = 0; i <= map1.gappedLength(); i++) {
+			if (map1.toUngapped(i) != map2.toUngapped(i))
+				return false;
+		}
+		return true;
+	}
+}
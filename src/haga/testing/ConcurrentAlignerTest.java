@@ -0,0 +1,169 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.align.Aligner;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConcurrentAlignerTest {
+
+	private static final int PAIRS = 400;
+
+	public static void main(String[] args) throws InterruptedException,
+			ExecutionException {
+		Random rand = new Random(6878);
+		final LabeledSequence[][] pairs = new LabeledSequence[PAIRS][];
+		for (int i = 0; i < PAIRS; i++)
+			pairs[i] = userLabeledPair(rand);
+
+		// one aligner per pair, so the result does not depend on the order
+		final String[] expected = new String[PAIRS];
+		for (int i = 0; i < PAIRS; i++)
+			expected[i] = toString(new Aligner().align(pairs[i][0], pairs[i][1]));
+		final AtomicInteger failures = new AtomicInteger();
+
+		// the same pairs on one thread, with one aligner, which the threads
+		// below must agree with
+		Aligner single = new Aligner();
+		long start = System.nanoTime();
+		for (int i = 0; i < PAIRS; i++) {
+			if (!expected[i].equals(toString(single.align(pairs[i][0],
+					pairs[i][1])))) {
+				failures.incrementAndGet();
+				System.out.println("Mismatch for pair " + i + " on one thread");
+			}
+		}
+		double sequential = (System.nanoTime() - start) / 1e9;
+
+		// a single aligner shared by all the threads, which see the labels in
+		// different orders
+		final Aligner aligner = new Aligner();
+		int threadCount = Math.max(2, Runtime.getRuntime().availableProcessors());
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int offset = t * PAIRS / threadCount;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int k = 0; k < PAIRS; k++) {
+						int i = (offset + k) % PAIRS;
+						String actual = ConcurrentAlignerTest.toString(aligner
+								.align(pairs[i][0], pairs[i][1]));
+						if (!expected[i].equals(actual)) {
+							failures.incrementAndGet();
+							System.out.println("Mismatch for pair " + i);
+						}
+					}
+				}
+			};
+		}
+		start = System.nanoTime();
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join();
+		double concurrent = (System.nanoTime() - start) / 1e9;
+
+		// the threads only run at once with more than one processor; on one,
+		// the test still checks the results, but their speed says nothing
+		int processors = Runtime.getRuntime().availableProcessors();
+		if (processors > 1) {
+			System.out.println(threadCount + " threads on " + processors
+					+ " processors: " + (long) (threadCount * PAIRS / concurrent)
+					+ " alignments per second, against "
+					+ (long) (PAIRS / sequential) + " on one thread");
+		} else {
+			System.out.println("One processor: throughput not compared.");
+		}
+
+		// the pieces of each alignment run on a pool, from tasks of the same
+		// pool, which must not wait on each other forever
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		final Aligner parallel = new Aligner(pool);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < PAIRS; i++) {
+			final int pair = i;
+			results.add(pool.submit(new Callable<String>() {
+				public String call() {
+					return ConcurrentAlignerTest.toString(parallel.align(
+							pairs[pair][0], pairs[pair][1]));
+				}
+			}));
+		}
+		for (int i = 0; i < PAIRS; i++) {
+			if (!expected[i].equals(results.get(i).get())) {
+				failures.incrementAndGet();
+				System.out.println("Mismatch for pair " + i
+						+ " with parallel pieces");
+			}
+		}
+		pool.shutdown();
+
+		System.out.println(failures.get() == 0 ? "All alignments consistent."
+				: failures.get() + " alignments differ.");
+	}
+
+	// two related sequences split into the same user labels
+	private static LabeledSequence[] userLabeledPair(Random rand) {
+		StringBuffer s1 = new StringBuffer(), s2 = new StringBuffer();
+		List<Label> labels1 = new ArrayList<Label>();
+		List<Label> labels2 = new ArrayList<Label>();
+		int segments = 1 + rand.nextInt(6);
+		for (int s = 0; s < segments; s++) {
+			String name = "gene" + rand.nextInt(8);
+			LabeledSequence segment = RandomSequences.randomLabeledSequence(
+					1 + rand.nextInt(300), rand);
+			char[] seq1 = segment.getSequence();
+			char[] seq2 = RandomSequences.mutate(segment, rand).getSequence();
+			if (seq2.length == 0)
+				seq2 = seq1;
+			labels1.add(new Label(name, s1.length(), s1.length() + seq1.length
+					- 1, true));
+			labels2.add(new Label(name, s2.length(), s2.length() + seq2.length
+					- 1, true));
+			s1.append(seq1);
+			s2.append(seq2);
+		}
+		return new LabeledSequence[] {
+				new NucleotideLabeledSequence(s1.toString().toCharArray(),
+						labels1),
+				new NucleotideLabeledSequence(s2.toString().toCharArray(),
+						labels2) };
+	}
+
+	private static String toString(LabeledAlignment la) {
+		return new String(la.getLS1().getSequence()) + "\n"
+				+ new String(la.getLS2().getSequence()) + "\n"
+				+ la.getLS1().getLabels() + "\n" + la.getLS2().getLabels();
+	}
+}
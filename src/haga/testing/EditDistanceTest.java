@@ -0,0 +1,104 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.EditDistance;
+
+import java.util.Random;
+
+public class EditDistanceTest {
+
+	// lengths either side of the 64-row blocks the distance is packed in
+	private static final int[] BOUNDARIES = new int[] { 0, 1, 63, 64, 65,
+			127, 128, 129 };
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+
+		for (int trial = 0; trial < 500; trial++) {
+			int n = rand.nextInt(trial < 250 ? 70 : 700);
+			char[] s1 = RandomSequences.randomBases(n, rand);
+			char[] s2 = trial % 5 == 0 ? RandomSequences.randomBases(rand
+					.nextInt(n + 1), rand) : RandomSequences.mutate(s1, rand);
+			if (!check(s1, s2))
+				failures++;
+		}
+
+		for (int n : BOUNDARIES) {
+			for (int m : BOUNDARIES) {
+				// unrelated, and sharing a prefix so the distance is small
+				char[] s1 = RandomSequences.randomBases(n, rand);
+				char[] s2 = RandomSequences.randomBases(m, rand);
+				if (!check(s1, s2))
+					failures++;
+				System.arraycopy(s1, 0, s2, 0, Math.min(n, m) / 2);
+				if (!check(s1, s2))
+					failures++;
+			}
+		}
+
+		char[] s1 = RandomSequences.randomBases(20000, rand);
+		char[] s2 = RandomSequences.randomBases(20000, rand);
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++)
+			EditDistance.distance(s1, s2);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println((long) (10 * 20000.0 * 20000 / seconds / 1e6)
+				+ " million cells per second");
+
+		System.out.println(failures == 0 ? "All distances correct."
+				: failures + " distances wrong.");
+	}
+
+	// the distance both ways round, and bounded just below, at and above it
+	private static boolean check(char[] s1, char[] s2) {
+		int expected = levenshtein(s1, s2);
+		boolean ok = EditDistance.distance(s1, s2) == expected
+				&& EditDistance.distance(s2, s1) == expected;
+		for (int max = Math.max(0, expected - 1); max <= expected + 1; max++) {
+			int bounded = expected > max ? max + 1 : expected;
+			ok = ok && EditDistance.distance(s1, s2, max) == bounded
+					&& EditDistance.distance(s2, s1, max) == bounded;
+		}
+		if (!ok)
+			System.out.println("Wrong distance for " + s1.length + " x "
+					+ s2.length + ", expected " + expected);
+		return ok;
+	}
+
+	private static int levenshtein(char[] s1, char[] s2) {
+		int[] prev = new int[s2.length + 1];
+		int[] curr = new int[s2.length + 1];
+		for (int j = 0; j <= s2.length; j++)
+			prev[j] = j;
+		for (int i = 1; i <= s1.length; i++) {
+			curr[0] = i;
+			for (int j = 1; j <= s2.length; j++) {
+				int diag = prev[j - 1] + (s1[i - 1] == s2[j - 1] ? 0 : 1);
+				curr[j] = Math.min(diag, Math.min(prev[j], curr[j - 1]) + 1);
+			}
+			int[] tmp = prev;
+			prev = curr;
+			curr = tmp;
+		}
+		return prev[s2.length];
+	}
+}
@@ -0,0 +1,74 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.GapMap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class GapMapTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		for (int trial = 0; trial < 500; trial++) {
+			int length = rand.nextInt(trial < 250 ? 70 : 2000);
+			int gaps = rand.nextInt(5);
+			char[] gapped = new char[length];
+			for (int i = 0; i < length; i++)
+				gapped[i] = rand.nextInt(4) < gaps ? GapMap.GAP
+						: RandomSequences.BASES[rand.nextInt(4)];
+
+			// the same mapping, by scanning
+			StringBuffer bases = new StringBuffer();
+			int[] ungapped = new int[length + 1];
+			int[] positions = new int[length + 1];
+			for (int i = 0; i < length; i++) {
+				ungapped[i] = bases.length();
+				if (gapped[i] != GapMap.GAP) {
+					positions[bases.length()] = i;
+					bases.append(gapped[i]);
+				}
+			}
+			ungapped[length] = bases.length();
+			positions[bases.length()] = length;
+
+			GapMap map = new GapMap(gapped);
+			boolean ok = map.gappedLength() == length
+					&& map.ungappedLength() == bases.length()
+					&& Arrays.equals(map.removeGaps(gapped), bases.toString()
+							.toCharArray());
+			for (int i = 0; ok && i <= length; i++) {
+				ok = map.toUngapped(i) == ungapped[i]
+						&& (i == length || map.isGap(i) == (gapped[i] == GapMap.GAP));
+			}
+			for (int j = 0; ok && j <= bases.length(); j++)
+				ok = map.toGapped(j) == positions[j];
+			if (!ok) {
+				failures++;
+				System.out.println("Mismatch for " + new String(gapped));
+			}
+		}
+
+		System.out.println(failures == 0 ? "All gap maps correct."
+				: failures + " gap maps wrong.");
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Alignment;
+import haga.align.NeedlemanWunsch;
+import haga.align.NeedlemanWunschIyoToscano;
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class HirschbergTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+
+		for (int trial = 0; trial < 200; trial++) {
+			int n = rand.nextInt(trial < 100 ? 40 : 600);
+			int m = rand.nextInt(trial < 100 ? 40 : 600);
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(n,
+					rand);
+			LabeledSequence ls2 = trial % 3 == 0 ? RandomSequences
+					.randomLabeledSequence(m, rand) : RandomSequences.mutate(
+					ls1, rand);
+
+			NeedlemanWunsch full = trial % 2 == 0 ? new NeedlemanWunsch()
+					: new NeedlemanWunschIyoToscano();
+			NeedlemanWunsch linear = trial % 2 == 0 ? new NeedlemanWunsch()
+					: new NeedlemanWunschIyoToscano();
+			full.setLinearSpaceThreshold(Long.MAX_VALUE);
+			linear.setLinearSpaceThreshold(0);
+
+			Alignment expected = full.align(ls1, ls2);
+			Alignment actual = linear.align(ls1, ls2);
+			if (!Arrays.equals(expected.getSequence1(), actual.getSequence1())
+					|| !Arrays.equals(expected.getSequence2(), actual
+							.getSequence2())) {
+				failures++;
+				System.out.println("Mismatch (" + n + " x " + m + "):");
+				System.out.println(expected);
+				System.out.println(actual);
+			}
+		}
+
+		System.out.println(failures == 0 ? "All alignments identical."
+				: failures + " alignments differ.");
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Aligner;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceImpl;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public class IncrementalAlignerTest {
+
+	private static final int LENGTH = 10000;
+	private static final int EDITS = 8;
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		LabeledSequence ls1 = RandomSequences.randomLabeledSequence(LENGTH,
+				rand);
+		LabeledSequence ls2 = RandomSequences.mutate(ls1, rand);
+
+		// as the GUI does: align, add a constraint over some columns of the
+		// alignment, and align again. The executor refuses every piece it is
+		// handed, so they run on the calling thread, and counts them
+		final int[] submitted = new int[1];
+		Aligner incremental = new Aligner(new Executor() {
+			public void execute(Runnable command) {
+				submitted[0]++;
+				throw new RejectedExecutionException();
+			}
+		});
+		incremental.setIncremental(true);
+		LabeledAlignment la = incremental.align(ls1, ls2);
+		int failures = 0;
+		long full = 0, partial = 0;
+		LabeledSequence constrained1 = null, constrained2 = null;
+		for (int edit = 0; edit < EDITS; edit++) {
+			int column = rand.nextInt(la.getLS1().getSequence().length - 200);
+			Label label1 = new Label("exon" + edit, column, column + 199, true);
+			Label label2 = new Label("exon" + edit, column, column + 199, true);
+			LabeledSequence next1 = withLabel(la.getLS1(), label1);
+			LabeledSequence next2 = withLabel(la.getLS2(), label2);
+			if (next1 == null || next2 == null)
+				continue;
+			constrained1 = next1;
+			constrained2 = next2;
+
+			long start = System.nanoTime();
+			String expected = toString(new Aligner().align(constrained1,
+					constrained2));
+			full += System.nanoTime() - start;
+
+			submitted[0] = 0;
+			start = System.nanoTime();
+			la = incremental.align(constrained1, constrained2);
+			partial += System.nanoTime() - start;
+
+			if (!expected.equals(toString(la))) {
+				failures++;
+				System.out.println("Mismatch after edit " + edit);
+			}
+			// the constraint splits the one piece it lands in into at most
+			// three; every other piece is kept
+			if (submitted[0] > 3) {
+				failures++;
+				System.out.println(submitted[0] + " pieces aligned after edit "
+						+ edit);
+			}
+		}
+
+		// the same pair again aligns nothing
+		if (constrained1 != null) {
+			String expected = toString(la);
+			submitted[0] = 0;
+			la = incremental.align(constrained1, constrained2);
+			if (submitted[0] != 0 || !expected.equals(toString(la))) {
+				failures++;
+				System.out.println(submitted[0]
+						+ " pieces aligned for an unchanged pair");
+			}
+		}
+
+		// an edit made in place, in the array the last alignment was given,
+		// is seen
+		failures += editInPlace(rand, submitted, incremental);
+
+		System.out.println("full: " + full / 1000000 + " ms, incremental: "
+				+ partial / 1000000 + " ms");
+		System.out.println(failures == 0 ? "All alignments identical."
+				: failures + " alignments differ.");
+	}
+
+	private static int editInPlace(Random rand, final int[] submitted,
+			Aligner incremental) {
+		char[] bases1 = RandomSequences.randomBases(LENGTH, rand);
+		char[] bases2 = RandomSequences.mutate(bases1, rand);
+		char[] original1 = bases1.clone();
+		LabeledSequence ls1 = constrained(bases1);
+		LabeledSequence ls2 = constrained(bases2);
+		String original = toString(incremental.align(ls1, ls2));
+
+		int failures = 0;
+		for (int edit = 0; edit < EDITS; edit++) {
+			int i = rand.nextInt(bases1.length);
+			bases1[i] = bases1[i] == 'A' ? 'C' : 'A';
+			String expected = toString(new Aligner().align(ls1, ls2));
+			if (!expected.equals(toString(incremental.align(ls1, ls2)))) {
+				failures++;
+				System.out.println("Stale alignment after in place edit "
+						+ edit);
+			}
+		}
+
+		// what was kept does not read the arrays it was aligned from: the
+		// original bases, in new arrays, are found again though the array
+		// they were last aligned from has been overwritten since
+		char[] copy1 = original1.clone();
+		incremental.align(constrained(copy1), constrained(bases2.clone()));
+		Arrays.fill(copy1, 'A');
+		submitted[0] = 0;
+		String found = toString(incremental.align(constrained(original1
+				.clone()), constrained(bases2.clone())));
+		if (submitted[0] != 0 || !original.equals(found)) {
+			failures++;
+			System.out.println(submitted[0]
+					+ " pieces aligned for bases overwritten in another array");
+		}
+		return failures;
+	}
+
+	// bases under two "exon" constraints, which split them into five pieces
+	private static LabeledSequence constrained(char[] bases) {
+		LabeledSequenceImpl ls = new LabeledSequenceImpl(bases);
+		ls.addLabel(new Label("exon", 1000, 1999, true));
+		ls.addLabel(new Label("exon", 5000, 5999, true));
+		return ls;
+	}
+
+	// ls with label added in place of the background labels it overlaps, or
+	// null if it overlaps a user label
+	private static LabeledSequence withLabel(LabeledSequence ls, Label label) {
+		LabeledSequenceImpl result = new LabeledSequenceImpl(ls.getSequence());
+		for (Label l : ls.getLabels()) {
+			if (l.userDefined || !(l.overlaps(label) || label.overlaps(l)))
+				result.addLabel(l);
+		}
+		return result.addLabel(label) ? result : null;
+	}
+
+	private static String toString(LabeledAlignment la) {
+		return new String(la.getLS1().getSequence()) + "\n"
+				+ new String(la.getLS2().getSequence()) + "\n"
+				+ la.getLS1().getLabels() + "\n" + la.getLS2().getLabels();
+	}
+}
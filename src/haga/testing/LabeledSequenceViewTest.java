@@ -0,0 +1,149 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.PackedLabeledSequence;
+import haga.PackedSequence;
+import haga.align.Aligner;
+import haga.align.BasicScoreLearner;
+import haga.labeler.HMMLabeler;
+import haga.labeler.Label;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceView;
+import haga.labeler.Labeler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class LabeledSequenceViewTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		Aligner aligner = new Aligner();
+		Labeler labeler = new HMMLabeler(2, new double[] { .5, .5 },
+				new double[][] { { .9, .1 }, { .1, .9 } }, new double[][] {
+						{ .30, .20, .30, .20 }, { .25, .25, .25, .25 } },
+				Arrays.asList("exon", "intron"));
+		for (int trial = 0; trial < 30; trial++) {
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(1 + rand
+					.nextInt(2000), rand);
+			LabeledSequence ls2 = RandomSequences.mutate(ls1, rand);
+			LabeledSequence view1 = embed(ls1, rand), view2 = embed(ls2, rand);
+
+			boolean ok = Arrays.equals(view1.getSequence(), ls1.getSequence())
+					&& view1.getSequence() == view1.getSequence()
+					&& view1.getSequence() != ((LabeledSequenceView) view1)
+							.getBacking();
+
+			// a view of a view shares its backing array
+			LabeledSequenceView inner = LabeledSequenceView.of(view1, 1, Math
+					.max(1, LabeledSequenceView.length(view1) - 1),
+					new ArrayList<Label>());
+			ok = ok && inner.getBacking() == ((LabeledSequenceView) view1)
+					.getBacking()
+					&& Arrays.equals(inner.getSequence(), Arrays.copyOfRange(ls1
+							.getSequence(), 1, Math.max(1, ls1.getSequence().length - 1)));
+
+			ok = ok
+					&& toString(aligner.align(ls1, ls2)).equals(
+							toString(aligner.align(view1, view2)));
+
+			LabeledSequence unlabeled1 = new NucleotideLabeledSequence(ls1
+					.getSequence(), new ArrayList<Label>());
+			ok = ok
+					&& labeler.labelSequence(unlabeled1).getLabels().equals(
+							labeler.labelSequence(embed(unlabeled1, rand))
+									.getLabels());
+
+			// the learner reads the views in place
+			BasicScoreLearner learner = new BasicScoreLearner();
+			learner.train(new LabeledAlignment(ls1, ls1), "exon");
+			int[][] expected = learner.getScoreMatrix();
+			learner.train(new LabeledAlignment(view1, embed(ls1, rand)), "exon");
+			ok = ok && Arrays.deepEquals(expected, learner.getScoreMatrix());
+
+			// views and packed sequences are read by range, and a gapped
+			// packed sequence aligns as the same characters unpacked
+			char[] gapped = withGaps(ls1.getSequence(), rand);
+			List<Label> gappedLabels = RandomSequences.randomLabels(
+					gapped.length, rand);
+			LabeledSequence packed = new PackedLabeledSequence(
+					new PackedSequence(gapped), gappedLabels);
+			int start = rand.nextInt(gapped.length + 1);
+			int end = start + rand.nextInt(gapped.length - start + 1);
+			char[] range = new char[end - start];
+			LabeledSequenceView.getChars(packed, start, end, range, 0);
+			ok = ok && Arrays.equals(range, Arrays.copyOfRange(gapped, start, end));
+			int length = ls1.getSequence().length;
+			start = rand.nextInt(length + 1);
+			end = start + rand.nextInt(length - start + 1);
+			range = new char[end - start];
+			LabeledSequenceView.getChars(view1, start, end, range, 0);
+			ok = ok
+					&& Arrays.equals(range, Arrays.copyOfRange(ls1.getSequence(),
+							start, end));
+			ok = ok
+					&& toString(aligner.align(new NucleotideLabeledSequence(
+							gapped, gappedLabels), ls2)).equals(
+							toString(aligner.align(packed, ls2)));
+
+			if (!ok) {
+				failures++;
+				System.out.println("Views differ from copies, trial " + trial);
+			}
+		}
+
+		System.out.println(failures == 0 ? "All views correct."
+				: failures + " views wrong.");
+	}
+
+	// seq with a gap before about one base in 20
+	private static char[] withGaps(char[] seq, Random rand) {
+		StringBuffer sb = new StringBuffer();
+		for (char c : seq) {
+			if (rand.nextInt(20) == 0)
+				sb.append('-');
+			sb.append(c);
+		}
+		return sb.toString().toCharArray();
+	}
+
+	// ls as a view in the middle of a larger array
+	private static LabeledSequence embed(LabeledSequence ls, Random rand) {
+		char[] seq = ls.getSequence();
+		int before = rand.nextInt(50), after = rand.nextInt(50);
+		char[] backing = new char[before + seq.length + after];
+		Arrays.fill(backing, 'N');
+		System.arraycopy(seq, 0, backing, before, seq.length);
+		List<Label> labels = new ArrayList<Label>(ls.getLabels());
+		return new LabeledSequenceView(backing, before, seq.length, labels);
+	}
+
+	private static String toString(LabeledAlignment la) {
+		return new String(la.getLS1().getSequence()) + "\n"
+				+ new String(la.getLS2().getSequence()) + "\n"
+				+ la.getLS1().getLabels() + "\n" + la.getLS2().getLabels();
+	}
+}
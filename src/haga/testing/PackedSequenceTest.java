@@ -0,0 +1,123 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.PackedLabeledSequence;
+import haga.PackedSequence;
+import haga.align.Aligner;
+import haga.labeler.HMMLabeler;
+import haga.labeler.LabeledAlignment;
+import haga.labeler.LabeledSequence;
+import haga.labeler.Labeler;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class PackedSequenceTest {
+
+	// characters packed sequences keep aside
+	private static final char[] OTHERS = { 'N', 'R', 'Y', '-', 'a', 'n' };
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		for (int trial = 0; trial < 500; trial++) {
+			char[] seq = new char[rand.nextInt(trial < 250 ? 100 : 5000)];
+			for (int i = 0; i < seq.length; i++) {
+				if (rand.nextInt(20) == 0) {
+					// a run of some other character
+					char c = OTHERS[rand.nextInt(OTHERS.length)];
+					int end = Math.min(seq.length, i + 1 + rand.nextInt(40));
+					for (; i < end; i++)
+						seq[i] = c;
+					i--;
+				} else {
+					seq[i] = RandomSequences.BASES[rand.nextInt(4)];
+				}
+			}
+
+			PackedSequence packed = new PackedSequence(seq);
+			boolean ok = packed.length() == seq.length
+					&& Arrays.equals(packed.toCharArray(), seq)
+					&& packed.contains('-') == new String(seq).contains("-");
+			for (int i = 0; ok && i < seq.length; i++)
+				ok = packed.charAt(i) == seq[i];
+			for (int s = 0; ok && s < 20; s++) {
+				int start = rand.nextInt(seq.length + 1);
+				int end = start + rand.nextInt(seq.length - start + 1);
+				char[] expected = Arrays.copyOfRange(seq, start, end);
+				PackedSequence slice = packed.slice(start, end);
+				char[] chars = new char[end - start + 2];
+				packed.getChars(start, end, chars, 1);
+				byte[] codes = new byte[end - start];
+				packed.getCodes(start, end, codes, 0);
+				ok = Arrays.equals(slice.toCharArray(), expected)
+						&& Arrays.equals(Arrays.copyOfRange(chars, 1,
+								chars.length - 1), expected);
+				for (int i = 0; ok && i < codes.length; i++)
+					ok = codes[i] == PackedSequence.codeOf(expected[i]);
+			}
+			if (!ok) {
+				failures++;
+				System.out.println("Mismatch for " + new String(seq));
+			}
+		}
+
+		// the Aligner and the labeler give the same results for packed
+		// sequences
+		Aligner aligner = new Aligner();
+		Labeler labeler = new HMMLabeler(2, new double[] { .5, .5 },
+				new double[][] { { .9, .1 }, { .1, .9 } }, new double[][] {
+						{ .30, .20, .30, .20 }, { .25, .25, .25, .25 } },
+				Arrays.asList("exon", "intron"));
+		for (int trial = 0; trial < 20; trial++) {
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(1 + rand
+					.nextInt(2000), rand);
+			LabeledSequence ls2 = RandomSequences.mutate(ls1, rand);
+			String expected = toString(aligner.align(ls1, ls2));
+			String actual = toString(aligner.align(pack(ls1), pack(ls2)));
+			LabeledSequence unlabeled = new NucleotideLabeledSequence(ls1
+					.getSequence(), ls1.getLabels().subList(0, 0));
+			LabeledSequence labeled = labeler.labelSequence(pack(unlabeled));
+			if (!expected.equals(actual)
+					|| !(labeled instanceof PackedLabeledSequence)
+					|| !labeled.getLabels().equals(
+							labeler.labelSequence(unlabeled).getLabels())) {
+				failures++;
+				System.out.println("Packed sequences aligned or labeled differently");
+			}
+		}
+
+		System.out.println(failures == 0 ? "All packed sequences correct."
+				: failures + " packed sequences wrong.");
+	}
+
+	private static LabeledSequence pack(LabeledSequence ls) {
+		return new PackedLabeledSequence(new PackedSequence(ls.getSequence()),
+				ls.getLabels());
+	}
+
+	private static String toString(LabeledAlignment la) {
+		return new String(la.getLS1().getSequence()) + "\n"
+				+ new String(la.getLS2().getSequence()) + "\n"
+				+ la.getLS1().getLabels() + "\n" + la.getLS2().getLabels();
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The random sequences the tests align: uniform bases, consecutive
+ * "exon"/"intron" labels, and related copies with about one edit in ten
+ * bases.
+ */
+public class RandomSequences {
+
+	static final char[] BASES = new char[] { 'A', 'C', 'G', 'T' };
+
+	private RandomSequences() {
+	}
+
+	// length uniform bases
+	static char[] randomBases(int length, Random rand) {
+		char[] seq = new char[length];
+		for (int i = 0; i < length; i++)
+			seq[i] = BASES[rand.nextInt(4)];
+		return seq;
+	}
+
+	// a random sequence covered by consecutive "exon"/"intron" labels
+	static LabeledSequence randomLabeledSequence(int length, Random rand) {
+		return new NucleotideLabeledSequence(randomBases(length, rand),
+				randomLabels(length, rand));
+	}
+
+	// a copy of ls with about one base in ten substituted, inserted or deleted
+	static LabeledSequence mutate(LabeledSequence ls, Random rand) {
+		char[] seq = mutate(ls.getSequence(), rand);
+		return new NucleotideLabeledSequence(seq, randomLabels(seq.length, rand));
+	}
+
+	// a copy of seq with about one base in ten substituted, inserted or deleted
+	static char[] mutate(char[] seq, Random rand) {
+		StringBuffer sb = new StringBuffer();
+		for (char c : seq) {
+			switch (rand.nextInt(30)) {
+			case 0:
+				sb.append(BASES[rand.nextInt(4)]);
+				break;
+			case 1:
+				sb.append(c).append(BASES[rand.nextInt(4)]);
+				break;
+			case 2:
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString().toCharArray();
+	}
+
+	static List<Label> randomLabels(int length, Random rand) {
+		List<Label> labels = new ArrayList<Label>();
+		int start = 0;
+		while (start < length) {
+			int end = Math.min(length - 1, start + rand.nextInt(50));
+			labels.add(new Label(rand.nextBoolean() ? "exon" : "intron", start,
+					end, false));
+			start = end + 1;
+		}
+		return labels;
+	}
+}
@@ -0,0 +1,86 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Alignment;
+import haga.align.NeedlemanWunsch;
+import haga.align.NeedlemanWunschIyoToscano;
+import haga.align.VectorizedNeedlemanWunsch;
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class VectorizedNeedlemanWunschTest {
+
+	// first sequences shorter than, or around, the vector lengths of the
+	// striped kernel, aligned with a long one both ways round
+	private static final int[] SHORT = new int[] { 0, 1, 2, 3, 4, 5, 7, 8,
+			9, 15, 16, 17, 31, 32, 33, 63, 64, 65 };
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		long fullTime = 0, vectorizedTime = 0;
+
+		for (int trial = 0; trial < 200 + SHORT.length; trial++) {
+			int n = trial < 200 ? rand.nextInt(trial < 100 ? 40 : 1500)
+					: SHORT[trial - 200];
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(n, rand);
+			LabeledSequence ls2 = trial >= 200 ? RandomSequences
+					.randomLabeledSequence(5000, rand) : trial % 3 == 0
+					? RandomSequences.randomLabeledSequence(rand.nextInt(1500),
+							rand) : RandomSequences.mutate(ls1, rand);
+			if (trial >= 200 && trial % 2 == 0) {
+				LabeledSequence tmp = ls1;
+				ls1 = ls2;
+				ls2 = tmp;
+			}
+
+			NeedlemanWunsch full = trial % 2 == 0 ? new NeedlemanWunsch()
+					: new NeedlemanWunschIyoToscano();
+			VectorizedNeedlemanWunsch vectorized = new VectorizedNeedlemanWunsch(
+					trial % 2 == 0 ? new NeedlemanWunsch()
+							: new NeedlemanWunschIyoToscano());
+
+			long start = System.nanoTime();
+			Alignment expected = full.align(ls1, ls2);
+			fullTime += System.nanoTime() - start;
+			start = System.nanoTime();
+			Alignment actual = vectorized.align(ls1, ls2);
+			vectorizedTime += System.nanoTime() - start;
+
+			if (!Arrays.equals(expected.getSequence1(), actual.getSequence1())
+					|| !Arrays.equals(expected.getSequence2(), actual
+							.getSequence2())) {
+				failures++;
+				System.out.println("Mismatch:");
+				System.out.println(expected);
+				System.out.println(actual);
+			}
+		}
+
+		System.out.println("NeedlemanWunsch: " + fullTime / 1000000
+				+ " ms, VectorizedNeedlemanWunsch: " + vectorizedTime / 1000000
+				+ " ms");
+		System.out.println(failures == 0 ? "All alignments identical."
+				: failures + " alignments differ.");
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.NucleotideLabeledSequence;
+import haga.labeler.HMMLabeler;
+import haga.labeler.Label;
+import haga.labeler.LabeledSequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import be.ac.ulg.montefiore.run.jahmm.ObservationInteger;
+
+public class ViterbiTest {
+
+	private static final String BASES = "ACGT";
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		// 2, 3, 5, 17 and 128 states take 1, 2, 4, 8 and 8 bits per pointer
+		int[] stateCounts = { 1, 2, 3, 5, 17, 128 };
+		for (int trial = 0; trial < 60; trial++) {
+			int nbStates = stateCounts[trial % stateCounts.length];
+			// some probabilities are 0, and some rows are equal, to check
+			// that ties go the same way
+			boolean sparse = trial % 3 == 0, tied = trial % 4 == 1;
+			double[] pi = randomDistribution(nbStates, sparse, rand);
+			double[][] a = new double[nbStates][];
+			double[][] b = new double[nbStates][];
+			List<String> names = new ArrayList<String>();
+			for (int i = 0; i < nbStates; i++) {
+				a[i] = tied && i > 0 ? a[0] : randomDistribution(nbStates,
+						sparse, rand);
+				b[i] = tied && i > 0 ? b[0] : randomDistribution(4, sparse,
+						rand);
+				names.add("state" + i);
+			}
+			HMMLabeler labeler = new HMMLabeler(nbStates, pi, a, b, names);
+
+			char[] seq = new char[1 + rand.nextInt(trial % 10 == 0 ? 20000 : 500)];
+			for (int i = 0; i < seq.length; i++)
+				seq[i] = BASES.charAt(rand.nextInt(4));
+			LabeledSequence ls = new NucleotideLabeledSequence(seq,
+					new ArrayList<Label>());
+
+			List<ObservationInteger> observations = new ArrayList<ObservationInteger>();
+			for (char c : seq)
+				observations.add(new ObservationInteger(BASES.indexOf(c)));
+			int[] expected = labeler.hmm.mostLikelyStateSequence(observations);
+
+			int[] actual = new int[seq.length];
+			for (Label l : labeler.labelSequence(ls).getLabels()) {
+				for (int i = l.getStartIndex(); i <= l.getEndIndex(); i++)
+					actual[i] = names.indexOf(l.toString());
+			}
+			for (int i = 0; i < seq.length; i++) {
+				if (actual[i] != expected[i]) {
+					failures++;
+					System.out.println("Mismatch at " + i + " of trial " + trial
+							+ " (" + nbStates + " states)");
+					break;
+				}
+			}
+		}
+
+		System.out.println(failures == 0 ? "All state sequences correct."
+				: failures + " state sequences wrong.");
+	}
+
+	private static double[] randomDistribution(int n, boolean sparse,
+			Random rand) {
+		double[] p = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			p[i] = sparse && i > 0 && rand.nextInt(3) == 0 ? 0 : rand
+					.nextDouble();
+			sum += p[i];
+		}
+		if (sum == 0) {
+			p[0] = sum = 1;
+		}
+		for (int i = 0; i < n; i++)
+			p[i] /= sum;
+		return p;
+	}
+}
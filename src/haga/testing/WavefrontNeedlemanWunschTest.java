@@ -0,0 +1,80 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Alignment;
+import haga.align.NeedlemanWunsch;
+import haga.align.NeedlemanWunschIyoToscano;
+import haga.align.WavefrontNeedlemanWunsch;
+import haga.labeler.LabeledSequence;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class WavefrontNeedlemanWunschTest {
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+		long fullTime = 0, wavefrontTime = 0;
+		// tiles are filled in parallel even on a single processor
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		for (int trial = 0; trial < 200; trial++) {
+			int n = rand.nextInt(trial < 100 ? 40 : 1500);
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(n, rand);
+			LabeledSequence ls2 = trial % 3 == 0 ? RandomSequences
+					.randomLabeledSequence(rand.nextInt(1500), rand)
+					: RandomSequences.mutate(ls1, rand);
+
+			NeedlemanWunsch full = trial % 2 == 0 ? new NeedlemanWunsch()
+					: new NeedlemanWunschIyoToscano();
+			WavefrontNeedlemanWunsch wavefront = new WavefrontNeedlemanWunsch(
+					trial % 2 == 0 ? new NeedlemanWunsch()
+							: new NeedlemanWunschIyoToscano(), pool);
+			wavefront.setTileSize(1 + rand.nextInt(300));
+			wavefront.setParallelThreshold(0);
+
+			long start = System.nanoTime();
+			Alignment expected = full.align(ls1, ls2);
+			fullTime += System.nanoTime() - start;
+			start = System.nanoTime();
+			Alignment actual = wavefront.align(ls1, ls2);
+			wavefrontTime += System.nanoTime() - start;
+
+			if (!Arrays.equals(expected.getSequence1(), actual.getSequence1())
+					|| !Arrays.equals(expected.getSequence2(), actual
+							.getSequence2())) {
+				failures++;
+				System.out.println("Mismatch:");
+				System.out.println(expected);
+				System.out.println(actual);
+			}
+		}
+
+		pool.shutdown();
+		System.out.println("NeedlemanWunsch: " + fullTime / 1000000
+				+ " ms, WavefrontNeedlemanWunsch: " + wavefrontTime / 1000000
+				+ " ms");
+		System.out.println(failures == 0 ? "All alignments identical."
+				: failures + " alignments differ.");
+	}
+}
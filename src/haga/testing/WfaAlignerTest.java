@@ -0,0 +1,113 @@
+/**
+ *    Copyright 2007 Robert Toscano and Shannon Iyo
+ *
+ *    This file is part of HAGA.
+ *
+ *    HAGA is free software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation, either version 3 of the License, or
+ *    any later version.
+ *
+ *    HAGA is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with HAGA.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package haga.testing;
+
+import haga.align.Alignment;
+import haga.align.ConstGapPenalty;
+import haga.align.NeedlemanWunsch;
+import haga.align.NeedlemanWunschIyoToscano;
+import haga.align.WfaAligner;
+import haga.labeler.LabeledSequence;
+import haga.labeler.LabeledSequenceImpl;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class WfaAlignerTest {
+
+	private static final int[][] SCORES = new int[][] { { 0, 4, 5, 5 },
+			{ 4, 0, 5, 5 }, { 5, 5, 0, 4 }, { 5, 5, 4, 0 } };
+	private static final int GAP = 7;
+
+	public static void main(String[] args) {
+		Random rand = new Random(6878);
+		int failures = 0;
+
+		for (int trial = 0; trial < 300; trial++) {
+			int n = rand.nextInt(trial < 200 ? 60 : 3000);
+			LabeledSequence ls1 = new LabeledSequenceImpl(RandomSequences
+					.randomLabeledSequence(n, rand).getSequence());
+			LabeledSequence ls2 = new LabeledSequenceImpl(RandomSequences
+					.mutate(ls1, rand).getSequence());
+
+			NeedlemanWunsch nw = new NeedlemanWunsch(SCORES,
+					new ConstGapPenalty(-GAP));
+			WfaAligner wfa = new WfaAligner(new NeedlemanWunsch(SCORES,
+					new ConstGapPenalty(-GAP)));
+			wfa.setMaxDivergence(1);
+
+			int expected = nw.score(ls1, ls2);
+			Alignment a = wfa.align(ls1, ls2);
+			if (expected != wfa.score(ls1, ls2) || expected != cost(a)
+					|| !Arrays.equals(ls1.getSequence(), removeGaps(a
+							.getSequence1()))
+					|| !Arrays.equals(ls2.getSequence(), removeGaps(a
+							.getSequence2()))) {
+				failures++;
+				System.out.println("Mismatch: expected " + expected + ", got "
+						+ wfa.score(ls1, ls2) + " for");
+				System.out.println(a);
+			}
+		}
+
+		// label dependent scores fall back to the wrapped NeedlemanWunsch
+		for (int trial = 0; trial < 50; trial++) {
+			LabeledSequence ls1 = RandomSequences.randomLabeledSequence(rand
+					.nextInt(200), rand);
+			LabeledSequence ls2 = RandomSequences.mutate(ls1, rand);
+			Alignment expected = new NeedlemanWunschIyoToscano().align(ls1, ls2);
+			Alignment actual = new WfaAligner(new NeedlemanWunschIyoToscano())
+					.align(ls1, ls2);
+			if (!expected.toString().equals(actual.toString())) {
+				failures++;
+				System.out.println("Fallback mismatch:");
+				System.out.println(expected);
+				System.out.println(actual);
+			}
+		}
+
+		System.out.println(failures == 0 ? "All alignments optimal."
+				: failures + " alignments differ.");
+	}
+
+	private static int cost(Alignment a) {
+		char[] s1 = a.getSequence1(), s2 = a.getSequence2();
+		int cost = 0;
+		for (int i = 0; i < s1.length; i++) {
+			if (s1[i] == '-' || s2[i] == '-')
+				cost += GAP;
+			else
+				cost += SCORES[index(s1[i])][index(s2[i])];
+		}
+		return cost;
+	}
+
+	private static int index(char c) {
+		return "AGCT".indexOf(Character.toUpperCase(c));
+	}
+
+	private static char[] removeGaps(char[] aligned) {
+		StringBuffer sb = new StringBuffer();
+		for (char c : aligned)
+			if (c != '-')
+				sb.append(c);
+		return sb.toString().toCharArray();
+	}
+}